@@ -0,0 +1,248 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Backup of a bank that applies changes which are replicated by {@link ReplicatedBank}. This class is thread-safe.
+ * <p>
+ * <p>The backup accepts a single connection from the primary and applies frames with a single thread in the order
+ * of sequence numbers. Changes of several accounts in all frames that arrive together are applied atomically
+ * with one {@link BatchBank#applyBatch(TransferBatch)}, and only changes of a single account are applied
+ * with deposit or withdraw between batches. Then the last sequence number of these frames is acknowledged,
+ * so acknowledgements are batched under load.
+ * <p>
+ * <p>Changes of several accounts move money between them, so every such change is split into transfers from
+ * accounts that lose money to accounts that gain it. Amounts of these accounts change monotonically, so none
+ * of the transfers fails unless the backup has diverged from the primary, and then the backup stops.
+ */
+public class Backup implements Closeable {
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    private final BatchBank bank;
+    private final ServerSocketChannel server;
+    private final Thread receiver;
+    private final TransferBatch batch = new TransferBatch();
+
+    /**
+     * Connection from the primary or null.
+     */
+    private volatile SocketChannel channel;
+
+    /**
+     * The last sequence number that has been applied.
+     */
+    private volatile long applied;
+
+    private volatile long frames;
+    private volatile long acks;
+    private volatile boolean closed;
+
+    /**
+     * The exception that stopped the receiver or null.
+     */
+    private volatile Throwable failure;
+
+    /**
+     * Creates new backup and starts waiting for the primary.
+     *
+     * @param bank bank with the same amounts as the primary, it must not be changed by anyone else.
+     * @param address address to listen on, its port may be 0 to choose a free one.
+     * @throws IOException when the address cannot be bound.
+     */
+    public Backup(BatchBank bank, InetSocketAddress address) throws IOException {
+        this.bank = bank;
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        receiver = new Thread("Backup-receiver") {
+            @Override
+            public void run() {
+                receive();
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Returns the address that the backup listens on.
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Returns the bank that changes are applied to.
+     */
+    public BatchBank getBank() {
+        return bank;
+    }
+
+    /**
+     * Returns the last sequence number that has been applied.
+     */
+    public long getAppliedSequence() {
+        return applied;
+    }
+
+    /**
+     * Returns the number of frames that have been applied.
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of acknowledgements that have been sent, which is less than the number of frames
+     * when they arrive faster than they are applied.
+     */
+    public long getAckCount() {
+        return acks;
+    }
+
+    /**
+     * Waits until the primary closes the connection. The primary closes it when it is closed itself.
+     *
+     * @throws IOException when the backup has failed.
+     */
+    public void awaitClose() throws IOException, InterruptedException {
+        receiver.join();
+        if (failure != null)
+            throw new IOException("Backup has failed", failure);
+    }
+
+    /**
+     * Closes the connection and stops the backup.
+     *
+     * @throws IOException when the backup has failed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        SocketChannel channel = this.channel;
+        if (channel != null)
+            channel.close();
+        boolean interrupted = false;
+        while (receiver.isAlive()) {
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw new IOException("Backup has failed", failure);
+    }
+
+    /**
+     * The loop of the receiver. It reads as many frames as there are, applies them, and acknowledges the last one.
+     */
+    private void receive() {
+        try (SocketChannel channel = server.accept()) {
+            this.channel = channel;
+            if (closed)
+                return;
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            ByteBuffer ack = ByteBuffer.allocate(8);
+            while (channel.read(in) >= 0) {
+                in.flip();
+                long last = -1;
+                while (in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+                    in.getInt();
+                    last = apply(in);
+                    frames++; // written only by the receiver
+                }
+                applyBatch();
+                in.compact();
+                if (in.position() >= 4 && 4 + in.getInt(0) > in.capacity()) {
+                    // the frame does not fit into the buffer
+                    in.flip();
+                    in = ByteBuffer.allocateDirect(4 + in.getInt(0)).put(in);
+                }
+                if (last >= 0) {
+                    applied = last;
+                    ack.clear();
+                    ack.putLong(last).flip();
+                    while (ack.hasRemaining())
+                        channel.write(ack);
+                    acks++;
+                }
+            }
+        } catch (Throwable t) {
+            if (!closed)
+                failure = t;
+        }
+    }
+
+    /**
+     * Applies changes of the frame, except for transfers that are left in the batch.
+     *
+     * @return the last sequence number of the frame.
+     */
+    private long apply(ByteBuffer in) {
+        long last = in.getLong();
+        int count = in.getInt();
+        for (int k = 0; k < count; k++) {
+            int size = in.getInt();
+            int[] indices = new int[size];
+            long[] deltas = new long[size];
+            long sum = 0;
+            for (int m = 0; m < size; m++) {
+                indices[m] = in.getInt();
+                deltas[m] = in.getLong();
+                sum += deltas[m];
+            }
+            if (size > 1 && sum == 0) {
+                addTransfers(indices, deltas);
+                continue;
+            }
+            applyBatch();
+            for (int m = 0; m < size; m++) {
+                if (deltas[m] > 0)
+                    bank.deposit(indices[m], deltas[m]);
+                else if (deltas[m] < 0)
+                    bank.withdraw(indices[m], -deltas[m]);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Adds transfers from accounts with negative deltas to accounts with positive deltas to the batch.
+     */
+    private void addTransfers(int[] indices, long[] deltas) {
+        int from = 0;
+        int to = 0;
+        while (true) {
+            while (from < deltas.length && deltas[from] >= 0)
+                from++;
+            while (to < deltas.length && deltas[to] <= 0)
+                to++;
+            if (from == deltas.length || to == deltas.length)
+                return;
+            long amount = Math.min(-deltas[from], deltas[to]);
+            batch.add(indices[from], indices[to], amount);
+            deltas[from] += amount;
+            deltas[to] -= amount;
+        }
+    }
+
+    private void applyBatch() {
+        if (batch.size() == 0)
+            return;
+        int[] statuses = bank.applyBatch(batch);
+        for (int status : statuses) {
+            if (status != TransferBatch.OK)
+                throw new IllegalStateException("Backup has diverged from the primary: " + status);
+        }
+        batch.clear();
+    }
+}
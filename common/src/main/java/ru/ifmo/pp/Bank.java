@@ -0,0 +1,138 @@
+package ru.ifmo.pp;
+
+/**
+ * Bank interface.
+ *
+ * @author Roman Elizarov
+ */
+public interface Bank {
+    /**
+     * The maximal amount that can be kept in a bank account.
+     */
+    public long MAX_AMOUNT = 1_000_000_000_000_000L;
+
+    /**
+     * Status of operation that was performed.
+     */
+    public int OK = 0;
+
+    /**
+     * Status of operation that was not performed, because there was not enough funds in account.
+     */
+    public int UNDERFLOW = -1;
+
+    /**
+     * Status of operation that was not performed, because account would overflow {@link #MAX_AMOUNT}.
+     */
+    public int OVERFLOW = -2;
+
+    /**
+     * Returns number of accounts in this bank.
+     *
+     * @return number of accounts in this bank.
+     */
+    public int getNumberOfAccounts();
+
+    /**
+     * Returns current amount in the specified account.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @return amount in account.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public long getAmount(int index);
+
+    /**
+     * Returns total amount deposited in this bank.
+     *
+     * @return total amount deposited in this bank.
+     */
+    public long getTotalAmount();
+
+    /**
+     * Returns total amount in a range of accounts.
+     *
+     * @param fromIndex the first account index of the range, inclusive.
+     * @param toIndex the last account index of the range, exclusive.
+     * @return total amount in accounts from fromIndex to toIndex-1.
+     * @throws IndexOutOfBoundsException when fromIndex &lt; 0, toIndex &gt; {@link #getNumberOfAccounts() n},
+     *         or fromIndex &gt; toIndex.
+     */
+    public long getTotalAmount(int fromIndex, int toIndex);
+
+    /**
+     * Deposits specified amount to account.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to deposit.
+     * @return resulting amount in account.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     * @throws IllegalStateException when deposit will overflow account above {@link #MAX_AMOUNT}.
+     */
+    public long deposit(int index, long amount);
+
+    /**
+     * Withdraws specified amount from account.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to withdraw.
+     * @return resulting amount in account.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     * @throws IllegalStateException when account does not enough to withdraw.
+     */
+    public long withdraw(int index, long amount);
+
+    /**
+     * Transfers specified amount from one account to another account.
+     *
+     * @param fromIndex account index to withdraw from.
+     * @param toIndex account index to deposit to.
+     * @param amount positive amount to transfer.
+     * @throws IllegalArgumentException when amount <= 0 or fromIndex == toIndex.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     * @throws IllegalStateException when there is not enough funds in source account or too much in target one.
+     */
+    public void transfer(int fromIndex, int toIndex, long amount);
+
+    /**
+     * Deposits specified amount to account if it does not overflow. Unlike {@link #deposit(int, long)},
+     * this method does not throw exception when account would overflow.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to deposit.
+     * @return resulting amount in account or {@link #OVERFLOW} when deposit will overflow account
+     *         above {@link #MAX_AMOUNT}.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public long tryDeposit(int index, long amount);
+
+    /**
+     * Withdraws specified amount from account if it has enough funds. Unlike {@link #withdraw(int, long)},
+     * this method does not throw exception when there is not enough funds.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to withdraw.
+     * @return resulting amount in account or {@link #UNDERFLOW} when account does not enough to withdraw.
+     * @throws IllegalArgumentException when amount <= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public long tryWithdraw(int index, long amount);
+
+    /**
+     * Transfers specified amount from one account to another account if possible.
+     * Unlike {@link #transfer(int, int, long)}, this method does not throw exception when
+     * there is not enough funds in source account or too much in target one.
+     *
+     * @param fromIndex account index to withdraw from.
+     * @param toIndex account index to deposit to.
+     * @param amount positive amount to transfer.
+     * @return {@link #OK}, {@link #UNDERFLOW} when there is not enough funds in source account,
+     *         or {@link #OVERFLOW} when there is too much in target one.
+     * @throws IllegalArgumentException when amount <= 0 or fromIndex == toIndex.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     */
+    public int tryTransfer(int fromIndex, int toIndex, long amount);
+}
@@ -0,0 +1,16 @@
+package ru.ifmo.pp;
+
+/**
+ * Bank that applies batches of transfers atomically, which is used by {@link Backup} to apply changes
+ * of several accounts.
+ */
+public interface BatchBank extends Bank {
+    /**
+     * Applies all transfers of the batch atomically, as if they were performed one by one in their order
+     * in the batch. A transfer that fails does not change amounts, and the others are still applied.
+     *
+     * @param batch transfers to apply.
+     * @return status codes of transfers, see {@link TransferBatch#OK} and others.
+     */
+    int[] applyBatch(TransferBatch batch);
+}
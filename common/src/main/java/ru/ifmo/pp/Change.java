@@ -0,0 +1,98 @@
+package ru.ifmo.pp;
+
+/**
+ * Committed change of amounts in accounts that is published to {@link ChangeFeed}.
+ * Accounts of the change are numbered from 0, and every account has its change of amount and the resulting
+ * amount after the change. This class is immutable.
+ */
+public class Change {
+    /**
+     * Kind of change that adds to the amount in a single account by deposit or by any other operation
+     * that changes only one account.
+     */
+    public static final int DEPOSIT = 1;
+
+    /**
+     * Kind of change that subtracts from the amount in a single account.
+     */
+    public static final int WITHDRAW = 2;
+
+    /**
+     * Kind of change by transfer from the first account to the second one.
+     */
+    public static final int TRANSFER = 3;
+
+    /**
+     * Kind of change of several accounts at once, accounts are listed in ascending order of their indices.
+     */
+    public static final int UPDATE = 4;
+
+    /**
+     * Kind of a placeholder for sequence number that was not used by any change. Never returned to consumers.
+     */
+    static final int SKIP = 0;
+
+    private final long sequence;
+    private final int kind;
+    private final int[] indices;
+    private final long[] deltas;
+    private final long[] amounts;
+
+    Change(long sequence, int kind, int[] indices, long[] deltas, long[] amounts) {
+        this.sequence = sequence;
+        this.kind = kind;
+        this.indices = indices;
+        this.deltas = deltas;
+        this.amounts = amounts;
+    }
+
+    /**
+     * Creates change of a single account.
+     */
+    Change(long sequence, int index, long delta, long amount) {
+        this(sequence, delta > 0 ? DEPOSIT : WITHDRAW, new int[] {index}, new long[] {delta}, new long[] {amount});
+    }
+
+    /**
+     * Returns sequence number of this change. Sequence numbers start from 1 and follow the order in which changes
+     * took effect, so that changes of the same account are ordered by their sequence numbers.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns kind of this change, see {@link #DEPOSIT} and others.
+     */
+    public int getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the number of accounts that were changed.
+     */
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * Returns index of k-th account.
+     */
+    public int index(int k) {
+        return indices[k];
+    }
+
+    /**
+     * Returns the change of amount in k-th account, which is negative for withdrawals.
+     */
+    public long delta(int k) {
+        return deltas[k];
+    }
+
+    /**
+     * Returns the amount in k-th account after the change.
+     */
+    public long amount(int k) {
+        return amounts[k];
+    }
+}
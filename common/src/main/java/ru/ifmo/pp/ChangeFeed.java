@@ -0,0 +1,181 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Feed of changes that were committed by a bank, see {@link Change}.
+ * This class is thread-safe, and it is lock-free while it has no gating cursors.
+ * <p>
+ * <p>A bank takes a sequence number for every change at the moment when no other change of the same accounts
+ * can commit, and publishes the change in the cell of a ring buffer that corresponds to its sequence number.
+ * A sequence number that was taken for a change that did not commit is published as a skip, so every number
+ * is eventually published. Writers never wait for ordinary consumers: a consumer that falls behind by more than
+ * the capacity of the ring loses changes and gets an exception, see {@link Cursor#poll(Change[])}.
+ * A consumer that must not lose changes reads them with a gating cursor, see {@link #gatingCursor()}.
+ * Then a writer that takes a sequence number waits until all gating cursors have read the change that
+ * was published in the same cell a lap ago, so a burst of changes is held back rather than lost.
+ */
+public class ChangeFeed {
+    private final int mask;
+    private final AtomicReferenceArray<Change> changes;
+
+    /**
+     * The last sequence number that was taken.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Cursors that writers wait for.
+     */
+    private final CopyOnWriteArrayList<Cursor> gates = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates new feed.
+     *
+     * @param capacity the number of the latest changes that are kept for consumers, a power of two.
+     */
+    public ChangeFeed(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("Capacity must be power of 2: " + capacity);
+        mask = capacity - 1;
+        changes = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Returns the last sequence number that was taken. Changes with this and smaller numbers may still
+     * be in the process of publishing.
+     */
+    public long getLastSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Returns new cursor that reads changes that are committed after this method is invoked.
+     */
+    public Cursor cursor() {
+        return new Cursor(sequence.get() + 1);
+    }
+
+    /**
+     * Returns new cursor that reads changes starting from the given sequence number.
+     *
+     * @param sequence the sequence number of the first change to read, at least 1.
+     */
+    public Cursor cursor(long sequence) {
+        if (sequence <= 0)
+            throw new IllegalArgumentException("Invalid sequence: " + sequence);
+        return new Cursor(sequence);
+    }
+
+    /**
+     * Returns new gating cursor that reads changes that are committed after this method is invoked.
+     * Writers wait for it until it is closed, see {@link Cursor#close()}.
+     */
+    public Cursor gatingCursor() {
+        return gatingCursor(sequence.get() + 1);
+    }
+
+    /**
+     * Returns new gating cursor that reads changes starting from the given sequence number, which must
+     * not have been overwritten yet. Writers wait for it until it is closed, see {@link Cursor#close()}.
+     *
+     * @param sequence the sequence number of the first change to read, at least 1.
+     */
+    public Cursor gatingCursor(long sequence) {
+        if (sequence <= 0)
+            throw new IllegalArgumentException("Invalid sequence: " + sequence);
+        Cursor cursor = new Cursor(sequence);
+        gates.add(cursor);
+        return cursor;
+    }
+
+    /**
+     * Takes the next sequence number, waiting until its cell is read by all gating cursors. Writers of smaller
+     * sequence numbers wait for fewer changes to be read, so consumers never wait for writers that wait for them.
+     */
+    long next() {
+        long sequence = this.sequence.incrementAndGet();
+        for (Cursor gate : gates) {
+            while (sequence - gate.next > mask && !gate.closed)
+                Thread.yield();
+        }
+        return sequence;
+    }
+
+    /**
+     * Publishes change unless its cell already holds a newer change, which happens only when
+     * the publishing thread was delayed for the whole lap of the ring.
+     */
+    void publish(Change change) {
+        int index = (int) change.getSequence() & mask;
+        while (true) {
+            Change current = changes.get(index);
+            if (current != null && current.getSequence() > change.getSequence())
+                return;
+            if (changes.compareAndSet(index, current, change))
+                return;
+        }
+    }
+
+    /**
+     * Publishes a skip for a sequence number that was not used.
+     */
+    void skip(long sequence) {
+        publish(new Change(sequence, Change.SKIP, null, null, null));
+    }
+
+    /**
+     * Position of a consumer in the feed. Cursors of different consumers are independent.
+     * This class is not thread-safe.
+     */
+    public class Cursor {
+        private volatile long next;
+        private volatile boolean closed;
+
+        Cursor(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Returns sequence number of the next change to read.
+         */
+        public long getNextSequence() {
+            return next;
+        }
+
+        /**
+         * Reads published changes in the order of their sequence numbers, stopping at the first sequence number
+         * that is not published yet.
+         *
+         * @param buffer array to read changes into.
+         * @return the number of changes that were read, which is zero when there are no new changes.
+         * @throws IllegalStateException when the next change was overwritten because this consumer fell behind.
+         */
+        public int poll(Change[] buffer) {
+            long next = this.next;
+            int size = 0;
+            while (size < buffer.length) {
+                Change change = changes.get((int) next & mask);
+                if (change == null || change.getSequence() < next)
+                    break;
+                if (change.getSequence() > next)
+                    throw new IllegalStateException("Change " + next + " was overwritten");
+                next++;
+                if (change.getKind() != Change.SKIP)
+                    buffer[size++] = change;
+            }
+            this.next = next;
+            return size;
+        }
+
+        /**
+         * Stops holding back writers if this is a gating cursor. The cursor can still be read.
+         */
+        public void close() {
+            closed = true;
+            gates.remove(this);
+        }
+    }
+}
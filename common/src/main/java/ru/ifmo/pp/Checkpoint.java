@@ -0,0 +1,78 @@
+package ru.ifmo.pp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Checkpoint of amounts in all accounts in a memory-mapped file of the directory of {@link WriteAheadLog}.
+ * <p>
+ * <p>A checkpoint is fuzzy: amounts are copied one by one while changes keep being logged, so every amount is
+ * the result of some change that was logged after the position of the checkpoint or of the last change before it.
+ * Records of the log have resulting amounts, so replaying them from the position of the checkpoint restores
+ * the exact state at the end of the log, provided that all changes copied into the checkpoint are durable.
+ * Thus the checkpoint is written to a temporary file, and it replaces the previous one with
+ * {@link #commit(File)} only after the log is forced up to the position where copying has ended.
+ * <p>
+ * <p>The file is {@code [position][n][amount] * n}.
+ */
+class Checkpoint {
+    static final String FILE_NAME = "checkpoint";
+
+    private static final String TEMP_FILE_NAME = "checkpoint.tmp";
+    private static final int HEADER_SIZE = 12; // position and the number of accounts
+
+    /**
+     * Writes amounts to the temporary checkpoint file and forces it.
+     *
+     * @param position position in the log such that all changes before it are in the amounts.
+     */
+    static void write(File directory, long position, AtomicLongArray amounts) throws IOException {
+        int n = amounts.length();
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, TEMP_FILE_NAME), "rw")) {
+            file.setLength(0);
+            MappedByteBuffer out = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 8L * n);
+            out.putLong(position).putInt(n);
+            for (int i = 0; i < n; i++)
+                out.putLong(amounts.get(i));
+            out.force();
+        }
+    }
+
+    /**
+     * Replaces the checkpoint with the temporary one.
+     */
+    static void commit(File directory) throws IOException {
+        Files.move(new File(directory, TEMP_FILE_NAME).toPath(), new File(directory, FILE_NAME).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads amounts from the checkpoint.
+     *
+     * @return position in the log to replay from or -1 if there is no checkpoint.
+     * @throws IOException when the checkpoint cannot be read or has a different number of accounts.
+     */
+    static long read(File directory, long[] amounts) throws IOException {
+        File checkpoint = new File(directory, FILE_NAME);
+        if (!checkpoint.exists())
+            return -1;
+        try (RandomAccessFile file = new RandomAccessFile(checkpoint, "r")) {
+            if (file.length() < HEADER_SIZE)
+                throw new IOException("Checkpoint is too short: " + file.length());
+            MappedByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            long position = in.getLong();
+            int n = in.getInt();
+            if (n != amounts.length || file.length() != HEADER_SIZE + 8L * n)
+                throw new IOException("Checkpoint has " + n + " accounts instead of " + amounts.length);
+            for (int i = 0; i < n; i++)
+                amounts[i] = in.getLong();
+            return position;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log of the coordinator of two-phase commit in {@link PartitionedBank}. This class is thread-safe.
+ * <p>
+ * <p>A transaction is logged when it begins, its decision is logged after all participants have voted and before
+ * any of them applies it, and the transaction is removed from the log when all participants have applied the
+ * decision. Thus the log always knows the outcome of every transaction that may still be prepared by some
+ * participant, see {@link #getState(long)}.
+ * <p>
+ * <p>A log that is opened in a directory is durable. It keeps a {@link WriteAheadLog} of commit and end records,
+ * and waits until a commit record is on the disk before participants apply the decision, and until an end record
+ * is on the disk before they are released. A commit record keeps resulting amounts of the accounts of the
+ * transaction, so transactions that were committed but have not ended before a crash are in doubt and are redone
+ * when the log is opened again, see {@link #getInDoubt()}. Aborts are not logged, a transaction without
+ * a commit record is presumed to be aborted. Coordinators wait for the disk together, so a single force
+ * makes records of all of them durable. Segments that have no records of active transactions are deleted.
+ * <p>
+ * <p>A log that fails to write fails all later transactions with {@link IllegalStateException}, and
+ * the accounts of a transaction that was being logged stay prepared until the log is recovered.
+ */
+public class CoordinatorLog implements Closeable {
+    /**
+     * State of a transaction whose participants are voting.
+     */
+    public static final int PREPARING = 0;
+
+    /**
+     * State of a committed transaction that is being applied by participants.
+     */
+    public static final int COMMITTED = 1;
+
+    /**
+     * State of an aborted transaction whose participants are being released.
+     */
+    public static final int ABORTED = 2;
+
+    /**
+     * State of a transaction that is not in the log, because it has ended or has not begun.
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Index of the first entry of a record, which keeps identifier of the transaction instead of an amount.
+     */
+    private static final int COMMIT = -1;
+    private static final int END = -2;
+
+    private final AtomicLong lastId = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private final ConcurrentHashMap<Long, Integer> states = new ConcurrentHashMap<>();
+
+    /**
+     * Write-ahead log that is appended under the lock of this object, null when the log is in memory.
+     */
+    private final WriteAheadLog wal;
+    private final File directory;
+    private final long segmentSize;
+    private final List<Transaction> inDoubt;
+
+    /**
+     * Positions of commit records of committed transactions that have not ended yet.
+     */
+    private final ConcurrentHashMap<Long, Long> positions = new ConcurrentHashMap<>();
+
+    /**
+     * Position before which segments were deleted, guarded by the lock of this object.
+     */
+    private long deletedPosition;
+
+    private final Object forceLock = new Object();
+    private volatile long forcedPosition;
+    private volatile IOException failure;
+
+    /**
+     * Creates new log in memory.
+     */
+    public CoordinatorLog() {
+        wal = null;
+        directory = null;
+        segmentSize = 0;
+        inDoubt = Collections.emptyList();
+    }
+
+    /**
+     * Opens durable log in the directory with segments of the default size.
+     *
+     * @throws IOException when the log cannot be read or written.
+     */
+    public CoordinatorLog(File directory) throws IOException {
+        this(directory, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens durable log in the directory and finds transactions that are in doubt.
+     *
+     * @param directory directory of segments, it is created if it does not exist.
+     * @param segmentSize the size of a segment after which the next one is started.
+     * @throws IOException when the log cannot be read or written.
+     */
+    public CoordinatorLog(File directory, long segmentSize) throws IOException {
+        final Map<Long, Transaction> committed = new LinkedHashMap<>();
+        wal = WriteAheadLog.open(directory, segmentSize, new WriteAheadLog.Handler() {
+            @Override
+            public void record(ByteBuffer record) throws IOException {
+                int size = record.getInt() - 1;
+                if (size < 0)
+                    throw new IOException("Log has empty record");
+                int kind = record.getInt();
+                long id = record.getLong();
+                if (kind == END && size == 0) {
+                    committed.remove(id);
+                } else if (kind == COMMIT) {
+                    int[] indices = new int[size];
+                    long[] amounts = new long[size];
+                    for (int k = 0; k < size; k++) {
+                        indices[k] = record.getInt();
+                        amounts[k] = record.getLong();
+                    }
+                    committed.put(id, new Transaction(id, indices, amounts));
+                } else {
+                    throw new IOException("Log has invalid record of transaction " + id);
+                }
+                if (id > lastId.get())
+                    lastId.set(id);
+            }
+        });
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        inDoubt = Collections.unmodifiableList(new ArrayList<>(committed.values()));
+        for (Transaction transaction : inDoubt) {
+            states.put(transaction.id, COMMITTED);
+            positions.put(transaction.id, 0L);
+        }
+    }
+
+    /**
+     * Returns transactions that were committed but had not ended when the log was opened,
+     * in the order of their commits. They stay in the log until they are ended by {@link #end(long)}.
+     */
+    List<Transaction> getInDoubt() {
+        return inDoubt;
+    }
+
+    /**
+     * Logs a new transaction.
+     *
+     * @return identifier of the transaction.
+     */
+    long begin() {
+        long id = lastId.incrementAndGet();
+        states.put(id, PREPARING);
+        return id;
+    }
+
+    /**
+     * Logs commit of the transaction and waits until it is durable.
+     *
+     * @param indices indices of accounts of the transaction.
+     * @param amounts resulting amounts of the accounts.
+     */
+    void commit(long id, int[] indices, long[] amounts) {
+        if (!states.replace(id, PREPARING, COMMITTED))
+            throw new IllegalStateException("Transaction " + id + " is not preparing");
+        commits.incrementAndGet();
+        if (wal != null)
+            write(COMMIT, id, indices, amounts);
+    }
+
+    /**
+     * Logs abort of the transaction, which is not written to the disk.
+     */
+    void abort(long id) {
+        if (!states.replace(id, PREPARING, ABORTED))
+            throw new IllegalStateException("Transaction " + id + " is not preparing");
+        aborts.incrementAndGet();
+    }
+
+    /**
+     * Removes the transaction after all participants have applied its decision, and waits until
+     * the end of a committed transaction is durable.
+     */
+    void end(long id) {
+        Integer state = states.remove(id);
+        if (state == null)
+            throw new IllegalStateException("Transaction " + id + " is not in the log");
+        if (wal != null && state == COMMITTED)
+            write(END, id, new int[0], new long[0]);
+    }
+
+    /**
+     * Appends record with the header entry and waits until the log is durable up to its end.
+     */
+    private void write(int kind, long id, int[] indices, long[] amounts) {
+        int size = indices.length + 1;
+        int[] entries = new int[size];
+        long[] values = new long[size];
+        entries[0] = kind;
+        values[0] = id;
+        System.arraycopy(indices, 0, entries, 1, indices.length);
+        System.arraycopy(amounts, 0, values, 1, amounts.length);
+        try {
+            long position;
+            synchronized (this) {
+                checkFailure();
+                if (kind == COMMIT)
+                    positions.put(id, wal.getPosition());
+                else
+                    positions.remove(id);
+                wal.append(new Change(id, Change.UPDATE, entries, null, values));
+                position = wal.getPosition();
+                if (kind == END)
+                    deleteSegments();
+            }
+            force(position);
+        } catch (IOException e) {
+            failure = e;
+            throw new IllegalStateException("Coordinator log has failed", e);
+        }
+    }
+
+    /**
+     * Waits until the log is durable up to the position. The thread that forces the log makes all records
+     * that were appended by then durable, and others wait for it and find their records forced.
+     */
+    private void force(long position) throws IOException {
+        if (forcedPosition >= position)
+            return;
+        synchronized (forceLock) {
+            if (forcedPosition >= position)
+                return;
+            checkFailure();
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                target = wal.getPosition();
+                channel = wal.write();
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // the next segment was started, and this one was forced before it was closed
+            }
+            forcedPosition = target;
+        }
+    }
+
+    /**
+     * Deletes segments before the oldest commit record of an active transaction,
+     * when it has moved by a segment.
+     */
+    private void deleteSegments() throws IOException {
+        long oldest = wal.getPosition();
+        for (long position : positions.values())
+            oldest = Math.min(oldest, position);
+        if (oldest - deletedPosition < segmentSize)
+            return;
+        WriteAheadLog.deleteBefore(directory, oldest);
+        deletedPosition = oldest;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("Coordinator log has failed", failure);
+    }
+
+    /**
+     * Returns state of the transaction, see {@link #PREPARING} and others.
+     */
+    public int getState(long id) {
+        Integer state = states.get(id);
+        return state == null ? UNKNOWN : state;
+    }
+
+    /**
+     * Returns the number of transactions that have begun but have not ended yet.
+     */
+    public int getActiveCount() {
+        return states.size();
+    }
+
+    /**
+     * Returns the number of committed transactions.
+     */
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * Returns the number of aborted transactions.
+     */
+    public long getAbortCount() {
+        return aborts.get();
+    }
+
+    /**
+     * Forces and closes the durable log. Transactions that have not ended stay in doubt.
+     */
+    @Override
+    public void close() throws IOException {
+        if (wal != null) {
+            synchronized (this) {
+                wal.close();
+            }
+        }
+    }
+
+    /**
+     * Committed transaction with resulting amounts of its accounts.
+     */
+    static class Transaction {
+        final long id;
+        final int[] indices;
+        final long[] amounts;
+
+        Transaction(long id, int[] indices, long[] amounts) {
+            this.id = id;
+            this.indices = indices;
+            this.amounts = amounts;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bank that makes changes of another bank durable in {@link WriteAheadLog} before it returns from operations.
+ * This class is thread-safe.
+ * <p>
+ * <p>The underlying bank publishes committed changes to {@link ChangeFeed}, and a single log writer thread tails
+ * the feed in batches, appends changes to the log in the order of their sequence numbers, and forces all of
+ * them with a single call. An operation returns after the writer has forced the last sequence number that
+ * was taken when the operation completed, so the operations of all threads that complete while the log
+ * is forced are committed together by the next force. The commit delay is the time the writer keeps
+ * collecting changes after the first one before it forces them: zero gives the lowest latency, and a longer
+ * delay makes fewer calls to force under load at the cost of latency of every operation.
+ * <p>
+ * <p>Reading operations also wait for changes that they can see to become durable, so no result is ever
+ * observed that could be lost by a crash. All operations have to go through this bank. The writer reads the feed
+ * with a gating cursor, so when more changes are committed while the log is forced than the feed can hold,
+ * operations wait for the writer to catch up instead of overwriting changes that are not logged yet.
+ * A writer that fails stops holding back operations, and all of them throw {@link IllegalStateException}.
+ * <p>
+ * <p>The writer also keeps the logged amount of every account, and {@link #checkpoint()} copies these amounts into
+ * a memory-mapped {@link Checkpoint} without stopping the writer or the bank. Then the log is replayed only from
+ * the position of the last checkpoint, and the segments before it are deleted. Checkpoints are taken by a
+ * background thread when the checkpoint interval is positive.
+ * <p>
+ * <p>On creation the bank is restored from the checkpoint and the log in the directory,
+ * see {@link WriteAheadLog#replay(File, Bank)}.
+ */
+public class DurableBank implements Bank, Closeable {
+    /**
+     * The maximal number of changes that the writer takes from the feed at once.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * The time the writer parks for when it cannot be woken up by new changes.
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Bank bank;
+    private final ChangeFeed feed;
+    private final File directory;
+    private final WriteAheadLog log;
+    private final long commitDelay;
+    private final Thread writer;
+
+    /**
+     * Amounts of accounts after the changes that were appended to the log. They are updated by the writer
+     * and are copied to checkpoints.
+     */
+    private final AtomicLongArray logged;
+
+    /**
+     * Position in the log up to which it is durable.
+     */
+    private volatile long forcedPosition;
+
+    private final long checkpointInterval;
+
+    /**
+     * Thread that takes checkpoints or null when they are taken only by {@link #checkpoint()}.
+     */
+    private final Thread checkpointer;
+
+    /**
+     * The exception that stopped the checkpointer or null.
+     */
+    private volatile IOException checkpointFailure;
+
+    /**
+     * Lock that is held while a checkpoint is taken.
+     */
+    private final Object checkpointLock = new Object();
+
+    /**
+     * The last sequence number that is durable.
+     */
+    private volatile long durable;
+
+    /**
+     * The number of times the log was forced.
+     */
+    private volatile long forces;
+
+    /**
+     * True when the writer is parked or is about to park.
+     */
+    private volatile boolean parked;
+
+    private volatile boolean closed;
+
+    /**
+     * The exception that stopped the writer or null.
+     */
+    private volatile Throwable failure;
+
+    /**
+     * Monitor for threads that wait for their changes to become durable.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Creates new bank instance that restores amounts of the underlying bank from the log and starts the writer.
+     *
+     * @param bank bank with zero amounts in all accounts that publishes committed changes to the feed.
+     * @param feed feed of committed changes of the bank.
+     * @param directory directory of the log.
+     * @param commitDelay the time to collect changes before they are forced, in nanoseconds.
+     * @throws IOException when the log cannot be read or written.
+     */
+    public DurableBank(Bank bank, ChangeFeed feed, File directory, long commitDelay) throws IOException {
+        this(bank, feed, directory, commitDelay, WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates new bank instance that restores amounts of the underlying bank from the log and starts the writer.
+     *
+     * @param bank bank with zero amounts in all accounts that publishes committed changes to the feed.
+     * @param feed feed of committed changes of the bank.
+     * @param directory directory of the log.
+     * @param commitDelay the time to collect changes before they are forced, in nanoseconds.
+     * @param segmentSize the size of a segment of the log.
+     * @throws IOException when the log cannot be read or written.
+     */
+    public DurableBank(Bank bank, ChangeFeed feed, File directory, long commitDelay, long segmentSize)
+            throws IOException {
+        this(bank, feed, directory, commitDelay, segmentSize, 0);
+    }
+
+    /**
+     * Creates new bank instance that restores amounts of the underlying bank from the checkpoint and the log,
+     * and starts the writer and the checkpointer.
+     *
+     * @param bank bank with zero amounts in all accounts that publishes committed changes to the feed.
+     * @param feed feed of committed changes of the bank.
+     * @param directory directory of the log.
+     * @param commitDelay the time to collect changes before they are forced, in nanoseconds.
+     * @param segmentSize the size of a segment of the log.
+     * @param checkpointInterval the time between checkpoints in nanoseconds or 0 to take them only on demand.
+     * @throws IOException when the log cannot be read or written.
+     */
+    public DurableBank(Bank bank, ChangeFeed feed, File directory, long commitDelay, long segmentSize,
+                       long checkpointInterval) throws IOException {
+        if (commitDelay < 0)
+            throw new IllegalArgumentException("Invalid commit delay: " + commitDelay);
+        if (checkpointInterval < 0)
+            throw new IllegalArgumentException("Invalid checkpoint interval: " + checkpointInterval);
+        this.bank = bank;
+        this.feed = feed;
+        this.directory = directory;
+        this.commitDelay = commitDelay;
+        this.checkpointInterval = checkpointInterval;
+        long[] amounts = new long[bank.getNumberOfAccounts()];
+        log = WriteAheadLog.open(directory, segmentSize, amounts);
+        forcedPosition = log.getPosition();
+        logged = new AtomicLongArray(amounts);
+        for (int i = 0; i < amounts.length; i++) {
+            if (amounts[i] > 0)
+                bank.deposit(i, amounts[i]);
+        }
+        // changes made by replay are already in the log
+        final ChangeFeed.Cursor cursor = feed.gatingCursor();
+        durable = cursor.getNextSequence() - 1;
+        writer = new Thread("DurableBank-writer") {
+            @Override
+            public void run() {
+                write(cursor);
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        if (checkpointInterval > 0) {
+            checkpointer = new Thread("DurableBank-checkpointer") {
+                @Override
+                public void run() {
+                    takeCheckpoints();
+                }
+            };
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        } else {
+            checkpointer = null;
+        }
+    }
+
+    /**
+     * Returns position after the last record that was appended to the log.
+     */
+    public long getLogPosition() {
+        synchronized (log) {
+            return log.getPosition();
+        }
+    }
+
+    /**
+     * Returns the number of times the log was forced, which is less than the number of changes when
+     * concurrent changes are committed together.
+     */
+    public long getForceCount() {
+        return forces;
+    }
+
+    /**
+     * Takes checkpoint of the amounts that are logged so far. Only one checkpoint is taken at a time.
+     *
+     * @return position in the log of the checkpoint.
+     * @throws IOException when the checkpoint cannot be written or the log has failed.
+     */
+    public long checkpoint() throws IOException {
+        checkOpen();
+        return takeCheckpoint();
+    }
+
+    private long takeCheckpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long start;
+            synchronized (log) {
+                // all changes before this position are already in logged amounts
+                start = log.getPosition();
+            }
+            Checkpoint.write(directory, start, logged);
+            long end;
+            synchronized (log) {
+                end = log.getPosition();
+            }
+            awaitForced(end);
+            Checkpoint.commit(directory);
+            WriteAheadLog.deleteBefore(directory, start);
+            return start;
+        }
+    }
+
+    /**
+     * Stops the checkpointer, waits until all changes are durable, stops the writer, and closes the log.
+     * Operations must not be invoked after this method.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        boolean interrupted = false;
+        if (checkpointer != null)
+            interrupted = join(checkpointer);
+        LockSupport.unpark(writer);
+        interrupted |= join(writer);
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        synchronized (log) {
+            log.close();
+        }
+        if (failure != null)
+            throw new IOException("Write-ahead log has failed", failure);
+        if (checkpointFailure != null)
+            throw checkpointFailure;
+    }
+
+    /**
+     * Waits for the thread to terminate after it was signalled to stop.
+     *
+     * @return true if the current thread was interrupted.
+     */
+    private static boolean join(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return bank.getNumberOfAccounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        checkOpen();
+        long result = bank.getAmount(index);
+        awaitDurable();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        checkOpen();
+        long result = bank.getTotalAmount();
+        awaitDurable();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        checkOpen();
+        long result = bank.getTotalAmount(fromIndex, toIndex);
+        awaitDurable();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        checkOpen();
+        long result = bank.deposit(index, amount);
+        awaitDurable();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        checkOpen();
+        long result = bank.withdraw(index, amount);
+        awaitDurable();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        checkOpen();
+        bank.transfer(fromIndex, toIndex, amount);
+        awaitDurable();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        checkOpen();
+        long result = bank.tryDeposit(index, amount);
+        awaitDurable();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        checkOpen();
+        long result = bank.tryWithdraw(index, amount);
+        awaitDurable();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        checkOpen();
+        int result = bank.tryTransfer(fromIndex, toIndex, amount);
+        awaitDurable();
+        return result;
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Bank is closed");
+    }
+
+    /**
+     * Waits until all sequence numbers that were taken so far are durable. This covers the change
+     * of the caller's operation and all changes that it could have seen.
+     */
+    private void awaitDurable() {
+        long sequence = feed.getLastSequence();
+        if (durable >= sequence)
+            return;
+        if (parked)
+            LockSupport.unpark(writer);
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (durable < sequence) {
+                if (failure != null)
+                    throw new IllegalStateException("Write-ahead log has failed", failure);
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Waits until the log is durable up to the position.
+     */
+    private void awaitForced(long position) throws IOException {
+        if (parked)
+            LockSupport.unpark(writer);
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (forcedPosition < position) {
+                if (failure != null)
+                    throw new IOException("Write-ahead log has failed", failure);
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * The loop of the checkpointer.
+     */
+    private void takeCheckpoints() {
+        try {
+            while (true) {
+                long deadline = System.nanoTime() + checkpointInterval;
+                long delay;
+                while ((delay = deadline - System.nanoTime()) > 0 && !closed)
+                    LockSupport.parkNanos(this, delay);
+                if (closed)
+                    return;
+                takeCheckpoint();
+            }
+        } catch (IOException e) {
+            checkpointFailure = e;
+        }
+    }
+
+    /**
+     * The loop of the writer. It appends changes while there are any, and forces them when the commit delay
+     * has passed since the first change that is not durable yet. The cursor is closed when the writer stops.
+     */
+    private void write(ChangeFeed.Cursor cursor) {
+        Change[] batch = new Change[BATCH_SIZE];
+        long appended = durable;
+        long deadline = 0;
+        try {
+            while (true) {
+                int size = cursor.poll(batch);
+                if (size > 0) {
+                    synchronized (log) {
+                        for (int k = 0; k < size; k++) {
+                            Change change = batch[k];
+                            log.append(change);
+                            for (int m = 0; m < change.size(); m++)
+                                logged.lazySet(change.index(m), change.amount(m));
+                        }
+                    }
+                }
+                long last = cursor.getNextSequence() - 1;
+                if (last > appended) {
+                    if (appended == durable)
+                        deadline = System.nanoTime() + commitDelay;
+                    appended = last;
+                }
+                if (size == batch.length)
+                    continue;
+                if (appended > durable) {
+                    long delay = deadline - System.nanoTime();
+                    if (delay > 0 && !closed) {
+                        LockSupport.parkNanos(this, delay);
+                        continue;
+                    }
+                    synchronized (log) {
+                        log.force();
+                        forcedPosition = log.getPosition();
+                    }
+                    forces++; // written only by the writer
+                    durable = appended;
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                    continue;
+                }
+                if (cursor.getNextSequence() <= feed.getLastSequence()) {
+                    // a change is being published
+                    Thread.yield();
+                    continue;
+                }
+                if (closed)
+                    return;
+                parked = true;
+                // the writer is unparked by threads that take sequence numbers after this check
+                if (cursor.getNextSequence() > feed.getLastSequence())
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                parked = false;
+            }
+        } catch (Throwable t) {
+            failure = t;
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.ifmo.pp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Array of long words outside of the Java heap with volatile reads and writes and compareAndSet.
+ * This class is thread-safe.
+ * <p>
+ * <p>Words are kept in direct byte buffers, so that the garbage collector never traces them and frees them together
+ * with this array. A buffer holds at most 2 GiB, so a long array is split into chunks of equal size. Words are
+ * accessed with a {@link VarHandle} that views a buffer as longs, and every chunk is an aligned slice of its
+ * buffer, so that all accesses are atomic.
+ */
+class OffHeapLongArray {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Binary logarithm of the number of words in a chunk, so that a chunk takes 1 GiB.
+     */
+    static final int DEFAULT_CHUNK_SHIFT = 27;
+
+    private final long length;
+    private final int chunkShift;
+    private final long chunkMask;
+
+    /**
+     * Chunks aligned to 8 bytes.
+     */
+    private final ByteBuffer[] chunks;
+
+    /**
+     * Creates new array filled with zeros.
+     *
+     * @param length the number of words.
+     */
+    OffHeapLongArray(long length) {
+        this(length, DEFAULT_CHUNK_SHIFT);
+    }
+
+    OffHeapLongArray(long length, int chunkShift) {
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid length: " + length);
+        this.length = length;
+        this.chunkShift = chunkShift;
+        chunkMask = (1L << chunkShift) - 1;
+        chunks = new ByteBuffer[(int) ((length + chunkMask) >>> chunkShift)];
+        for (int k = 0; k < chunks.length; k++) {
+            long words = Math.min(length - ((long) k << chunkShift), 1L << chunkShift);
+            // direct buffers are zeroed, and 8 bytes more are allocated to align the chunk
+            chunks[k] = ByteBuffer.allocateDirect((int) (words * 8 + 8)).alignedSlice(8);
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    long get(long index) {
+        return (long) LONGS.getVolatile(chunk(index), offset(index));
+    }
+
+    void set(long index, long value) {
+        LONGS.setVolatile(chunk(index), offset(index), value);
+    }
+
+    boolean compareAndSet(long index, long expect, long update) {
+        return LONGS.compareAndSet(chunk(index), offset(index), expect, update);
+    }
+
+    private ByteBuffer chunk(long index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + length);
+        return chunks[(int) (index >>> chunkShift)];
+    }
+
+    private int offset(long index) {
+        return (int) ((index & chunkMask) << 3);
+    }
+}
@@ -0,0 +1,615 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bank that splits accounts into contiguous ranges between several node banks.
+ * This class is thread-safe.
+ * <p>
+ * <p>An operation on accounts of a single node is performed by the node itself, so nodes never contend with each
+ * other and writes scale with the number of nodes when most transfers stay within one node. It only holds its
+ * accounts in shared mode, see {@link Node#share(int)}, so that they are not prepared by a transaction meanwhile,
+ * and operations on different accounts do not contend at all.
+ * <p>
+ * <p>A transfer between accounts of different nodes is a two-phase commit with the nodes as participants and
+ * the calling thread as the coordinator. In the prepare phase every participant prepares its account, which waits
+ * for operations that hold it in shared mode and keeps new ones waiting, and votes whether the account can be
+ * changed by the amount. Participants are prepared in the order of nodes, so that transactions never deadlock.
+ * The decision is logged in {@link CoordinatorLog} with the resulting amounts before the participants apply it,
+ * and the end of the transaction is logged before they release their accounts. When the log is durable,
+ * transactions that it has in doubt are redone on the nodes before the bank is used, see
+ * {@link #PartitionedBank(CoordinatorLog, Bank...)}.
+ * <p>
+ * <p>A transfer that would both underflow and overflow reports {@link #UNDERFLOW} whatever the node banks report.
+ * A transfer within a node that the node rejects with {@link #OVERFLOW} is decided again with both accounts
+ * prepared, so that the status does not depend on the order of checks in the node bank.
+ * <p>
+ * <p>Every node keeps its own snapshot, and no counter is shared by operations of different nodes. A node counts
+ * started and finished operations of two kinds, like a seqlock: updates that change the total of the node, which
+ * are deposits, withdrawals and parts of transactions, and transfers within the node, which do not change it.
+ * The node also keeps its total, which updates change while they are in progress. {@link #getTotalAmount()} sums
+ * totals of the nodes and validates that no update of any node has been in progress meanwhile, so transfers within
+ * nodes never fail it. A sum of a range reads the nodes that the range covers partially from the node banks and
+ * validates transfers of these nodes as well. A transaction between nodes is counted by both nodes as a whole,
+ * so it is either entirely before or entirely after a valid sum. When the sum fails validation
+ * {@link #OPTIMISTIC_TOTALS} times in a row, it takes a coordinated cut of the nodes of the range instead: new
+ * operations of the validated kinds on these nodes wait until the sum is valid, and other nodes keep working.
+ */
+public class PartitionedBank implements Bank {
+    /**
+     * The number of attempts of {@link #getTotalAmount()} before it takes a coordinated cut.
+     */
+    static final int OPTIMISTIC_TOTALS = 4;
+
+    private final int numberOfAccounts;
+    private final Node[] nodes;
+    private final CoordinatorLog log;
+
+    /**
+     * The number of sums that have taken a coordinated cut.
+     */
+    private final LongAdder cutCount = new LongAdder();
+
+    /**
+     * Creates new bank instance with nodes of equal size.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param partitions the maximal number of nodes.
+     * @param factory factory of node banks.
+     */
+    public PartitionedBank(int n, int partitions, NodeFactory factory) {
+        this(newNodes(n, partitions, factory));
+    }
+
+    /**
+     * Creates new bank instance on top of nodes with a log in memory. Accounts of the first node come first,
+     * and so on.
+     *
+     * @param banks nodes that have at least one account each.
+     */
+    public PartitionedBank(Bank... banks) {
+        this(new CoordinatorLog(), banks);
+    }
+
+    /**
+     * Creates new bank instance on top of nodes with the log. Transactions that the log has in doubt are redone:
+     * their accounts are set to the resulting amounts, and the transactions are ended.
+     *
+     * @param log log of two-phase commits, which has been opened after the nodes have been restored.
+     * @param banks nodes that have at least one account each.
+     * @throws IllegalStateException when the log has accounts that the nodes do not have.
+     */
+    public PartitionedBank(CoordinatorLog log, Bank... banks) {
+        this.log = log;
+        nodes = new Node[banks.length];
+        int start = 0;
+        for (int k = 0; k < banks.length; k++) {
+            if (banks[k].getNumberOfAccounts() <= 0)
+                throw new IllegalArgumentException("Node " + k + " has no accounts");
+            nodes[k] = new Node(k, start, banks[k]);
+            start += banks[k].getNumberOfAccounts();
+        }
+        numberOfAccounts = start;
+        for (CoordinatorLog.Transaction transaction : log.getInDoubt()) {
+            for (int k = 0; k < transaction.indices.length; k++) {
+                int index = transaction.indices[k];
+                if (index < 0 || index >= numberOfAccounts)
+                    throw new IllegalStateException("Log has account " + index + " out of " + numberOfAccounts);
+                Node node = nodeOf(index);
+                node.set(index - node.start, transaction.amounts[k]);
+            }
+            log.end(transaction.id);
+        }
+        for (Node node : nodes)
+            node.total.add(node.bank.getTotalAmount());
+    }
+
+    private static Bank[] newNodes(int n, int partitions, NodeFactory factory) {
+        if (n <= 0 || partitions <= 0)
+            throw new IllegalArgumentException("Invalid number of accounts or partitions: " + n + ", " + partitions);
+        int size = (n + partitions - 1) / partitions;
+        Bank[] banks = new Bank[(n + size - 1) / size];
+        for (int k = 0; k < banks.length; k++)
+            banks[k] = factory.newNode(Math.min(size, n - k * size));
+        return banks;
+    }
+
+    /**
+     * Returns the number of nodes.
+     */
+    public int getNumberOfPartitions() {
+        return nodes.length;
+    }
+
+    /**
+     * Returns the log of two-phase commits.
+     */
+    public CoordinatorLog getCoordinatorLog() {
+        return log;
+    }
+
+    /**
+     * Returns the number of sums that have failed validation {@link #OPTIMISTIC_TOTALS} times and have taken
+     * a coordinated cut.
+     */
+    long getCutCount() {
+        return cutCount.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return numberOfAccounts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        Node node = nodeOf(index);
+        int local = index - node.start;
+        node.share(local);
+        try {
+            return node.bank.getAmount(local);
+        } finally {
+            node.unshare(local);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return getTotalAmount(0, numberOfAccounts);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > numberOfAccounts || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        if (fromIndex == toIndex)
+            return 0;
+        int first = nodeOf(fromIndex).number;
+        int last = nodeOf(toIndex - 1).number;
+        long[] before = new long[2 * (last - first + 1)];
+        for (int attempt = 0; attempt < OPTIMISTIC_TOTALS; attempt++) {
+            long sum = sum(first, last, fromIndex, toIndex, before);
+            if (sum >= 0)
+                return sum;
+        }
+        cutCount.increment();
+        for (int k = first; k <= last; k++)
+            nodes[k].cut(nodes[k].isCoveredBy(fromIndex, toIndex));
+        try {
+            while (true) {
+                long sum = sum(first, last, fromIndex, toIndex, before);
+                if (sum >= 0)
+                    return sum;
+                Thread.yield();
+            }
+        } finally {
+            for (int k = first; k <= last; k++)
+                nodes[k].uncut(nodes[k].isCoveredBy(fromIndex, toIndex));
+        }
+    }
+
+    /**
+     * Sums parts of the range in the nodes and validates that no operation that could change the sum has been
+     * in progress meanwhile. A node that the range covers entirely gives its total, and the others give sums
+     * from their banks. Finished counters of all nodes are read before started ones, so that the nodes that
+     * are read equal have not changed during the common interval between the reads.
+     *
+     * @param before array for finished counters of two kinds for every node.
+     * @return the sum or -1 if it is not valid.
+     */
+    private long sum(int first, int last, int fromIndex, int toIndex, long[] before) {
+        for (int k = first; k <= last; k++) {
+            Node node = nodes[k];
+            before[2 * (k - first)] = node.updates.finished.sum();
+            if (!node.isCoveredBy(fromIndex, toIndex))
+                before[2 * (k - first) + 1] = node.transfers.finished.sum();
+        }
+        long sum = 0;
+        for (int k = first; k <= last; k++) {
+            Node node = nodes[k];
+            if (node.isCoveredBy(fromIndex, toIndex)) {
+                sum += node.total.sum();
+            } else {
+                int from = Math.max(fromIndex, node.start) - node.start;
+                int to = Math.min(toIndex, node.end) - node.start;
+                sum += node.bank.getTotalAmount(from, to);
+            }
+        }
+        for (int k = first; k <= last; k++) {
+            Node node = nodes[k];
+            if (node.updates.started.sum() != before[2 * (k - first)])
+                return -1;
+            if (!node.isCoveredBy(fromIndex, toIndex) && node.transfers.started.sum() != before[2 * (k - first) + 1])
+                return -1;
+        }
+        return sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long result = tryDeposit(index, amount);
+        if (result == OVERFLOW)
+            throw new IllegalStateException("Overflow");
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        Node node = nodeOf(index);
+        int local = index - node.start;
+        node.updates.enter();
+        node.share(local);
+        try {
+            long result = node.bank.tryDeposit(local, amount);
+            if (result >= 0)
+                node.total.add(amount);
+            return result;
+        } finally {
+            node.unshare(local);
+            node.updates.exit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long result = tryWithdraw(index, amount);
+        if (result == UNDERFLOW)
+            throw new IllegalStateException("Underflow");
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        Node node = nodeOf(index);
+        int local = index - node.start;
+        node.updates.enter();
+        node.share(local);
+        try {
+            long result = node.bank.tryWithdraw(local, amount);
+            if (result >= 0)
+                node.total.add(-amount);
+            return result;
+        } finally {
+            node.unshare(local);
+            node.updates.exit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        int status = tryTransfer(fromIndex, toIndex, amount);
+        if (status == UNDERFLOW)
+            throw new IllegalStateException("Underflow");
+        if (status == OVERFLOW)
+            throw new IllegalStateException("Overflow");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        Node source = nodeOf(fromIndex);
+        Node target = nodeOf(toIndex);
+        int from = fromIndex - source.start;
+        int to = toIndex - target.start;
+        if (source == target) {
+            source.transfers.enter();
+            try {
+                int status = source.transfer(from, to, amount);
+                // the node may have checked overflow first
+                return status == OVERFLOW ? source.transferPrepared(from, to, amount) : status;
+            } finally {
+                source.transfers.exit();
+            }
+        }
+        Node lower = source.number < target.number ? source : target;
+        Node higher = source.number < target.number ? target : source;
+        while (true) {
+            lower.updates.enter();
+            if (higher.updates.tryEnter())
+                break;
+            // the transaction never waits for a cut while it is counted in progress
+            lower.updates.exit();
+            higher.updates.await();
+        }
+        try {
+            long id = log.begin();
+            long fromAmount;
+            long toAmount;
+            if (source == lower) {
+                fromAmount = source.prepare(from);
+                toAmount = target.prepare(to);
+            } else {
+                toAmount = target.prepare(to);
+                fromAmount = source.prepare(from);
+            }
+            int status = status(fromAmount, toAmount, amount);
+            if (status == OK) {
+                log.commit(id, new int[] {fromIndex, toIndex},
+                        new long[] {fromAmount - amount, toAmount + amount});
+                source.bank.withdraw(from, amount);
+                target.bank.deposit(to, amount);
+                source.total.add(-amount);
+                target.total.add(amount);
+            } else {
+                log.abort(id);
+            }
+            log.end(id);
+            source.release(from);
+            target.release(to);
+            return status;
+        } finally {
+            higher.updates.exit();
+            lower.updates.exit();
+        }
+    }
+
+    /**
+     * Returns status of transfer between accounts with the given amounts, underflow first.
+     */
+    private static int status(long fromAmount, long toAmount, long amount) {
+        return fromAmount < amount ? UNDERFLOW : toAmount > MAX_AMOUNT - amount ? OVERFLOW : OK;
+    }
+
+    private Node nodeOf(int index) {
+        if (index < 0 || index >= numberOfAccounts)
+            throw new IndexOutOfBoundsException("Invalid account index: " + index);
+        int low = 0;
+        int high = nodes.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (nodes[mid].start <= index)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return nodes[low];
+    }
+
+    /**
+     * Factory of node banks, which are implemented by modules that use this bank.
+     */
+    public interface NodeFactory {
+        /**
+         * Creates new empty node bank.
+         *
+         * @param n the number of accounts of the node.
+         */
+        Bank newNode(int n);
+    }
+
+    /**
+     * Counters of started and finished operations of one kind on a node, like a seqlock, and the number of
+     * coordinated cuts that keep new operations of the kind waiting. Every started operation is finished eventually.
+     */
+    private static class Gate {
+        final LongAdder started = new LongAdder();
+        final LongAdder finished = new LongAdder();
+        final AtomicInteger cuts = new AtomicInteger();
+
+        /**
+         * Counts start of an operation after coordinated cuts, if any, have been taken.
+         */
+        void enter() {
+            await();
+            started.increment();
+        }
+
+        /**
+         * Counts start of an operation unless a coordinated cut is being taken.
+         */
+        boolean tryEnter() {
+            if (cuts.get() > 0)
+                return false;
+            started.increment();
+            return true;
+        }
+
+        void exit() {
+            finished.increment();
+        }
+
+        /**
+         * Waits while coordinated cuts are being taken.
+         */
+        void await() {
+            while (cuts.get() > 0)
+                Thread.yield();
+        }
+    }
+
+    /**
+     * Node bank with states of its accounts. It is also a participant of two-phase commit.
+     */
+    private static class Node {
+        /**
+         * Bit of the state of an account that is prepared by a transaction, the rest of the state
+         * is the number of operations that hold the account in shared mode.
+         */
+        static final int PREPARED = Integer.MIN_VALUE;
+
+        final int number;
+        final int start;
+        final int end;
+        final Bank bank;
+        final AtomicIntegerArray states;
+
+        /**
+         * Operations that change the total of the node, and transfers within the node.
+         */
+        final Gate updates = new Gate();
+        final Gate transfers = new Gate();
+
+        /**
+         * Total amount of the node, which is changed by updates while they are counted in progress.
+         */
+        final LongAdder total = new LongAdder();
+
+        Node(int number, int start, Bank bank) {
+            this.number = number;
+            this.start = start;
+            this.end = start + bank.getNumberOfAccounts();
+            this.bank = bank;
+            states = new AtomicIntegerArray(bank.getNumberOfAccounts());
+        }
+
+        /**
+         * Holds the account in shared mode, waiting while it is prepared.
+         */
+        void share(int local) {
+            while (!tryShare(local))
+                Thread.yield();
+        }
+
+        boolean tryShare(int local) {
+            while (true) {
+                int state = states.get(local);
+                if (state < 0)
+                    return false;
+                if (states.compareAndSet(local, state, state + 1))
+                    return true;
+            }
+        }
+
+        void unshare(int local) {
+            states.decrementAndGet(local);
+        }
+
+        /**
+         * Transfers between accounts of this node while holding them in shared mode. When the second account is
+         * prepared, the first one is released before waiting, so that a transaction never waits for this transfer.
+         */
+        int transfer(int from, int to, long amount) {
+            while (true) {
+                share(from);
+                if (tryShare(to))
+                    break;
+                unshare(from);
+                while (states.get(to) < 0)
+                    Thread.yield();
+            }
+            try {
+                return bank.tryTransfer(from, to, amount);
+            } finally {
+                unshare(to);
+                unshare(from);
+            }
+        }
+
+        /**
+         * Transfers between accounts of this node with both of them prepared, so that the status is decided
+         * by their amounts as they are.
+         */
+        int transferPrepared(int from, int to, long amount) {
+            long fromAmount;
+            long toAmount;
+            if (from < to) {
+                fromAmount = prepare(from);
+                toAmount = prepare(to);
+            } else {
+                toAmount = prepare(to);
+                fromAmount = prepare(from);
+            }
+            try {
+                int status = status(fromAmount, toAmount, amount);
+                if (status == OK)
+                    bank.transfer(from, to, amount);
+                return status;
+            } finally {
+                release(to);
+                release(from);
+            }
+        }
+
+        /**
+         * Prepares the account and waits for operations that hold it in shared mode. The account stays prepared
+         * until it is released after the transaction has ended.
+         *
+         * @return amount of the account.
+         */
+        long prepare(int local) {
+            while (true) {
+                int state = states.get(local);
+                if (state >= 0 && states.compareAndSet(local, state, state | PREPARED))
+                    break;
+                Thread.yield();
+            }
+            while (states.get(local) != PREPARED)
+                Thread.yield();
+            return bank.getAmount(local);
+        }
+
+        void release(int local) {
+            states.set(local, 0);
+        }
+
+        boolean isCoveredBy(int fromIndex, int toIndex) {
+            return fromIndex <= start && end <= toIndex;
+        }
+
+        /**
+         * Makes new updates of the node wait, and new transfers within the node too unless the range of
+         * the cut covers it entirely.
+         */
+        void cut(boolean covered) {
+            updates.cuts.incrementAndGet();
+            if (!covered)
+                transfers.cuts.incrementAndGet();
+        }
+
+        void uncut(boolean covered) {
+            updates.cuts.decrementAndGet();
+            if (!covered)
+                transfers.cuts.decrementAndGet();
+        }
+
+        /**
+         * Sets amount of the account, which is used by recovery before the bank is used.
+         */
+        void set(int local, long amount) {
+            long current = bank.getAmount(local);
+            if (current < amount)
+                bank.deposit(local, amount - current);
+            else if (current > amount)
+                bank.withdraw(local, current - amount);
+        }
+    }
+}
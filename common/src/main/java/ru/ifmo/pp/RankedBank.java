@@ -0,0 +1,244 @@
+package ru.ifmo.pp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bank facade that keeps an index of accounts ordered by their amounts, so that accounts with the largest or
+ * the smallest amounts are found without reading all accounts. Operations are performed by the underlying bank
+ * and then the index is refreshed for the accounts they have changed.
+ * This class is thread-safe when the underlying bank is, and the index itself is lock-free.
+ * <p>
+ * <p>The index is a lock-free skip list {@link #ranking} of {@link Entry} instances and {@link #entries} array
+ * references the current entry of every account. An entry is replaced only with compareAndSet by a thread that
+ * has read a different amount from the underlying bank after it has read the current entry, so refreshes of
+ * the same account by concurrent operations may come in any order, and the entry of every account holds its
+ * amount as soon as all operations on it have completed. Queries skip entries that are not current anymore.
+ * <p>
+ * <p>Queries are weakly consistent: they order accounts by amounts of their current entries, which may lag
+ * behind operations that are still in progress, and an account that is updated concurrently may be missed,
+ * so the result is not a snapshot of all accounts. When there are no concurrent updates, the result is exact.
+ * Only accounts that exist when the facade is created are indexed, and all updates must go through it.
+ */
+public class RankedBank implements Bank {
+    private static final Comparator<Entry> BY_AMOUNT = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int c = Long.compare(e1.amount, e2.amount);
+            if (c == 0)
+                c = Integer.compare(e1.index, e2.index);
+            return c != 0 ? c : Long.compare(e1.version, e2.version);
+        }
+    };
+
+    private final Bank bank;
+    private final AtomicReferenceArray<Entry> entries;
+    private final ConcurrentSkipListSet<Entry> ranking = new ConcurrentSkipListSet<>(BY_AMOUNT);
+
+    /**
+     * Creates new facade and indexes all accounts of the bank. The bank must not be updated concurrently.
+     *
+     * @param bank the underlying bank.
+     */
+    public RankedBank(Bank bank) {
+        this.bank = bank;
+        int n = bank.getNumberOfAccounts();
+        entries = new AtomicReferenceArray<>(n);
+        for (int i = 0; i < n; i++) {
+            Entry entry = new Entry(bank.getAmount(i), i, 0);
+            entries.set(i, entry);
+            ranking.add(entry);
+        }
+    }
+
+    /**
+     * Returns indices of at most k accounts with the largest amounts in descending order of amounts.
+     * Accounts with equal amounts are ordered by descending index.
+     * This method takes O(log n + k) time when accounts are not updated concurrently.
+     *
+     * @throws IllegalArgumentException when k &lt; 0.
+     */
+    public int[] topK(int k) {
+        return collect(ranking.descendingIterator(), k, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns indices of at most k accounts with the smallest amounts in ascending order of amounts.
+     * Accounts with equal amounts are ordered by ascending index.
+     * This method takes O(log n + k) time when accounts are not updated concurrently.
+     *
+     * @throws IllegalArgumentException when k &lt; 0.
+     */
+    public int[] bottomK(int k) {
+        return collect(ranking.iterator(), k, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns indices of all accounts with amounts strictly less than threshold in ascending order of amounts.
+     * This method takes O(log n + k) time, where k is the number of such accounts, when accounts are not
+     * updated concurrently.
+     */
+    public int[] accountsBelow(long threshold) {
+        return collect(ranking.iterator(), Integer.MAX_VALUE, threshold);
+    }
+
+    /**
+     * Collects indices of current entries in the iteration order until there are k of them or an entry
+     * with amount that is not less than limit is reached.
+     */
+    private int[] collect(Iterator<Entry> iterator, int k, long limit) {
+        if (k < 0)
+            throw new IllegalArgumentException("Invalid number of accounts: " + k);
+        int[] result = new int[Math.min(k, 16)];
+        int size = 0;
+        while (size < k && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.amount >= limit)
+                break;
+            if (entries.get(entry.index) != entry)
+                continue; // the account was updated, its current entry is elsewhere
+            if (size == result.length)
+                result = Arrays.copyOf(result, 2 * size);
+            result[size++] = entry.index;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Makes the entry of the account hold its current amount in the underlying bank.
+     */
+    private void refresh(int i) {
+        while (true) {
+            Entry entry = entries.get(i);
+            long amount = bank.getAmount(i);
+            if (entry.amount == amount)
+                return;
+            Entry updated = new Entry(amount, i, entry.version + 1);
+            if (entries.compareAndSet(i, entry, updated)) {
+                ranking.add(updated);
+                ranking.remove(entry);
+                // updated entry might have been replaced and removed by another thread before it was added
+                if (entries.get(i) != updated)
+                    ranking.remove(updated);
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return entries.length();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        return bank.getAmount(index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return bank.getTotalAmount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        return bank.getTotalAmount(fromIndex, toIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long result = bank.deposit(index, amount);
+        refresh(index);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long result = bank.withdraw(index, amount);
+        refresh(index);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        bank.transfer(fromIndex, toIndex, amount);
+        refresh(fromIndex);
+        refresh(toIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        long result = bank.tryDeposit(index, amount);
+        if (result >= 0)
+            refresh(index);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        long result = bank.tryWithdraw(index, amount);
+        if (result >= 0)
+            refresh(index);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        int status = bank.tryTransfer(fromIndex, toIndex, amount);
+        if (status == OK) {
+            refresh(fromIndex);
+            refresh(toIndex);
+        }
+        return status;
+    }
+
+    /**
+     * Amount of an account in the index. Entries are immutable and every refresh creates a new one,
+     * so entries never suffer from ABA problem. Versions of entries of the same account grow with every
+     * refresh, so a stale entry is never equal to the current one even when they have the same amount.
+     */
+    private static class Entry {
+        final long amount;
+        final int index;
+        final long version;
+
+        Entry(long amount, int index, long version) {
+            this.amount = amount;
+            this.index = index;
+            this.version = version;
+        }
+    }
+}
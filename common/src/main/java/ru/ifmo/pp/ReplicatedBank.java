@@ -0,0 +1,485 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bank that replicates changes of another bank to {@link Backup backups} over TCP connections.
+ * This class is thread-safe.
+ * <p>
+ * <p>The underlying bank publishes committed changes to {@link ChangeFeed}, and every backup has its own sender
+ * thread that tails the feed with its own gating cursor, so the operations of the bank never wait for each
+ * other, and they wait for a sender only when its backup falls behind by the capacity of the feed. The sender writes changes that it has read at once as a frame
+ * {@code [length][last sequence][count][size][index, delta] * size * count} and does not wait for
+ * acknowledgements, which are read by another thread per backup. A backup acknowledges the last sequence number
+ * of all frames that it has applied at once.
+ * <p>
+ * <p>An operation returns after the number of backups that is given by the acks parameter have acknowledged the
+ * last sequence number that was taken when the operation completed, so no result that this bank returns is lost
+ * when the primary fails over to any of them. Reading operations wait too, like in {@link DurableBank}. With zero
+ * acks replication is asynchronous, and the lag of every backup is reported by {@link #getLag(int)}.
+ * <p>
+ * <p>Backups must have the same amounts as the bank when it is created, for example all of them are new.
+ * All operations have to go through this bank. A backup that fails stops holding back operations, and they
+ * throw {@link IllegalStateException} when fewer backups than the acks parameter remain.
+ */
+public class ReplicatedBank implements Bank, Closeable {
+    /**
+     * The maximal number of changes that a sender takes from the feed at once.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /**
+     * The time a sender parks for when it cannot be woken up by new changes.
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Bank bank;
+    private final ChangeFeed feed;
+    private final Link[] links;
+    private final int acks;
+
+    /**
+     * The last sequence number that has been acknowledged by at least {@link #acks} backups.
+     */
+    private volatile long replicated;
+
+    /**
+     * The number of backups whose sender or acknowledgements have failed.
+     */
+    private volatile int failures;
+
+    private volatile boolean closed;
+
+    /**
+     * Monitor for threads that wait for their changes to be replicated.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Creates new bank instance, connects to backups, and starts replication.
+     *
+     * @param bank bank that publishes committed changes to the feed.
+     * @param feed feed of committed changes of the bank.
+     * @param backups addresses of backups, see {@link Backup#getAddress()}.
+     * @param acks the number of backups that must acknowledge a change before an operation returns.
+     * @throws IOException when a backup cannot be connected.
+     */
+    public ReplicatedBank(Bank bank, ChangeFeed feed, InetSocketAddress[] backups, int acks) throws IOException {
+        if (acks < 0 || acks > backups.length)
+            throw new IllegalArgumentException("Invalid number of acks: " + acks);
+        this.bank = bank;
+        this.feed = feed;
+        this.acks = acks;
+        links = new Link[backups.length];
+        long start = feed.getLastSequence();
+        replicated = start;
+        try {
+            for (int k = 0; k < backups.length; k++) {
+                SocketChannel channel = SocketChannel.open(backups[k]);
+                channel.socket().setTcpNoDelay(true);
+                links[k] = new Link(k, channel, feed.gatingCursor(start + 1));
+            }
+        } catch (IOException e) {
+            for (Link link : links) {
+                if (link != null) {
+                    link.cursor.close();
+                    link.channel.close();
+                }
+            }
+            throw e;
+        }
+        for (Link link : links) {
+            link.sender.start();
+            link.receiver.start();
+        }
+    }
+
+    /**
+     * Returns the number of backups.
+     */
+    public int getNumberOfBackups() {
+        return links.length;
+    }
+
+    /**
+     * Returns the last sequence number that has been sent to the backup.
+     */
+    public long getSentSequence(int backup) {
+        return links[backup].sent;
+    }
+
+    /**
+     * Returns the last sequence number that has been acknowledged by the backup.
+     */
+    public long getAckedSequence(int backup) {
+        return links[backup].acked;
+    }
+
+    /**
+     * Returns the number of sequence numbers that were taken by the bank but are not acknowledged
+     * by the backup yet.
+     */
+    public long getLag(int backup) {
+        return Math.max(0, feed.getLastSequence() - links[backup].acked);
+    }
+
+    /**
+     * Returns the last sequence number that has been acknowledged by the required number of backups.
+     */
+    public long getReplicatedSequence() {
+        return replicated;
+    }
+
+    /**
+     * Waits until all changes have been sent, closes connections after backups acknowledge them,
+     * and stops replication. Operations must not be invoked after this method.
+     *
+     * @throws IOException when replication to some backup has failed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        boolean interrupted = false;
+        for (Link link : links)
+            interrupted |= join(link.sender);
+        for (Link link : links) {
+            if (link.failure != null)
+                link.channel.close(); // the backup may never close its end
+            interrupted |= join(link.receiver);
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        IOException failure = null;
+        for (Link link : links) {
+            try {
+                link.channel.close();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+            if (link.failure != null && failure == null)
+                failure = new IOException("Replication to backup " + link.number + " has failed", link.failure);
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Waits for the thread to terminate after it was signalled to stop.
+     *
+     * @return true if the current thread was interrupted.
+     */
+    private static boolean join(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return bank.getNumberOfAccounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        checkOpen();
+        long result = bank.getAmount(index);
+        awaitReplicated();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        checkOpen();
+        long result = bank.getTotalAmount();
+        awaitReplicated();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        checkOpen();
+        long result = bank.getTotalAmount(fromIndex, toIndex);
+        awaitReplicated();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        checkOpen();
+        long result = bank.deposit(index, amount);
+        awaitReplicated();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        checkOpen();
+        long result = bank.withdraw(index, amount);
+        awaitReplicated();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        checkOpen();
+        bank.transfer(fromIndex, toIndex, amount);
+        awaitReplicated();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        checkOpen();
+        long result = bank.tryDeposit(index, amount);
+        awaitReplicated();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        checkOpen();
+        long result = bank.tryWithdraw(index, amount);
+        awaitReplicated();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        checkOpen();
+        int result = bank.tryTransfer(fromIndex, toIndex, amount);
+        awaitReplicated();
+        return result;
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Bank is closed");
+    }
+
+    /**
+     * Wakes up senders and waits until all sequence numbers that were taken so far are acknowledged
+     * by the required number of backups.
+     */
+    private void awaitReplicated() {
+        long sequence = feed.getLastSequence();
+        for (Link link : links) {
+            if (link.parked)
+                LockSupport.unpark(link.sender);
+        }
+        if (acks == 0 || replicated >= sequence)
+            return;
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (replicated < sequence) {
+                if (failures > links.length - acks)
+                    throw new IllegalStateException("Replication has failed");
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Recomputes the sequence number that is acknowledged by the required number of backups
+     * and wakes up waiting threads.
+     */
+    private void updateReplicated() {
+        synchronized (lock) {
+            if (acks > 0) {
+                long[] acked = new long[links.length];
+                for (int k = 0; k < links.length; k++)
+                    acked[k] = links[k].acked;
+                Arrays.sort(acked);
+                replicated = Math.max(replicated, acked[links.length - acks]);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void fail(Link link, Throwable t) {
+        synchronized (lock) {
+            if (link.failure != null)
+                return;
+            link.failure = t;
+            link.cursor.close();
+            failures++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Connection to a backup.
+     */
+    private class Link {
+        final int number;
+        final SocketChannel channel;
+        final ChangeFeed.Cursor cursor;
+        final Thread sender;
+        final Thread receiver;
+
+        /**
+         * The last sequence number that was sent, written only by the sender.
+         */
+        volatile long sent;
+
+        /**
+         * The last sequence number that was acknowledged, written only by the receiver.
+         */
+        volatile long acked;
+
+        /**
+         * True when the sender is parked or is about to park.
+         */
+        volatile boolean parked;
+
+        volatile Throwable failure;
+
+        Link(int number, SocketChannel channel, ChangeFeed.Cursor cursor) {
+            this.number = number;
+            this.channel = channel;
+            this.cursor = cursor;
+            sent = cursor.getNextSequence() - 1;
+            acked = sent;
+            sender = new Thread("ReplicatedBank-sender-" + number) {
+                @Override
+                public void run() {
+                    send(Link.this);
+                }
+            };
+            sender.setDaemon(true);
+            receiver = new Thread("ReplicatedBank-receiver-" + number) {
+                @Override
+                public void run() {
+                    receive(Link.this);
+                }
+            };
+            receiver.setDaemon(true);
+        }
+    }
+
+    /**
+     * The loop of the sender. It sends a frame whenever the cursor advances, and shuts down output of
+     * the connection when the bank is closed and all changes are sent.
+     */
+    private void send(Link link) {
+        Change[] batch = new Change[BATCH_SIZE];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (true) {
+                int size = link.cursor.poll(batch);
+                long last = link.cursor.getNextSequence() - 1;
+                if (last > link.sent) {
+                    int length = 12; // last sequence and count
+                    for (int k = 0; k < size; k++)
+                        length += 4 + 12 * batch[k].size();
+                    if (buffer.capacity() < 4 + length)
+                        buffer = ByteBuffer.allocateDirect(4 + length);
+                    buffer.clear();
+                    buffer.putInt(length).putLong(last).putInt(size);
+                    for (int k = 0; k < size; k++) {
+                        Change change = batch[k];
+                        buffer.putInt(change.size());
+                        for (int m = 0; m < change.size(); m++)
+                            buffer.putInt(change.index(m)).putLong(change.delta(m));
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        link.channel.write(buffer);
+                    link.sent = last;
+                    continue;
+                }
+                if (link.cursor.getNextSequence() <= feed.getLastSequence()) {
+                    // a change is being published
+                    Thread.yield();
+                    continue;
+                }
+                if (closed) {
+                    link.cursor.close();
+                    link.channel.shutdownOutput();
+                    return;
+                }
+                link.parked = true;
+                // the sender is unparked by threads that take sequence numbers after this check
+                if (link.cursor.getNextSequence() > feed.getLastSequence())
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                link.parked = false;
+            }
+        } catch (Throwable t) {
+            fail(link, t);
+        }
+    }
+
+    /**
+     * The loop of the receiver of acknowledgements. It stops when the backup closes the connection.
+     */
+    private void receive(Link link) {
+        ByteBuffer ack = ByteBuffer.allocate(8);
+        try {
+            while (true) {
+                ack.clear();
+                while (ack.hasRemaining()) {
+                    if (link.channel.read(ack) < 0) {
+                        if (link.acked < link.sent || !closed)
+                            throw new IOException("Backup " + link.number + " has closed connection");
+                        return;
+                    }
+                }
+                link.acked = ack.getLong(0);
+                updateReplicated();
+            }
+        } catch (Throwable t) {
+            fail(link, t);
+        }
+    }
+}
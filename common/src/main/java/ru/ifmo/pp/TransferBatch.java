@@ -0,0 +1,128 @@
+package ru.ifmo.pp;
+
+import java.util.Arrays;
+
+/**
+ * Batch of transfers that are applied together with {@link BatchBank#applyBatch(TransferBatch)}.
+ * Transfers are numbered from 0 in the order they are added, and every transfer gets its own status code,
+ * so that a failed transfer does not prevent other transfers of the batch from being applied.
+ * Status codes of failed transfers are negative like those of {@link Bank#tryTransfer(int, int, long)}.
+ * This class is not thread-safe.
+ */
+public class TransferBatch {
+    /**
+     * Status of transfer that was applied.
+     */
+    public static final int OK = Bank.OK;
+
+    /**
+     * Status of transfer that was not applied, because there was not enough funds in source account.
+     */
+    public static final int UNDERFLOW = Bank.UNDERFLOW;
+
+    /**
+     * Status of transfer that was not applied, because target account would overflow {@link Bank#MAX_AMOUNT}.
+     */
+    public static final int OVERFLOW = Bank.OVERFLOW;
+
+    /**
+     * Status of transfer that was not applied, because its amount is not positive.
+     */
+    public static final int INVALID_AMOUNT = -3;
+
+    /**
+     * Status of transfer that was not applied, because its source and target accounts are the same.
+     */
+    public static final int SAME_ACCOUNT = -4;
+
+    /**
+     * Status of transfer that was not applied, because any of its account indices is invalid.
+     */
+    public static final int INVALID_INDEX = -5;
+
+    private int size;
+    private int[] fromIndices;
+    private int[] toIndices;
+    private long[] amounts;
+
+    /**
+     * Creates new empty batch.
+     */
+    public TransferBatch() {
+        this(16);
+    }
+
+    /**
+     * Creates new empty batch.
+     *
+     * @param capacity expected number of transfers in this batch.
+     */
+    public TransferBatch(int capacity) {
+        fromIndices = new int[Math.max(capacity, 1)];
+        toIndices = new int[fromIndices.length];
+        amounts = new long[fromIndices.length];
+    }
+
+    /**
+     * Adds transfer to this batch. Arguments are validated only when the batch is applied.
+     *
+     * @param fromIndex account index to withdraw from.
+     * @param toIndex account index to deposit to.
+     * @param amount positive amount to transfer.
+     * @return number of this transfer in the batch.
+     */
+    public int add(int fromIndex, int toIndex, long amount) {
+        if (size == amounts.length) {
+            fromIndices = Arrays.copyOf(fromIndices, 2 * size);
+            toIndices = Arrays.copyOf(toIndices, 2 * size);
+            amounts = Arrays.copyOf(amounts, 2 * size);
+        }
+        fromIndices[size] = fromIndex;
+        toIndices[size] = toIndex;
+        amounts[size] = amount;
+        return size++;
+    }
+
+    /**
+     * Returns the number of transfers in this batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all transfers from this batch, so that it can be reused.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    int fromIndex(int k) {
+        return fromIndices[k];
+    }
+
+    int toIndex(int k) {
+        return toIndices[k];
+    }
+
+    long amount(int k) {
+        return amounts[k];
+    }
+
+    /**
+     * Validates arguments of k-th transfer that do not depend on amounts in accounts.
+     *
+     * @return {@link #OK} or status code of invalid transfer.
+     */
+    int validate(int k, int numberOfAccounts) {
+        int fromIndex = fromIndices[k];
+        int toIndex = toIndices[k];
+        if (fromIndex < 0 || fromIndex >= numberOfAccounts || toIndex < 0 || toIndex >= numberOfAccounts)
+            return INVALID_INDEX;
+        if (amounts[k] <= 0)
+            return INVALID_AMOUNT;
+        if (fromIndex == toIndex)
+            return SAME_ACCOUNT;
+        return OK;
+    }
+}
@@ -0,0 +1,361 @@
+package ru.ifmo.pp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented write-ahead log of resulting amounts of changes that were committed by a bank, see {@link Change}.
+ * This class is not thread-safe, it is written by a single thread of {@link DurableBank}.
+ * <p>
+ * <p>The log is a sequence of records in segment files of the directory. A segment is named by the position
+ * of its first record in the whole log, written in 16 hexadecimal digits. Every record is
+ * {@code [length][crc32][size][index, amount] * size}, where crc32 is computed over the rest of the record,
+ * so a record that was torn by a crash is detected and ends the log. Records are encoded into a direct buffer
+ * and are written to the segment when it fills up or by {@link #force()}, which is the only call that
+ * waits for the disk. A segment is forced before the next one is started.
+ * <p>
+ * <p>Records keep amounts rather than operations, so replaying them in the order of the log leaves every account
+ * with the amount of its last logged change, see {@link #replay(File, Bank)}. For the same reason the log can be
+ * replayed on top of a fuzzy {@link Checkpoint} that may already have some of the replayed changes, and segments
+ * before the position of the checkpoint are deleted.
+ * <p>
+ * <p>{@link CoordinatorLog} keeps its own records in the same format and reads them with a {@link Handler}.
+ */
+public class WriteAheadLog implements Closeable {
+    /**
+     * The default size of a segment in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    static final String SUFFIX = ".log";
+
+    private static final int BUFFER_SIZE = 64 << 10;
+    private static final int HEADER_SIZE = 8; // length and crc32
+    private static final int ENTRY_SIZE = 12; // index and amount
+
+    private final File directory;
+    private final long segmentSize;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Payload of the current record, crc32 is computed over it before it is copied to {@link #buffer}.
+     */
+    private ByteBuffer payload = ByteBuffer.allocate(4 + ENTRY_SIZE);
+
+    private FileChannel channel;
+
+    /**
+     * Position of the current segment in the log.
+     */
+    private long segmentStart;
+
+    /**
+     * Position after the last appended record.
+     */
+    private long position;
+
+    private WriteAheadLog(File directory, long segmentSize, long position) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.position = position;
+        startSegment();
+    }
+
+    /**
+     * Opens log in the directory, replays its records into the bank, and prepares to append records
+     * after them, see {@link #open(File, long, long[])}.
+     *
+     * @param directory directory of segments, it is created if it does not exist.
+     * @param segmentSize the size of a segment after which the next one is started.
+     * @param bank bank with zero amounts in all accounts.
+     * @throws IOException when the log cannot be read or written, or it has changes of accounts
+     *                     that the bank does not have.
+     */
+    public static WriteAheadLog open(File directory, long segmentSize, Bank bank) throws IOException {
+        long[] amounts = new long[bank.getNumberOfAccounts()];
+        WriteAheadLog log = open(directory, segmentSize, amounts);
+        deposit(bank, amounts);
+        return log;
+    }
+
+    /**
+     * Opens log in the directory, restores amounts from its checkpoint and records, and prepares to append records
+     * after them. Segments after the last valid record are removed.
+     */
+    static WriteAheadLog open(File directory, long segmentSize, long[] amounts) throws IOException {
+        checkOpen(directory, segmentSize);
+        return create(directory, segmentSize, replay(directory, amounts));
+    }
+
+    /**
+     * Opens log in the directory, passes all its records to the handler, and prepares to append records
+     * after them. Such a log has no checkpoint.
+     */
+    static WriteAheadLog open(File directory, long segmentSize, Handler handler) throws IOException {
+        checkOpen(directory, segmentSize);
+        return create(directory, segmentSize, scan(directory, -1, handler));
+    }
+
+    private static void checkOpen(File directory, long segmentSize) throws IOException {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+    }
+
+    /**
+     * Removes segments after the last valid record and starts a new one there.
+     */
+    private static WriteAheadLog create(File directory, long segmentSize, long position) throws IOException {
+        for (File segment : segments(directory)) {
+            if (start(segment) >= position && !segment.delete())
+                throw new IOException("Cannot delete segment " + segment);
+        }
+        return new WriteAheadLog(directory, segmentSize, position);
+    }
+
+    /**
+     * Restores amounts from the checkpoint and records of the log in the directory into the bank.
+     * Replay stops at the first record that is torn or at a gap between segments.
+     *
+     * @param bank bank with zero amounts in all accounts.
+     * @return position after the last valid record.
+     * @throws IOException when the log cannot be read, or it has changes of accounts that the bank does not have.
+     */
+    public static long replay(File directory, Bank bank) throws IOException {
+        long[] amounts = new long[bank.getNumberOfAccounts()];
+        long position = replay(directory, amounts);
+        deposit(bank, amounts);
+        return position;
+    }
+
+    private static void deposit(Bank bank, long[] amounts) {
+        for (int i = 0; i < amounts.length; i++) {
+            if (amounts[i] > 0)
+                bank.deposit(i, amounts[i]);
+        }
+    }
+
+    /**
+     * Restores amounts of accounts from the checkpoint, if there is one, and then replays records of the log
+     * from the position of the checkpoint.
+     *
+     * @return position after the last valid record.
+     */
+    static long replay(File directory, final long[] amounts) throws IOException {
+        long position = Checkpoint.read(directory, amounts);
+        // segments are listed after the checkpoint is read, so none of them is deleted by a later checkpoint
+        return scan(directory, position, new Handler() {
+            @Override
+            public void record(ByteBuffer record) throws IOException {
+                apply(record, amounts);
+            }
+        });
+    }
+
+    /**
+     * Passes records of the log in the directory from the position to the handler.
+     * Scan stops at the first record that is torn or at a gap between segments.
+     *
+     * @param position position of a record, or -1 to scan from the first segment.
+     * @return position after the last valid record.
+     */
+    static long scan(File directory, long position, Handler handler) throws IOException {
+        File[] segments = segments(directory);
+        if (position < 0)
+            position = segments.length == 0 ? 0 : start(segments[0]);
+        int first = 0;
+        while (first + 1 < segments.length && start(segments[first + 1]) <= position)
+            first++;
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[BUFFER_SIZE];
+        for (int k = first; k < segments.length; k++) {
+            long start = start(segments[k]);
+            if (start > position || k > first && start != position)
+                break; // the previous segment was torn and its tail was not replaced
+            int valid = (int) (position - start);
+            try (RandomAccessFile file = new RandomAccessFile(segments[k], "r")) {
+                if (valid > file.length())
+                    break;
+                MappedByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                in.position(valid);
+                while (in.remaining() >= HEADER_SIZE) {
+                    int length = in.getInt(valid);
+                    if (length < 4 || (length - 4) % ENTRY_SIZE != 0 || length > in.remaining() - HEADER_SIZE)
+                        break;
+                    if (bytes.length < length)
+                        bytes = new byte[length];
+                    long checksum = in.getInt(valid + 4) & 0xffffffffL;
+                    in.position(valid + HEADER_SIZE);
+                    in.get(bytes, 0, length);
+                    crc.reset();
+                    crc.update(bytes, 0, length);
+                    if (crc.getValue() != checksum)
+                        break;
+                    handler.record(ByteBuffer.wrap(bytes, 0, length));
+                    valid = in.position();
+                }
+            }
+            position = start + valid;
+        }
+        return position;
+    }
+
+    /**
+     * Deletes segments that end before the position. It is invoked after a checkpoint at the position
+     * is durable, and does not affect the segment that is being written.
+     */
+    static void deleteBefore(File directory, long position) throws IOException {
+        File[] segments = segments(directory);
+        for (int k = 0; k + 1 < segments.length && start(segments[k + 1]) <= position; k++) {
+            if (!segments[k].delete())
+                throw new IOException("Cannot delete segment " + segments[k]);
+        }
+    }
+
+    private static void apply(ByteBuffer record, long[] amounts) throws IOException {
+        int size = record.getInt();
+        for (int k = 0; k < size; k++) {
+            int index = record.getInt();
+            long amount = record.getLong();
+            if (index < 0 || index >= amounts.length)
+                throw new IOException("Log has account " + index + " out of " + amounts.length);
+            amounts[index] = amount;
+        }
+    }
+
+    /**
+     * Returns position after the last appended record.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Appends record of the change. It is not durable until {@link #force()} is invoked.
+     */
+    public void append(Change change) throws IOException {
+        int size = change.size();
+        int length = 4 + size * ENTRY_SIZE;
+        if (payload.capacity() < length)
+            payload = ByteBuffer.allocate(length);
+        payload.clear();
+        payload.putInt(size);
+        for (int k = 0; k < size; k++) {
+            payload.putInt(change.index(k));
+            payload.putLong(change.amount(k));
+        }
+        crc.reset();
+        crc.update(payload.array(), 0, length);
+        if (position > segmentStart && position - segmentStart + HEADER_SIZE + length > segmentSize) {
+            flush();
+            channel.force(false);
+            channel.close();
+            startSegment();
+        }
+        if (buffer.remaining() < HEADER_SIZE + length)
+            flush();
+        payload.flip();
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            // the record does not fit into the buffer
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(length).putInt((int) crc.getValue()).flip();
+            write(header);
+            write(payload);
+        } else {
+            buffer.putInt(length).putInt((int) crc.getValue()).put(payload);
+        }
+        position += HEADER_SIZE + length;
+    }
+
+    /**
+     * Writes appended records to the segment and waits until they are stored on the disk.
+     */
+    public void force() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Writes appended records to the segment without waiting for the disk and returns the channel of the segment,
+     * so that a caller that appends under a lock can force it after releasing the lock. The channel may be closed
+     * by then, but a segment is forced before it is closed.
+     */
+    FileChannel write() throws IOException {
+        flush();
+        return channel;
+    }
+
+    /**
+     * Forces appended records and closes the segment.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            force();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void startSegment() throws IOException {
+        segmentStart = position;
+        File segment = new File(directory, String.format("%016x", position) + SUFFIX);
+        channel = new RandomAccessFile(segment, "rw").getChannel();
+        channel.truncate(0);
+    }
+
+    /**
+     * Writes records from {@link #buffer} to the segment.
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer source) throws IOException {
+        while (source.hasRemaining())
+            channel.write(source);
+    }
+
+    /**
+     * Returns segments in the order of their positions.
+     */
+    static File[] segments(File directory) throws IOException {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.length() == 16 + SUFFIX.length() && name.endsWith(SUFFIX);
+            }
+        });
+        if (segments == null)
+            throw new IOException("Cannot list directory " + directory);
+        Arrays.sort(segments); // names have the same length
+        return segments;
+    }
+
+    static long start(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+    }
+
+    /**
+     * Receiver of records of the log, see {@link #scan(File, long, Handler)}.
+     */
+    interface Handler {
+        /**
+         * Receives record that is positioned at its size, which is followed by its entries.
+         */
+        void record(ByteBuffer record) throws IOException;
+    }
+}
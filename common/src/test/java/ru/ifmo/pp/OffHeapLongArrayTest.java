@@ -0,0 +1,71 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link OffHeapLongArray}.
+ */
+public class OffHeapLongArrayTest extends TestCase {
+    private static final int THREADS = 4;
+    private static final int INCREMENTS_PER_THREAD = 100_000;
+
+    public void testChunks() {
+        int n = 37;
+        OffHeapLongArray array = new OffHeapLongArray(n, 3);
+        assertEquals(n, array.length());
+        for (int i = 0; i < n; i++)
+            assertEquals(0, array.get(i));
+        for (int i = 0; i < n; i++)
+            array.set(i, Long.MIN_VALUE + i);
+        for (int i = 0; i < n; i++)
+            assertEquals(Long.MIN_VALUE + i, array.get(i));
+        assertFalse(array.compareAndSet(8, 0, 1));
+        assertTrue(array.compareAndSet(8, Long.MIN_VALUE + 8, -1));
+        assertEquals(-1, array.get(8));
+        assertEquals(Long.MIN_VALUE + 7, array.get(7));
+        assertEquals(Long.MIN_VALUE + 9, array.get(9));
+    }
+
+    public void testInvalidIndex() {
+        OffHeapLongArray array = new OffHeapLongArray(16, 3);
+        try {
+            array.get(16);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            array.set(-1, 0);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testConcurrentIncrements() throws InterruptedException {
+        final OffHeapLongArray array = new OffHeapLongArray(3, 1);
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    for (int k = 0; k < INCREMENTS_PER_THREAD; k++) {
+                        int index = k % 3;
+                        long value;
+                        do {
+                            value = array.get(index);
+                        } while (!array.compareAndSet(index, value, value + 1));
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        long total = 0;
+        for (int i = 0; i < 3; i++)
+            total += array.get(i);
+        assertEquals(THREADS * INCREMENTS_PER_THREAD, total);
+    }
+}
@@ -1,5 +1,6 @@
 package ru.ifmo.pp;
 
+import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -10,18 +11,35 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * @author Поперечный
  */
-public class BankImpl implements Bank {
+public class BankImpl implements BatchBank {
     /**
      * An array of accounts by index.
      */
     private final Account[] accounts;
 
+    /**
+     * Feed of committed changes or null when changes are not published.
+     */
+    private final ChangeFeed feed;
+
     /**
      * Creates new bank instance.
      *
      * @param n the number of accounts (numbered from 0 to n-1).
      */
     public BankImpl(int n) {
+        this(n, null);
+    }
+
+    /**
+     * Creates new bank instance that publishes committed changes to the feed. Sequence numbers are taken
+     * while all changed accounts are locked, so they follow the order of changes of every account.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param feed feed of committed changes or null.
+     */
+    public BankImpl(int n, ChangeFeed feed) {
+        this.feed = feed;
         accounts = new Account[n];
         for (int i = 0; i < n; i++) {
             accounts[i] = new Account();
@@ -63,22 +81,54 @@ public class BankImpl implements Bank {
         return sum;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Accounts of the range are locked in ascending order like in {@link #getTotalAmount()}.
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > accounts.length || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        long sum = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            accounts[i].lock.lock();
+            sum += accounts[i].amount;
+        }
+        for (int i = fromIndex; i < toIndex; i++) {
+            accounts[i].lock.unlock();
+        }
+        return sum;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public long deposit(int index, long amount) {
+        long result = tryDeposit(index, amount);
+        if (result == OVERFLOW)
+            throw new IllegalStateException("Overflow");
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
         Account account = accounts[index];
         account.lock.lock();
         try {
             if (amount > MAX_AMOUNT || account.amount + amount > MAX_AMOUNT) {
-                throw new IllegalStateException("Overflow");
+                return OVERFLOW;
             }
             account.amount += amount;
-            amount = account.amount;
-            return amount;
+            if (feed != null)
+                feed.publish(new Change(feed.next(), index, amount, account.amount));
+            return account.amount;
         } finally {
             account.lock.unlock();
         }
@@ -89,17 +139,29 @@ public class BankImpl implements Bank {
      */
     @Override
     public long withdraw(int index, long amount) {
+        long result = tryWithdraw(index, amount);
+        if (result == UNDERFLOW)
+            throw new IllegalStateException("Underflow");
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
         Account account = accounts[index];
         account.lock.lock();
         try {
             if (account.amount - amount < 0) {
-                throw new IllegalStateException("Underflow");
+                return UNDERFLOW;
             }
             account.amount -= amount;
-            amount = account.amount;
-            return amount;
+            if (feed != null)
+                feed.publish(new Change(feed.next(), index, -amount, account.amount));
+            return account.amount;
         } finally {
             account.lock.unlock();
         }
@@ -110,7 +172,18 @@ public class BankImpl implements Bank {
      */
     @Override
     public void transfer(int fromIndex, int toIndex, long amount) {
+        int status = tryTransfer(fromIndex, toIndex, amount);
+        if (status == UNDERFLOW)
+            throw new IllegalStateException("Underflow");
+        if (status == OVERFLOW)
+            throw new IllegalStateException("Overflow");
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
         if (fromIndex == toIndex)
@@ -121,18 +194,115 @@ public class BankImpl implements Bank {
         accounts[Math.max(fromIndex, toIndex)].lock.lock();
         try {
             if (amount > from.amount) {
-                throw new IllegalStateException("Underflow");
+                return UNDERFLOW;
             } else if (amount > MAX_AMOUNT || to.amount + amount > MAX_AMOUNT) {
-                throw new IllegalStateException("Overflow");
+                return OVERFLOW;
             }
             from.amount -= amount;
             to.amount += amount;
+            if (feed != null)
+                feed.publish(new Change(feed.next(), Change.TRANSFER, new int[] {fromIndex, toIndex},
+                        new long[] {-amount, amount}, new long[] {from.amount, to.amount}));
+            return OK;
         } finally {
             to.lock.unlock();
             from.lock.unlock();
         }
     }
 
+    /**
+     * Applies all transfers of the batch atomically, as if they were performed one by one in their order
+     * in the batch. Transfers are grouped by account, so that every account that is used by the batch
+     * is locked only once, and all of them are locked in ascending order of indices.
+     *
+     * @param batch transfers to apply.
+     * @return status codes of transfers, see {@link TransferBatch#OK} and others.
+     */
+    @Override
+    public int[] applyBatch(TransferBatch batch) {
+        int size = batch.size();
+        int[] statuses = new int[size];
+        int[] indices = new int[2 * size];
+        int n = 0;
+        for (int k = 0; k < size; k++) {
+            statuses[k] = batch.validate(k, accounts.length);
+            if (statuses[k] == TransferBatch.OK) {
+                indices[n++] = batch.fromIndex(k);
+                indices[n++] = batch.toIndex(k);
+            }
+        }
+        Arrays.sort(indices, 0, n);
+        int locked = 0;
+        long[] initialAmounts = null;
+        try {
+            for (int i = 0; i < n; i++) {
+                if (i == 0 || indices[i] != indices[i - 1]) {
+                    accounts[indices[i]].lock.lock();
+                    indices[locked++] = indices[i];
+                }
+            }
+            if (feed != null) {
+                initialAmounts = new long[locked];
+                for (int i = 0; i < locked; i++)
+                    initialAmounts[i] = accounts[indices[i]].amount;
+            }
+            for (int k = 0; k < size; k++) {
+                if (statuses[k] != TransferBatch.OK)
+                    continue;
+                Account from = accounts[batch.fromIndex(k)];
+                Account to = accounts[batch.toIndex(k)];
+                long amount = batch.amount(k);
+                if (amount > from.amount) {
+                    statuses[k] = TransferBatch.UNDERFLOW;
+                } else if (amount > MAX_AMOUNT - to.amount) {
+                    statuses[k] = TransferBatch.OVERFLOW;
+                } else {
+                    from.amount -= amount;
+                    to.amount += amount;
+                }
+            }
+            if (feed != null)
+                publish(indices, locked, initialAmounts);
+        } finally {
+            while (--locked >= 0)
+                accounts[indices[locked]].lock.unlock();
+        }
+        return statuses;
+    }
+
+    /**
+     * Publishes the change of locked accounts by their initial amounts, skipping accounts that have not changed.
+     *
+     * @param indices indices of locked accounts in ascending order.
+     * @param locked the number of locked accounts.
+     * @param initialAmounts amounts of locked accounts before the change.
+     */
+    private void publish(int[] indices, int locked, long[] initialAmounts) {
+        int size = 0;
+        for (int i = 0; i < locked; i++) {
+            if (accounts[indices[i]].amount != initialAmounts[i])
+                size++;
+        }
+        if (size == 0)
+            return;
+        int[] changed = new int[size];
+        long[] deltas = new long[size];
+        long[] amounts = new long[size];
+        size = 0;
+        for (int i = 0; i < locked; i++) {
+            long amount = accounts[indices[i]].amount;
+            if (amount != initialAmounts[i]) {
+                changed[size] = indices[i];
+                deltas[size] = amount - initialAmounts[i];
+                amounts[size++] = amount;
+            }
+        }
+        if (size == 1)
+            feed.publish(new Change(feed.next(), changed[0], deltas[0], amounts[0]));
+        else
+            feed.publish(new Change(feed.next(), Change.UPDATE, changed, deltas, amounts));
+    }
+
     /**
      * Private account data structure.
      */
@@ -0,0 +1,203 @@
+package ru.ifmo.pp;
+
+/**
+ * Bank implementation that keeps accounts outside of the Java heap in a single {@link OffHeapLongArray},
+ * so that it holds hundreds of millions of accounts without any objects per account.
+ * <p>
+ * <p>Every account takes 16 bytes: a lock word followed by the amount. The lock is a spin lock that is taken by
+ * compareAndSet of the lock word from 0 to 1 and yields while it is busy. Accounts are locked in ascending order
+ * of indices like in {@link BankImpl}, and amounts are read and written only under the lock of the account.
+ */
+public class OffHeapBankImpl implements Bank {
+    private final int numberOfAccounts;
+
+    /**
+     * Lock word of account i at index 2i and its amount at index 2i+1.
+     */
+    private final OffHeapLongArray words;
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public OffHeapBankImpl(int n) {
+        numberOfAccounts = n;
+        words = new OffHeapLongArray(2L * n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return numberOfAccounts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        checkIndex(index);
+        lock(index);
+        long res = amount(index);
+        unlock(index);
+        return res;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return getTotalAmount(0, numberOfAccounts);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > numberOfAccounts || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        long sum = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            lock(i);
+            sum += amount(i);
+        }
+        for (int i = fromIndex; i < toIndex; i++) {
+            unlock(i);
+        }
+        return sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long result = tryDeposit(index, amount);
+        if (result == OVERFLOW)
+            throw new IllegalStateException("Overflow");
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        lock(index);
+        try {
+            long current = amount(index);
+            if (amount > MAX_AMOUNT || current + amount > MAX_AMOUNT) {
+                return OVERFLOW;
+            }
+            setAmount(index, current + amount);
+            return current + amount;
+        } finally {
+            unlock(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long result = tryWithdraw(index, amount);
+        if (result == UNDERFLOW)
+            throw new IllegalStateException("Underflow");
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        lock(index);
+        try {
+            long current = amount(index);
+            if (current - amount < 0) {
+                return UNDERFLOW;
+            }
+            setAmount(index, current - amount);
+            return current - amount;
+        } finally {
+            unlock(index);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        int status = tryTransfer(fromIndex, toIndex, amount);
+        if (status == UNDERFLOW)
+            throw new IllegalStateException("Underflow");
+        if (status == OVERFLOW)
+            throw new IllegalStateException("Overflow");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        lock(Math.min(fromIndex, toIndex));
+        lock(Math.max(fromIndex, toIndex));
+        try {
+            long from = amount(fromIndex);
+            long to = amount(toIndex);
+            if (amount > from) {
+                return UNDERFLOW;
+            } else if (amount > MAX_AMOUNT || to + amount > MAX_AMOUNT) {
+                return OVERFLOW;
+            }
+            setAmount(fromIndex, from - amount);
+            setAmount(toIndex, to + amount);
+            return OK;
+        } finally {
+            unlock(toIndex);
+            unlock(fromIndex);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= numberOfAccounts)
+            throw new IndexOutOfBoundsException("Invalid account index: " + index);
+    }
+
+    private void lock(int index) {
+        long word = 2L * index;
+        while (!words.compareAndSet(word, 0, 1))
+            Thread.yield();
+    }
+
+    private void unlock(int index) {
+        words.set(2L * index, 0);
+    }
+
+    private long amount(int index) {
+        return words.get(2L * index + 1);
+    }
+
+    private void setAmount(int index, long amount) {
+        words.set(2L * index + 1, amount);
+    }
+}
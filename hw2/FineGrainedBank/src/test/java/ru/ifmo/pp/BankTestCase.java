@@ -0,0 +1,87 @@
+package ru.ifmo.pp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Test case that is run for every bank implementation, see {@link Variant}.
+ * Subclasses build their suites with {@link #suite(Class)} and create banks with {@link #createBank(int)}.
+ */
+public abstract class BankTestCase extends TestCase {
+    /**
+     * Factory of nodes of {@link PartitionedBank}.
+     */
+    static final PartitionedBank.NodeFactory NODES = new PartitionedBank.NodeFactory() {
+        @Override
+        public Bank newNode(int n) {
+            return new BankImpl(n);
+        }
+    };
+
+    /**
+     * Bank implementations that are tested by every suite.
+     */
+    enum Variant {
+        DEFAULT,
+        OFF_HEAP,
+        PARTITIONED;
+
+        Bank createBank(int n) {
+            switch (this) {
+                case DEFAULT:
+                    return new BankImpl(n);
+                case OFF_HEAP:
+                    return new OffHeapBankImpl(n);
+                case PARTITIONED:
+                    return new PartitionedBank(n, 3, NODES);
+                default:
+                    throw new AssertionError("Invalid variant: " + this);
+            }
+        }
+    }
+
+    private final Variant variant;
+
+    protected BankTestCase(String name, Variant variant) {
+        super(name);
+        this.variant = variant;
+    }
+
+    /**
+     * Returns suite of all tests of the class for every variant. The class must have a public constructor
+     * with the name of the test and the variant.
+     */
+    static Test suite(Class<? extends BankTestCase> testClass) {
+        TestSuite suite = new TestSuite(testClass.getName());
+        try {
+            Constructor<? extends BankTestCase> constructor = testClass.getConstructor(String.class, Variant.class);
+            for (Variant variant : Variant.values()) {
+                TestSuite variantSuite = new TestSuite(testClass.getName() + "[" + variant + "]");
+                for (Method method : testClass.getMethods()) {
+                    if (method.getName().startsWith("test") && method.getParameterTypes().length == 0)
+                        variantSuite.addTest(constructor.newInstance(method.getName(), variant));
+                }
+                suite.addTest(variantSuite);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+        return suite;
+    }
+
+    /**
+     * Creates an instance of the bank implementation that is being tested.
+     */
+    protected Bank createBank(int n) {
+        return variant.createBank(n);
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "[" + variant + "](" + getClass().getName() + ")";
+    }
+}
@@ -0,0 +1,178 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests for {@link ChangeFeed} of changes committed by {@link BankImpl}.
+ */
+public class ChangeFeedTest extends TestCase {
+    private static final int N = 8;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 20_000;
+    private static final int CAPACITY = 1 << 18;
+    private static final long MEAN = 1_000;
+
+    public void testChanges() {
+        ChangeFeed feed = new ChangeFeed(16);
+        BankImpl bank = new BankImpl(N, feed);
+        ChangeFeed.Cursor cursor = feed.cursor();
+        bank.deposit(1, 100);
+        bank.withdraw(1, 30);
+        bank.transfer(1, 2, 20);
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(1, 2, 1000));
+        bank.deposit(2, 5);
+        bank.transfer(1, 3, 50);
+        TransferBatch batch = new TransferBatch();
+        batch.add(2, 0, 5);
+        batch.add(0, 4, 5);
+        bank.applyBatch(batch);
+        Change[] changes = new Change[16];
+        assertEquals(6, cursor.poll(changes));
+        assertEquals(0, cursor.poll(changes));
+        checkChange(changes[0], Change.DEPOSIT, new int[] {1}, new long[] {100}, new long[] {100});
+        checkChange(changes[1], Change.WITHDRAW, new int[] {1}, new long[] {-30}, new long[] {70});
+        checkChange(changes[2], Change.TRANSFER, new int[] {1, 2}, new long[] {-20, 20}, new long[] {50, 20});
+        checkChange(changes[3], Change.DEPOSIT, new int[] {2}, new long[] {5}, new long[] {25});
+        checkChange(changes[4], Change.TRANSFER, new int[] {1, 3}, new long[] {-50, 50}, new long[] {0, 50});
+        checkChange(changes[5], Change.UPDATE, new int[] {2, 4}, new long[] {-5, 5}, new long[] {20, 5});
+        for (int k = 1; k < 6; k++)
+            assertTrue(changes[k].getSequence() > changes[k - 1].getSequence());
+        assertEquals(feed.getLastSequence() + 1, cursor.getNextSequence());
+    }
+
+    public void testOverwrittenChanges() {
+        ChangeFeed feed = new ChangeFeed(4);
+        BankImpl bank = new BankImpl(N, feed);
+        for (int k = 0; k < 10; k++)
+            bank.deposit(0, 1);
+        Change[] changes = new Change[16];
+        assertEquals(4, feed.cursor(7).poll(changes));
+        assertEquals(10, changes[3].amount(0));
+        try {
+            feed.cursor(1).poll(changes);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Checks that a writer that would overwrite a change that was not read by a gating cursor waits for it,
+     * and that a closed gating cursor no longer holds back writers.
+     */
+    public void testGatingCursor() throws InterruptedException {
+        ChangeFeed feed = new ChangeFeed(4);
+        final BankImpl bank = new BankImpl(N, feed);
+        ChangeFeed.Cursor cursor = feed.gatingCursor();
+        for (int k = 0; k < 4; k++)
+            bank.deposit(0, 1);
+        Thread writer = new Thread("TestThread-writer") {
+            @Override
+            public void run() {
+                bank.deposit(0, 1);
+            }
+        };
+        writer.start();
+        writer.join(100);
+        assertTrue(writer.isAlive());
+        Change[] changes = new Change[16];
+        assertEquals(4, cursor.poll(changes));
+        writer.join();
+        assertEquals(1, cursor.poll(changes));
+        assertEquals(5, changes[0].amount(0));
+        cursor.close();
+        for (int k = 0; k < 10; k++)
+            bank.deposit(0, 1);
+        assertEquals(15, bank.getAmount(0));
+    }
+
+    /**
+     * Replays changes that are tailed while threads perform random operations, and checks that every change
+     * starts from the amounts left by the previous changes and that the replay ends with the amounts in the bank.
+     */
+    public void testReplay() throws InterruptedException {
+        ChangeFeed feed = new ChangeFeed(CAPACITY);
+        final BankImpl bank = new BankImpl(N, feed);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        ChangeFeed.Cursor cursor = feed.cursor();
+        final long[] amounts = new long[N];
+        for (int i = 0; i < N; i++)
+            amounts[i] = MEAN;
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < OPS_PER_THREAD; k++) {
+                            int i = rnd.nextInt(N);
+                            int j = (i + 1 + rnd.nextInt(N - 1)) % N;
+                            long amount = rnd.nextInt((int) MEAN) + 1;
+                            switch (rnd.nextInt(3)) {
+                                case 0:
+                                    bank.tryDeposit(i, amount);
+                                    break;
+                                case 1:
+                                    bank.tryWithdraw(i, amount);
+                                    break;
+                                default:
+                                    bank.tryTransfer(i, j, amount);
+                                    break;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        Change[] changes = new Change[64];
+        long last = 0;
+        boolean running = true;
+        while (running || cursor.getNextSequence() <= feed.getLastSequence()) {
+            running = false;
+            for (Thread t : ts)
+                running |= t.isAlive();
+            int size = cursor.poll(changes);
+            for (int k = 0; k < size; k++) {
+                Change change = changes[k];
+                assertTrue(change.getSequence() > last);
+                last = change.getSequence();
+                for (int m = 0; m < change.size(); m++) {
+                    int i = change.index(m);
+                    assertEquals("Change " + change.getSequence(), amounts[i] + change.delta(m), change.amount(m));
+                    amounts[i] = change.amount(m);
+                }
+            }
+            if (size == 0)
+                Thread.yield();
+        }
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        for (int i = 0; i < N; i++)
+            assertEquals(bank.getAmount(i), amounts[i]);
+    }
+
+    private static void checkChange(Change change, int kind, int[] indices, long[] deltas, long[] amounts) {
+        assertEquals(kind, change.getKind());
+        assertEquals(indices.length, change.size());
+        for (int k = 0; k < indices.length; k++) {
+            assertEquals(indices[k], change.index(k));
+            assertEquals(deltas[k], change.delta(k));
+            assertEquals(amounts[k], change.amount(k));
+        }
+    }
+}
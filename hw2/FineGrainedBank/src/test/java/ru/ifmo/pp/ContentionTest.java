@@ -0,0 +1,124 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded benchmark of bank implementation under skewed load.
+ *
+ * <p>Accounts are chosen with Zipf distribution, so that a few hot accounts take most of the operations.
+ * The load is the same as in ContentionTest of the lock-free bank in hw5, so that their throughput
+ * can be compared. The final state is verified.
+ */
+public class ContentionTest extends TestCase {
+    private static final int N = 64;
+    private static final double ZIPF_EXPONENT = 1.2;
+    private static final long MEAN = 1_000_000_000;
+    private static final int AMT = 1_000;
+    private static final int THREADS = 8;
+    private static final long WARM_UP_MILLIS = 500;
+    private static final long MEASURE_MILLIS = 1000;
+
+    /**
+     * Cumulative probabilities of accounts.
+     */
+    private final double[] cdf = new double[N];
+
+    public ContentionTest() {
+        double sum = 0;
+        for (int i = 0; i < N; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < N; i++)
+            cdf[i] /= sum;
+    }
+
+    public void testLockBank() throws InterruptedException {
+        Bank bank = new BankImpl(N);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        run(bank, WARM_UP_MILLIS);
+        long ops = run(bank, MEASURE_MILLIS);
+        System.out.printf(Locale.US, "%-20s %,12d ops/s%n", "LOCKS", ops * 1000 / MEASURE_MILLIS);
+    }
+
+    /**
+     * Runs operations in all threads and verifies state of the bank.
+     *
+     * @return the number of operations.
+     */
+    private long run(final Bank bank, final long millis) throws InterruptedException {
+        final long[] expected = new long[N];
+        for (int i = 0; i < N; i++)
+            expected[i] = bank.getAmount(i);
+        final AtomicLong[] changes = new AtomicLong[N];
+        for (int i = 0; i < N; i++)
+            changes[i] = new AtomicLong();
+        final AtomicLong totalOps = new AtomicLong();
+        final Throwable[] failure = new Throwable[1];
+        final long tillTimeMillis = System.currentTimeMillis() + millis;
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        long ops = 0;
+                        do {
+                            int i = nextAccount(rnd);
+                            long amount = rnd.nextInt(AMT) + 1;
+                            int op = rnd.nextInt(10);
+                            if (op == 0) {
+                                bank.deposit(i, amount);
+                                changes[i].addAndGet(amount);
+                            } else if (op == 1) {
+                                bank.withdraw(i, amount);
+                                changes[i].addAndGet(-amount);
+                            } else {
+                                int j;
+                                do {
+                                    j = nextAccount(rnd);
+                                } while (j == i);
+                                bank.transfer(i, j, amount);
+                                changes[i].addAndGet(-amount);
+                                changes[j].addAndGet(amount);
+                            }
+                            ops++;
+                        } while (System.currentTimeMillis() < tillTimeMillis);
+                        totalOps.addAndGet(ops);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            ts[threadNo].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        long expectedTotal = 0;
+        for (int i = 0; i < N; i++) {
+            expected[i] += changes[i].get();
+            assertEquals(expected[i], bank.getAmount(i));
+            expectedTotal += expected[i];
+        }
+        assertEquals(expectedTotal, bank.getTotalAmount());
+        return totalOps.get();
+    }
+
+    private int nextAccount(ThreadLocalRandom rnd) {
+        int i = Arrays.binarySearch(cdf, rnd.nextDouble());
+        return i >= 0 ? i : Math.min(-i - 1, N - 1);
+    }
+}
@@ -0,0 +1,217 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DurableBank} and recovery from {@link WriteAheadLog}.
+ */
+public class DurableBankTest extends TestCase {
+    private static final int N = 8;
+    private static final int THREADS = 4;
+    private static final int TRANSFERS_PER_THREAD = 2_000;
+    private static final long MEAN = 1_000;
+    private static final long COMMIT_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("wal").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : directory.listFiles())
+            assertTrue(file.delete());
+        assertTrue(directory.delete());
+    }
+
+    public void testRecovery() throws IOException {
+        DurableBank bank = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        bank.deposit(1, 100);
+        bank.transfer(1, 2, 30);
+        bank.withdraw(2, 10);
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(1, 2, 1000));
+        bank.close();
+        bank = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        assertEquals(70, bank.getAmount(1));
+        assertEquals(20, bank.getAmount(2));
+        bank.deposit(3, 5);
+        bank.close();
+        bank = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        assertEquals(95, bank.getTotalAmount());
+        bank.close();
+    }
+
+    /**
+     * Tears the last record in the log as if the process crashed while writing it.
+     */
+    public void testTornRecord() throws IOException {
+        DurableBank bank = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        bank.deposit(0, 100);
+        bank.deposit(0, 50);
+        bank.close();
+        File[] segments = WriteAheadLog.segments(directory);
+        try (RandomAccessFile file = new RandomAccessFile(segments[segments.length - 1], "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        bank = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        assertEquals(100, bank.getAmount(0));
+        bank.deposit(1, 7);
+        bank.close();
+        bank = open(WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        assertEquals(100, bank.getAmount(0));
+        assertEquals(7, bank.getAmount(1));
+        bank.close();
+    }
+
+    public void testSegments() throws IOException {
+        DurableBank bank = open(64);
+        for (int k = 0; k < 20; k++)
+            bank.deposit(k % N, k + 1);
+        long position = bank.getLogPosition();
+        bank.close();
+        assertTrue(WriteAheadLog.segments(directory).length > 1);
+        bank = open(64);
+        assertEquals(20 * 21 / 2, bank.getTotalAmount());
+        assertEquals(position, bank.getLogPosition());
+        bank.close();
+    }
+
+    public void testBackgroundCheckpoints() throws IOException, InterruptedException {
+        ChangeFeed feed = new ChangeFeed(1 << 12);
+        DurableBank bank = new DurableBank(newBank(feed), feed, directory, COMMIT_DELAY, 64, CHECKPOINT_INTERVAL);
+        bank.deposit(0, 1);
+        File checkpoint = new File(directory, Checkpoint.FILE_NAME);
+        while (!checkpoint.exists())
+            Thread.sleep(1);
+        bank.close();
+    }
+
+    public void testCheckpoint() throws IOException {
+        DurableBank bank = open(64);
+        for (int k = 0; k < 20; k++)
+            bank.deposit(k % N, k + 1);
+        long position = bank.checkpoint();
+        assertEquals(position, bank.getLogPosition());
+        File[] segments = WriteAheadLog.segments(directory);
+        assertTrue(WriteAheadLog.start(segments[0]) > 0);
+        bank.withdraw(0, 1);
+        bank.close();
+        bank = open(64);
+        assertEquals(20 * 21 / 2 - 1, bank.getTotalAmount());
+        assertEquals(1 + 9 + 17 - 1, bank.getAmount(0));
+        bank.close();
+    }
+
+    /**
+     * Transfers money concurrently while checkpoints are taken, and checks that every completed operation
+     * is in the last checkpoint and the log without closing the bank, and that concurrent changes
+     * are forced together.
+     */
+    public void testConcurrentTransfers() throws Exception {
+        final DurableBank bank = open(4096);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final boolean checkpointer = threadNo == 0;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < TRANSFERS_PER_THREAD; k++) {
+                            if (checkpointer) {
+                                if (k % 100 == 0)
+                                    bank.checkpoint();
+                                continue;
+                            }
+                            int i = rnd.nextInt(N);
+                            int j = (i + 1 + rnd.nextInt(N - 1)) % N;
+                            bank.tryTransfer(i, j, rnd.nextInt((int) MEAN) + 1);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        assertTrue("Forces " + bank.getForceCount(), bank.getForceCount() < (THREADS - 1) * TRANSFERS_PER_THREAD);
+        Bank recovered = new SequentialBank(N);
+        WriteAheadLog.replay(directory, recovered);
+        for (int i = 0; i < N; i++)
+            assertEquals(bank.getAmount(i), recovered.getAmount(i));
+        assertEquals(N * MEAN, recovered.getTotalAmount());
+        bank.close();
+    }
+
+    /**
+     * Deposits concurrently through a feed that holds fewer changes than can be committed while the log
+     * is forced, and checks that operations wait for the writer instead of failing it.
+     */
+    public void testBurst() throws Exception {
+        ChangeFeed feed = new ChangeFeed(2);
+        final DurableBank bank = new DurableBank(newBank(feed), feed, directory, COMMIT_DELAY,
+                WriteAheadLog.DEFAULT_SEGMENT_SIZE);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final int index = threadNo;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < TRANSFERS_PER_THREAD; k++)
+                            bank.deposit(index, 1);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        Bank recovered = new SequentialBank(N);
+        WriteAheadLog.replay(directory, recovered);
+        for (int i = 0; i < THREADS; i++)
+            assertEquals(TRANSFERS_PER_THREAD, recovered.getAmount(i));
+        bank.close();
+    }
+
+    private DurableBank open(long segmentSize) throws IOException {
+        ChangeFeed feed = new ChangeFeed(1 << 12);
+        return new DurableBank(newBank(feed), feed, directory, COMMIT_DELAY, segmentSize);
+    }
+
+    private static Bank newBank(ChangeFeed feed) {
+        return new BankImpl(N, feed);
+    }
+}
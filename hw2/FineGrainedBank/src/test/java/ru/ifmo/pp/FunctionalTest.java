@@ -1,6 +1,6 @@
 package ru.ifmo.pp;
 
-import junit.framework.TestCase;
+import junit.framework.Test;
 import ru.ifmo.pp.BankImpl;
 
 /**
@@ -8,10 +8,23 @@ import ru.ifmo.pp.BankImpl;
  *
  * @author Roman Elizarov
  */
-public class FunctionalTest extends TestCase {
+public class FunctionalTest extends BankTestCase {
     private static final int N = 10;
 
-    private final Bank bank = new BankImpl(N);
+    private Bank bank;
+
+    public FunctionalTest(String name, Variant variant) {
+        super(name, variant);
+    }
+
+    public static Test suite() {
+        return suite(FunctionalTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        bank = createBank(N);
+    }
 
     public void testEmptyBank() {
         assertEquals(N, bank.getNumberOfAccounts());
@@ -53,6 +66,39 @@ public class FunctionalTest extends TestCase {
         assertEquals(deposit1 + deposit2, bank.getTotalAmount());
     }
 
+    public void testRangeAmount() {
+        bank.deposit(0, 1);
+        bank.deposit(3, 10);
+        bank.deposit(N - 1, 100);
+        bank.transfer(3, 4, 5);
+        assertEquals(111, bank.getTotalAmount(0, N));
+        assertEquals(0, bank.getTotalAmount(1, 1));
+        assertEquals(1, bank.getTotalAmount(0, 3));
+        assertEquals(10, bank.getTotalAmount(3, 5));
+        assertEquals(5, bank.getTotalAmount(4, N - 1));
+        assertEquals(105, bank.getTotalAmount(4, N));
+        for (int from = 0; from <= N; from++) {
+            for (int to = from; to <= N; to++) {
+                long sum = 0;
+                for (int i = from; i < to; i++)
+                    sum += bank.getAmount(i);
+                assertEquals(sum, bank.getTotalAmount(from, to));
+            }
+        }
+        try {
+            bank.getTotalAmount(2, 1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            bank.getTotalAmount(0, N + 1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
     public void testTransfer() {
         int depositAmount = 9876;
         long depositResult = bank.deposit(1, depositAmount);
@@ -65,4 +111,61 @@ public class FunctionalTest extends TestCase {
         assertEquals(transferAmount, bank.getAmount(2));
         assertEquals(depositAmount, bank.getTotalAmount());
     }
+
+    public void testApplyBatch() {
+        if (!(this.bank instanceof BankImpl))
+            return;
+        BankImpl bank = (BankImpl) this.bank;
+        bank.deposit(0, 1000);
+        bank.deposit(1, Bank.MAX_AMOUNT - 10);
+        TransferBatch batch = new TransferBatch(2);
+        batch.add(0, 2, 600); // OK
+        batch.add(0, 3, 600); // UNDERFLOW, only 400 left
+        batch.add(2, 3, 600); // OK, uses funds of the first transfer
+        batch.add(3, 1, 11); // OVERFLOW
+        batch.add(3, 1, 10); // OK
+        batch.add(4, 4, 1); // SAME_ACCOUNT
+        batch.add(4, 5, 0); // INVALID_AMOUNT
+        batch.add(4, N, 1); // INVALID_INDEX
+        batch.add(3, 0, 590); // OK
+        int[] statuses = bank.applyBatch(batch);
+        assertEquals(9, statuses.length);
+        int[] expected = {TransferBatch.OK, TransferBatch.UNDERFLOW, TransferBatch.OK, TransferBatch.OVERFLOW,
+                TransferBatch.OK, TransferBatch.SAME_ACCOUNT, TransferBatch.INVALID_AMOUNT,
+                TransferBatch.INVALID_INDEX, TransferBatch.OK};
+        for (int k = 0; k < expected.length; k++)
+            assertEquals("Transfer #" + k, expected[k], statuses[k]);
+        assertEquals(990, bank.getAmount(0));
+        assertEquals(Bank.MAX_AMOUNT, bank.getAmount(1));
+        assertEquals(0, bank.getAmount(2));
+        assertEquals(0, bank.getAmount(3));
+        assertEquals(Bank.MAX_AMOUNT + 990, bank.getTotalAmount());
+        assertEquals(0, bank.applyBatch(new TransferBatch()).length);
+    }
+
+    public void testTryOperations() {
+        assertEquals(100, bank.tryDeposit(1, 100));
+        assertEquals(Bank.OVERFLOW, bank.tryDeposit(1, Bank.MAX_AMOUNT));
+        assertEquals(Bank.UNDERFLOW, bank.tryWithdraw(1, 101));
+        assertEquals(40, bank.tryWithdraw(1, 60));
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(1, 2, 41));
+        assertEquals(Bank.OK, bank.tryTransfer(1, 2, 40));
+        assertEquals(0, bank.getAmount(1));
+        assertEquals(40, bank.getAmount(2));
+        assertEquals(Bank.MAX_AMOUNT, bank.tryDeposit(3, Bank.MAX_AMOUNT));
+        assertEquals(Bank.OVERFLOW, bank.tryTransfer(2, 3, 1));
+        assertEquals(Bank.MAX_AMOUNT + 40, bank.getTotalAmount());
+        try {
+            bank.tryWithdraw(1, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.tryTransfer(1, 1, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
 }
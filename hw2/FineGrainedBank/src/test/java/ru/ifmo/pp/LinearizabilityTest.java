@@ -1,6 +1,6 @@
 package ru.ifmo.pp;
 
-import junit.framework.TestCase;
+import junit.framework.Test;
 
 import java.util.Random;
 import java.util.concurrent.Phaser;
@@ -12,7 +12,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * @author Roman Elizarov
  */
-public class LinearizabilityTest extends TestCase {
+public class LinearizabilityTest extends BankTestCase {
     private static final int RUNS = 250; // EDIT THIS NUMBER TO MAKE IT RUN SLOWER (more testing) OR FASTER
 
     private static final int N = 10; // that is a number of accounts bank is going to have
@@ -54,6 +54,14 @@ public class LinearizabilityTest extends TestCase {
     private int sumTotalResults;
     private int sumSeenResults;
 
+    public LinearizabilityTest(String name, Variant variant) {
+        super(name, variant);
+    }
+
+    public static Test suite() {
+        return suite(LinearizabilityTest.class);
+    }
+
     public void testLinearizability() {
         for (nThreads = 1; nThreads <= MAX_THREADS; nThreads++) {
             phaser.register();
@@ -69,6 +77,7 @@ public class LinearizabilityTest extends TestCase {
     @Override
     protected void tearDown() throws Exception {
         phaser.forceTermination();
+        super.tearDown();
     }
 
     private void doOneRun() {
@@ -143,7 +152,7 @@ public class LinearizabilityTest extends TestCase {
             threadOpsCnt[t] = opsCnt;
             for (int q = 0; q < opsCnt; q++) {
                 Operation op;
-                switch (rnd.nextInt(5)) {
+                switch (rnd.nextInt(6)) {
                     case 0:
                         op = new Operation.GetAmount(nextRndRunAccount());
                         break;
@@ -165,6 +174,11 @@ public class LinearizabilityTest extends TestCase {
                         } while (i == j);
                         op = new Operation.Transfer(i, j, nextRndAmountOrInvalid());
                         break;
+                    case 5:
+                        i = nextRndRunAccount();
+                        j = nextRndRunAccount();
+                        op = new Operation.GetRangeAmount(Math.min(i, j), Math.max(i, j) + 1);
+                        break;
                     default:
                         throw new AssertionError();
                 }
@@ -223,7 +237,7 @@ public class LinearizabilityTest extends TestCase {
     }
 
     private void doOneExecution() {
-        initBank(new BankImpl(N));
+        initBank(createBank(N));
         phaser.arriveAndAwaitAdvance();
         phaser.arriveAndAwaitAdvance();
     }
@@ -48,6 +48,29 @@ abstract class Operation {
         }
     }
 
+    static class GetRangeAmount extends Operation {
+        final int fromIndex;
+        final int toIndex;
+
+        GetRangeAmount(int fromIndex, int toIndex) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        @Override
+        Object invokeImpl(Bank bank) {
+            return bank.getTotalAmount(fromIndex, toIndex);
+        }
+
+        @Override
+        public String toString() {
+            return "GetRangeAmount{" +
+                    "fromIndex=" + fromIndex +
+                    ", toIndex=" + toIndex +
+                    '}';
+        }
+    }
+
     static class Deposit extends Operation {
         final int index;
         final long amount;
@@ -0,0 +1,220 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests for {@link PartitionedBank} with nodes of different sizes and for its {@link CoordinatorLog}.
+ */
+public class PartitionedBankTest extends TestCase {
+    private static final int THREADS = 4;
+    private static final int TRANSFERS_PER_THREAD = 20_000;
+    private static final long MEAN = 1_000;
+
+    private final PartitionedBank bank = new PartitionedBank(new BankImpl(3), new BankImpl(1), new BankImpl(100));
+
+    public void testPartitions() {
+        assertEquals(3, bank.getNumberOfPartitions());
+        assertEquals(104, bank.getNumberOfAccounts());
+        assertEquals(4, new PartitionedBank(10, 4, BankTestCase.NODES).getNumberOfPartitions());
+        assertEquals(2, new PartitionedBank(2, 4, BankTestCase.NODES).getNumberOfPartitions());
+        for (int i = 0; i < 104; i++)
+            bank.deposit(i, i + 1);
+        assertEquals(104 * 105 / 2, bank.getTotalAmount());
+        assertEquals(3 + 4 + 5, bank.getTotalAmount(2, 5));
+        assertEquals(0, bank.getTotalAmount(3, 3));
+        try {
+            bank.getAmount(104);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    public void testTwoPhaseCommit() {
+        CoordinatorLog log = bank.getCoordinatorLog();
+        bank.deposit(0, 100);
+        bank.transfer(0, 3, 30);
+        bank.transfer(3, 50, 10);
+        bank.transfer(0, 1, 5); // within a node
+        assertEquals(65, bank.getAmount(0));
+        assertEquals(5, bank.getAmount(1));
+        assertEquals(20, bank.getAmount(3));
+        assertEquals(10, bank.getAmount(50));
+        assertEquals(2, log.getCommitCount());
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(3, 0, 21));
+        bank.deposit(103, Bank.MAX_AMOUNT);
+        assertEquals(Bank.OVERFLOW, bank.tryTransfer(0, 103, 1));
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(1, 103, 6));
+        assertEquals(3, log.getAbortCount());
+        assertEquals(0, log.getActiveCount());
+        assertEquals(CoordinatorLog.UNKNOWN, log.getState(1));
+        assertEquals(Bank.MAX_AMOUNT + 100, bank.getTotalAmount());
+    }
+
+    /**
+     * Checks that a transfer that would both underflow and overflow reports underflow within a node and between
+     * nodes, whatever the node banks check first.
+     */
+    public void testStatusPrecedence() {
+        bank.deposit(1, Bank.MAX_AMOUNT);
+        bank.deposit(103, Bank.MAX_AMOUNT);
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(0, 1, 5)); // within a node
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(0, 103, 5));
+        bank.deposit(0, 10);
+        assertEquals(Bank.OVERFLOW, bank.tryTransfer(0, 1, 5));
+        assertEquals(Bank.OVERFLOW, bank.tryTransfer(0, 103, 5));
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(0, 1, 11));
+        assertEquals(10, bank.getAmount(0));
+        assertEquals(2 * Bank.MAX_AMOUNT + 10, bank.getTotalAmount());
+        assertEquals(Bank.OK, bank.tryTransfer(0, 2, 5));
+        assertEquals(5, bank.getAmount(2));
+    }
+
+    /**
+     * Commits a transaction that is not applied by nodes, as if the coordinator crashed after the commit had been
+     * logged, and checks that it is redone by a bank that is created with the log after restart.
+     */
+    public void testRecovery() throws IOException {
+        File directory = Files.createTempDirectory("coordinator").toFile();
+        try {
+            Bank[] nodes = {new BankImpl(3), new BankImpl(2)};
+            CoordinatorLog log = new CoordinatorLog(directory, 256);
+            PartitionedBank bank = new PartitionedBank(log, nodes);
+            bank.deposit(0, 100);
+            for (int k = 0; k < 20; k++)
+                bank.transfer(0, 3, 1); // starts new segments
+            assertEquals(Bank.UNDERFLOW, bank.tryTransfer(4, 0, 1));
+            long id = log.begin();
+            log.commit(id, new int[] {0, 4}, new long[] {70, 10});
+            log.close();
+            assertTrue(directory.listFiles().length < 5);
+
+            log = new CoordinatorLog(directory, 256);
+            assertEquals(1, log.getInDoubt().size());
+            assertEquals(CoordinatorLog.COMMITTED, log.getState(id));
+            bank = new PartitionedBank(log, nodes);
+            assertEquals(70, bank.getAmount(0));
+            assertEquals(20, bank.getAmount(3));
+            assertEquals(10, bank.getAmount(4));
+            assertEquals(CoordinatorLog.UNKNOWN, log.getState(id));
+            assertEquals(0, log.getActiveCount());
+            assertTrue(log.begin() > id);
+            log.close();
+
+            log = new CoordinatorLog(directory, 256);
+            assertEquals(0, log.getInDoubt().size());
+            log.close();
+        } finally {
+            for (File file : directory.listFiles())
+                assertTrue(file.delete());
+            assertTrue(directory.delete());
+        }
+    }
+
+    /**
+     * Transfers money between nodes concurrently while another thread checks that every total is the same.
+     */
+    public void testConsistentTotal() throws InterruptedException {
+        final int n = bank.getNumberOfAccounts();
+        for (int i = 0; i < n; i++)
+            bank.deposit(i, MEAN);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final boolean checker = threadNo == 0;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < TRANSFERS_PER_THREAD; k++) {
+                            if (checker) {
+                                if (k % 100 == 0)
+                                    assertEquals(n * MEAN, bank.getTotalAmount());
+                                continue;
+                            }
+                            int i = rnd.nextInt(n);
+                            int j = (i + 1 + rnd.nextInt(n - 1)) % n;
+                            bank.tryTransfer(i, j, rnd.nextInt((int) MEAN) + 1);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        assertEquals(n * MEAN, bank.getTotalAmount());
+        assertEquals(0, bank.getCoordinatorLog().getActiveCount());
+    }
+
+    /**
+     * Transfers money within nodes concurrently while another thread checks sums of whole nodes, which never
+     * take a coordinated cut, and a sum of a part of a node.
+     */
+    public void testTransfersWithinNodes() throws InterruptedException {
+        final int n = bank.getNumberOfAccounts();
+        for (int i = 0; i < n; i++)
+            bank.deposit(i, MEAN);
+        // ranges of accounts that keep their sums, the first is node 0 and the others are halves of node 2
+        final int[][] ranges = {{0, 3}, {4, 54}, {54, 104}};
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final boolean checker = threadNo == 0;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < TRANSFERS_PER_THREAD; k++) {
+                            if (checker) {
+                                if (k % 100 == 0) {
+                                    long cuts = bank.getCutCount();
+                                    assertEquals(n * MEAN, bank.getTotalAmount());
+                                    assertEquals(4 * MEAN, bank.getTotalAmount(0, 4));
+                                    assertEquals(cuts, bank.getCutCount());
+                                    assertEquals(50 * MEAN, bank.getTotalAmount(4, 54));
+                                }
+                                continue;
+                            }
+                            int[] range = ranges[rnd.nextInt(ranges.length)];
+                            int size = range[1] - range[0];
+                            int i = range[0] + rnd.nextInt(size);
+                            int j = range[0] + (i - range[0] + 1 + rnd.nextInt(size - 1)) % size;
+                            bank.tryTransfer(i, j, rnd.nextInt((int) MEAN) + 1);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        assertEquals(n * MEAN, bank.getTotalAmount());
+        assertEquals(0, bank.getCoordinatorLog().getCommitCount());
+    }
+}
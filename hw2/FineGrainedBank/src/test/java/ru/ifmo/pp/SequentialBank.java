@@ -53,6 +53,20 @@ class SequentialBank implements Bank {
         return sum;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > accounts.length || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        long sum = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            sum += accounts[i].amount;
+        }
+        return sum;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -100,6 +114,43 @@ class SequentialBank implements Bank {
         to.amount += amount;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        try {
+            return deposit(index, amount);
+        } catch (IllegalStateException e) {
+            return OVERFLOW;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        try {
+            return withdraw(index, amount);
+        } catch (IllegalStateException e) {
+            return UNDERFLOW;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        try {
+            transfer(fromIndex, toIndex, amount);
+            return OK;
+        } catch (IllegalStateException e) {
+            return e.getMessage().equals("Underflow") ? UNDERFLOW : OVERFLOW;
+        }
+    }
+
     /**
      * Private account data structure.
      */
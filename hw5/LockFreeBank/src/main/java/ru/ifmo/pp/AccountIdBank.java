@@ -0,0 +1,149 @@
+package ru.ifmo.pp;
+
+/**
+ * Bank facade that addresses accounts by sparse positive 64-bit identifiers instead of dense indices.
+ * Accounts are kept in {@link BankImpl} and identifiers are mapped to their indices by {@link LongIntHashMap},
+ * so resolution of identifiers is lock-free, does not allocate, and never serializes concurrent operations.
+ * This class is thread-safe and lock-free.
+ */
+public class AccountIdBank {
+    private final BankImpl bank;
+    private final LongIntHashMap indices = new LongIntHashMap();
+
+    /**
+     * Creates new bank instance without accounts.
+     */
+    public AccountIdBank() {
+        this(BankImpl.Mode.DEFAULT);
+    }
+
+    /**
+     * Creates new bank instance without accounts.
+     *
+     * @param mode defines how account instances and operation descriptors are managed.
+     */
+    public AccountIdBank(BankImpl.Mode mode) {
+        bank = new BankImpl(0, mode);
+    }
+
+    /**
+     * Opens new account with zero amount.
+     * When the same identifier is opened concurrently, only one account is opened, and index
+     * that was taken by the other thread is left unused with zero amount.
+     *
+     * @param id positive identifier of the new account.
+     * @return true if the account was opened, false if an account with this identifier is already open.
+     * @throws IllegalArgumentException when identifier is not positive.
+     */
+    public boolean openAccount(long id) {
+        if (indices.get(id) != LongIntHashMap.ABSENT)
+            return false;
+        return indices.putIfAbsent(id, bank.openAccount()) == LongIntHashMap.ABSENT;
+    }
+
+    /**
+     * Returns true if an account with the specified identifier is open.
+     *
+     * @throws IllegalArgumentException when identifier is not positive.
+     */
+    public boolean isOpen(long id) {
+        return indices.get(id) != LongIntHashMap.ABSENT;
+    }
+
+    /**
+     * Returns the number of accounts that were opened in the underlying bank, including unused ones.
+     */
+    public int getNumberOfAccounts() {
+        return bank.getNumberOfAccounts();
+    }
+
+    /**
+     * Returns current amount in the specified account.
+     *
+     * @param id account identifier.
+     * @return amount in account.
+     * @throws IllegalArgumentException when there is no account with this identifier.
+     */
+    public long getAmount(long id) {
+        return bank.getAmount(index(id));
+    }
+
+    /**
+     * Returns total amount deposited in this bank.
+     */
+    public long getTotalAmount() {
+        return bank.getTotalAmount();
+    }
+
+    /**
+     * Deposits specified amount to account.
+     *
+     * @see Bank#deposit(int, long)
+     * @throws IllegalArgumentException when there is no account with this identifier or amount is invalid.
+     * @throws IllegalStateException when deposit will overflow account above {@link Bank#MAX_AMOUNT}.
+     */
+    public long deposit(long id, long amount) {
+        return bank.deposit(index(id), amount);
+    }
+
+    /**
+     * Withdraws specified amount from account.
+     *
+     * @see Bank#withdraw(int, long)
+     * @throws IllegalArgumentException when there is no account with this identifier or amount is invalid.
+     * @throws IllegalStateException when there is not enough funds in account.
+     */
+    public long withdraw(long id, long amount) {
+        return bank.withdraw(index(id), amount);
+    }
+
+    /**
+     * Transfers specified amount from one account to another account.
+     *
+     * @see Bank#transfer(int, int, long)
+     * @throws IllegalArgumentException when there is no account with any of the identifiers,
+     *         amount is invalid, or identifiers are the same.
+     * @throws IllegalStateException when there is not enough funds in source account or too much in target one.
+     */
+    public void transfer(long fromId, long toId, long amount) {
+        bank.transfer(index(fromId), index(toId), amount);
+    }
+
+    /**
+     * Deposits specified amount to account if it does not overflow.
+     *
+     * @see Bank#tryDeposit(int, long)
+     * @throws IllegalArgumentException when there is no account with this identifier or amount is invalid.
+     */
+    public long tryDeposit(long id, long amount) {
+        return bank.tryDeposit(index(id), amount);
+    }
+
+    /**
+     * Withdraws specified amount from account if it has enough funds.
+     *
+     * @see Bank#tryWithdraw(int, long)
+     * @throws IllegalArgumentException when there is no account with this identifier or amount is invalid.
+     */
+    public long tryWithdraw(long id, long amount) {
+        return bank.tryWithdraw(index(id), amount);
+    }
+
+    /**
+     * Transfers specified amount from one account to another account if it can be done.
+     *
+     * @see Bank#tryTransfer(int, int, long)
+     * @throws IllegalArgumentException when there is no account with any of the identifiers,
+     *         amount is invalid, or identifiers are the same.
+     */
+    public int tryTransfer(long fromId, long toId, long amount) {
+        return bank.tryTransfer(index(fromId), index(toId), amount);
+    }
+
+    private int index(long id) {
+        int index = indices.get(id);
+        if (index == LongIntHashMap.ABSENT)
+            throw new IllegalArgumentException("Unknown account id: " + id);
+        return index;
+    }
+}
@@ -0,0 +1,181 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Announce array of operations that failed to complete on the fast path, as described in
+ * "A methodology for creating fast wait-free data structures" by A. Kogan and E. Petrank.
+ * This class is thread-safe.
+ * <p>
+ * <p>An announced operation gets a phase number. Its owner helps all announced operations with smaller
+ * phases before proceeding, and every thread helps one announced operation every {@link #HELP_DELAY}
+ * operations, visiting slots in round-robin order. Thus, once an operation is announced, all threads
+ * eventually work on it together, and the number of operations that can overtake it is bounded.
+ */
+class AnnounceArray {
+    /**
+     * Phase of operation that is not announced. Phases start from 1, so it is never assigned.
+     */
+    static final long NOT_ANNOUNCED = 0;
+
+    static final int SLOTS = 64;
+    private static final int HELP_DELAY = 4; // every thread helps one slot every HELP_DELAY operations
+
+    private final AtomicReferenceArray<BankImpl.Op> slots = new AtomicReferenceArray<>(SLOTS);
+    private final AtomicLong phase = new AtomicLong(NOT_ANNOUNCED + 1);
+
+    /**
+     * Per-thread state of helping, it does not reference this instance.
+     */
+    private final ThreadLocal<HelpState> helpState = new ThreadLocal<HelpState>() {
+        @Override
+        protected HelpState initialValue() {
+            return new HelpState((int) (Thread.currentThread().getId() % SLOTS));
+        }
+    };
+
+    /**
+     * Announces operation, so that all threads help it. Only one of the threads that announce the same
+     * operation concurrently gives it a phase, others remove their copies and return.
+     * <p>
+     * <p>The operation is placed in the first slot that is free or holds a completed operation, starting from
+     * the slot of the current thread. When all slots hold operations in progress, the thread helps them one by
+     * one until some slot is freed. A thread that is already helping does not help again, and leaves operation
+     * unannounced instead, because the thread that owns it announces it anyway.
+     */
+    void announce(BankImpl.Op op) {
+        HelpState state = helpState.get();
+        int slot = state.home;
+        for (int k = 1; op.phase == NOT_ANNOUNCED; k++) {
+            BankImpl.Op other = slots.get(slot);
+            if (other == op)
+                return; // placed by another thread
+            if ((other == null || other.completed) && slots.compareAndSet(slot, other, op)) {
+                if (!op.casPhase(NOT_ANNOUNCED, phase.getAndIncrement()))
+                    slots.compareAndSet(slot, op, null); // announced concurrently by another thread
+                return;
+            }
+            if (k % SLOTS == 0) {
+                // all slots are taken by operations in progress
+                if (state.helping)
+                    return;
+                state.helping = true;
+                try {
+                    help(slot, other);
+                } finally {
+                    state.helping = false;
+                }
+            }
+            slot = (slot + 1) % SLOTS;
+        }
+    }
+
+    /**
+     * Helps all announced operations with phases less than a given one, from the oldest one.
+     * <p>
+     * <p>Helping an operation may require helping older ones again, when the helper fails to complete it on the
+     * fast path. A thread that is already helping does not recurse then, but only raises the phase that it helps
+     * up to, and the outermost call helps all of these operations one after another. Thus a thread never helps
+     * more than one operation at a time, and it returns only when all operations older than the given one have
+     * completed.
+     */
+    void helpOlder(long phase) {
+        HelpState state = helpState.get();
+        if (phase > state.limit)
+            state.limit = phase;
+        if (!state.helping)
+            helpAll(state);
+    }
+
+    /**
+     * Invoked at the beginning of every operation to help announced operations in round-robin order.
+     */
+    void helpSome() {
+        HelpState state = helpState.get();
+        if (++state.operations % HELP_DELAY != 0 || state.helping)
+            return;
+        int slot = state.next;
+        state.next = (slot + 1) % SLOTS;
+        BankImpl.Op other = slots.get(slot);
+        if (other == null)
+            return;
+        state.helping = true;
+        try {
+            help(slot, other);
+        } finally {
+            state.helping = false;
+        }
+        helpAll(state);
+    }
+
+    /**
+     * Helps operations with phases less than {@link HelpState#limit} in the order of phases.
+     */
+    private void helpAll(HelpState state) {
+        state.helping = true;
+        try {
+            while (true) {
+                int oldest = -1;
+                BankImpl.Op op = null;
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    BankImpl.Op other = slots.get(slot);
+                    if (other == null)
+                        continue;
+                    long p = other.phase;
+                    if (p != NOT_ANNOUNCED && p < state.limit && (op == null || p < op.phase)) {
+                        oldest = slot;
+                        op = other;
+                    }
+                }
+                if (op == null)
+                    return;
+                help(oldest, op);
+            }
+        } finally {
+            state.helping = false;
+            state.limit = NOT_ANNOUNCED;
+        }
+    }
+
+    private void help(int slot, BankImpl.Op op) {
+        if (!op.completed)
+            op.invokeOperation();
+        slots.compareAndSet(slot, op, null);
+    }
+
+    /**
+     * Per-thread state of helping.
+     */
+    private static class HelpState {
+        /**
+         * Slot where the thread announces its operations first.
+         */
+        final int home;
+
+        /**
+         * The number of operations of the thread.
+         */
+        int operations;
+
+        /**
+         * The next slot to help by {@link #helpSome()}.
+         */
+        int next;
+
+        /**
+         * True while the thread helps an announced operation.
+         */
+        boolean helping;
+
+        /**
+         * Operations with phases less than this one must be helped before the outermost helping returns.
+         */
+        long limit = NOT_ANNOUNCED;
+
+        HelpState(int home) {
+            this.home = home;
+            this.next = home;
+        }
+    }
+}
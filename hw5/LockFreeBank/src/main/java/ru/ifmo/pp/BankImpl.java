@@ -1,6 +1,11 @@
 package ru.ifmo.pp;
 
-import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Bank implementation.
@@ -12,16 +17,189 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
  * See also "Practical lock-freedom" by Keir Fraser.
  * See {@link #acquire(int, Op)} method.
  * <p>
+ * <p>Accounts that are not acquired by any operation keep their amount in a mutable long word of a long-lived
+ * {@link Account} instance, so that deposit and withdraw are performed with a single compareAndSet on that
+ * word and do not allocate. An operation that acquires the account first claims the instance and then freezes
+ * the word with {@link #FROZEN} bit. Frozen word never changes again and the account instance is replaced in
+ * {@link #accounts} array, so account instances still never suffer from ABA problem. Any thread that finds
+ * the word frozen installs the replacement that the claim defines, so acquiring threads and depositors help
+ * each other instead of undoing each other's work, see {@link Account#claim}.
+ * <p>
+ * <p>In {@link Mode#RECYCLE_DESCRIPTORS} mode this implementation reuses account instances and
+ * {@link TransferOp} descriptors instead of allocating them on every operation. Reuse is safe, because
+ * objects are reclaimed with {@link EpochReclaimer} only after all threads that might still be helping an
+ * operation with them have completed their own operations.
+ * <p>
+ * <p>In {@link Mode#SNAPSHOTS} mode every update installs a new immutable version of the account that
+ * references the previous one and gets a timestamp from {@link SnapshotClock}, and operations complete with a
+ * single timestamp for all their accounts. {@link #getTotalAmount()} and {@link #getAmounts(int[])} read
+ * versions of a snapshot without acquiring accounts, so they never block writers, never force them to help,
+ * and never retry.
+ * <p>
+ * <p>In {@link Mode#WAIT_FREE} mode operations that fail to complete in {@link #FAST_PATH_ATTEMPTS} attempts
+ * are announced in {@link AnnounceArray}, so that all threads help them in the order of their phases.
+ * Deposit and withdraw turn into single-account {@link UpdateOp} on this slow path.
+ * <p>
+ * <p>In {@link Mode#ESCROW} mode an account whose deposit, withdraw, {@link #tryCredit(int, long)} or
+ * {@link #tryDebit(int, long)} keeps failing its compareAndSet is promoted to {@link EscrowAccount}, which splits
+ * the amount into slices. Credit and debit do not return the resulting amount, so they update only the slice of
+ * the current thread, and all slices are frozen together only when the slice runs short. Deposit and withdraw also
+ * update the slice of the current thread, but validate that other slices have not changed meanwhile, and reads
+ * validate a collect of all slices the same way. Operations with descriptors freeze all slices like an ordinary
+ * account word, so they stay linearizable.
+ * <p>
+ * <p>When {@link ChangeFeed} is given, every committed change of accounts is published to it. Deposit and withdraw
+ * then install a new account instance instead of updating the word in place, and take the sequence number
+ * between reading the account and replacing it, so the number is wasted with a skip when the replacement fails.
+ * Operations with descriptors take the sequence number while all their accounts are acquired, and the first
+ * helper to store it in {@link Op#sequence} publishes the change. Escrow accounts are not supported with a feed.
+ * <p>
  * <p>:TODO: This implementation has to be completed, so that it is thread-safe and lock-free.
  *
  * @author <Фамилия>
  */
-public class BankImpl implements Bank {
+public class BankImpl implements BatchBank {
+    /**
+     * Defines how account instances and operation descriptors are managed.
+     */
+    public enum Mode {
+        /**
+         * Account instances and descriptors are allocated when needed and left to garbage collector.
+         */
+        DEFAULT,
+
+        /**
+         * Account instances and descriptors are reused, so that transfer does not allocate memory in steady state.
+         */
+        RECYCLE_DESCRIPTORS,
+
+        /**
+         * Account updates install new versions and old versions are kept while they are needed by snapshot reads.
+         */
+        SNAPSHOTS,
+
+        /**
+         * Operations that are not completed in a bounded number of attempts are announced to be helped by
+         * all threads, so that every operation completes in a bounded number of steps.
+         */
+        WAIT_FREE,
+
+        /**
+         * Accounts that are contended by updates of a single account are split into slices that are updated
+         * by different threads.
+         */
+        ESCROW
+    }
+
+    /**
+     * Defines what retry loops do when they conflict with other operations, see {@link ContentionManager}.
+     */
+    public enum ContentionPolicy {
+        /**
+         * Operations that acquired accounts are helped immediately and failed CAS is retried immediately.
+         */
+        NONE,
+
+        /**
+         * Every conflict is followed by exponentially growing delay.
+         */
+        EXPONENTIAL_BACKOFF,
+
+        /**
+         * Every conflict is followed by random delay with exponentially growing upper bound.
+         */
+        RANDOMIZED_BACKOFF,
+
+        /**
+         * Operations that acquired accounts are given a chance to complete and are helped only after
+         * a fixed number of consecutive failures.
+         */
+        HELP_AFTER_FAILURES,
+
+        /**
+         * Older operations help younger ones immediately, younger operations and single-account operations
+         * wait for older ones like with {@link #HELP_AFTER_FAILURES}.
+         */
+        PRIORITY_BY_AGE
+    }
+
+    /**
+     * A bit in {@link Account#amount} word that marks the account as frozen by an operation that is acquiring it.
+     * Amounts never exceed {@link #MAX_AMOUNT}, so this bit is never used by the amount itself.
+     */
+    private static final long FROZEN = Long.MIN_VALUE;
+
+    // kinds of objects that are reused by reclaimer
+    private static final int ACCOUNT = 0;
+    private static final int ACQUIRED_ACCOUNT = 1;
+    private static final int TRANSFER_OP = 2;
+    private static final int KINDS = 3;
+
+    /**
+     * The number of failures of a retry loop before the operation turns to the slow path in {@link Mode#WAIT_FREE}.
+     */
+    static final int FAST_PATH_ATTEMPTS = 16;
+
+    /**
+     * The number of consecutive failures of an update of a single account before the account is promoted to
+     * {@link EscrowAccount} in {@link Mode#ESCROW} mode.
+     */
+    static final int ESCROW_PROMOTION_FAILURES = 4;
+
+    /**
+     * Result of {@link #updateEscrow(int, EscrowAccount, long)} when the account has changed.
+     */
+    private static final long RETRY = Long.MIN_VALUE;
+
+    private static final AtomicLongFieldUpdater<Op> PHASE_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(Op.class, "phase");
+    private static final AtomicLongFieldUpdater<Op> TIMESTAMP_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(Op.class, "timestamp");
+    private static final AtomicLongFieldUpdater<Op> SEQUENCE_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(Op.class, "sequence");
+    private static final AtomicIntegerFieldUpdater<BankImpl> NUMBER_OF_ACCOUNTS_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(BankImpl.class, "numberOfAccounts");
+    private static final AtomicIntegerFieldUpdater<TotalAmountOp> COUNT_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(TotalAmountOp.class, "count");
+
     /**
-     * An array of accounts by index.
+     * An array of accounts by index. It grows when accounts are opened, see {@link #openAccount()}.
      * Account instances here are never reused (there is no ABA).
      */
-    private final AtomicReferenceArray<Account> accounts;
+    private final SegmentedArray<Account> accounts;
+
+    /**
+     * The number of accounts. The {@link #accounts} array may have additional slots after them
+     * that are used by subclasses. It only grows, and slots of accounts are initialized before they are counted.
+     */
+    private volatile int numberOfAccounts;
+
+    /**
+     * Reclaimer of account instances and operation descriptors or null when they are not reused.
+     */
+    private final EpochReclaimer reclaimer;
+
+    /**
+     * Clock for versions of accounts or null when versions are not kept.
+     */
+    private final SnapshotClock clock;
+
+    private final ContentionManager contention;
+
+    /**
+     * Operations on the slow path or null unless in {@link Mode#WAIT_FREE} mode.
+     */
+    private final AnnounceArray announcements;
+
+    /**
+     * True in {@link Mode#ESCROW} mode.
+     */
+    private final boolean escrow;
+
+    /**
+     * Feed of committed changes or null when changes are not published.
+     */
+    private final ChangeFeed feed;
 
     /**
      * Creates new bank instance.
@@ -29,9 +207,70 @@ public class BankImpl implements Bank {
      * @param n the number of accounts (numbered from 0 to n-1).
      */
     public BankImpl(int n) {
-        accounts = new AtomicReferenceArray<>(n);
-        for (int i = 0; i < n; i++) {
-            accounts.set(i, new Account(0));
+        this(n, Mode.DEFAULT);
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param mode defines how account instances and operation descriptors are managed.
+     */
+    public BankImpl(int n, Mode mode) {
+        this(n, mode, ContentionPolicy.NONE);
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param mode defines how account instances and operation descriptors are managed.
+     * @param policy defines what operations do when they conflict with each other.
+     */
+    public BankImpl(int n, Mode mode, ContentionPolicy policy) {
+        this(n, 0, mode, policy, null);
+    }
+
+    /**
+     * Creates new bank instance that publishes committed changes to the feed.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param mode defines how account instances and operation descriptors are managed.
+     * @param policy defines what operations do when they conflict with each other.
+     * @param feed feed of committed changes.
+     * @throws IllegalArgumentException when mode is {@link Mode#ESCROW}.
+     */
+    public BankImpl(int n, Mode mode, ContentionPolicy policy, ChangeFeed feed) {
+        this(n, 0, mode, policy, feed);
+    }
+
+    /**
+     * Creates new bank instance with additional slots in {@link #accounts} array. Additional slots
+     * are initialized with zero amounts and can be updated by {@link UpdateOp} together with accounts.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param extraSlots the number of additional slots (numbered from n to n+extraSlots-1).
+     * @param mode defines how account instances and operation descriptors are managed.
+     * @param policy defines what operations do when they conflict with each other.
+     * @param feed feed of committed changes or null.
+     */
+    BankImpl(int n, int extraSlots, Mode mode, ContentionPolicy policy, ChangeFeed feed) {
+        if (feed != null && mode == Mode.ESCROW)
+            throw new IllegalArgumentException("Change feed is not supported in escrow mode");
+        numberOfAccounts = n;
+        accounts = new SegmentedArray<>(n + extraSlots);
+        reclaimer = mode == Mode.RECYCLE_DESCRIPTORS ? new EpochReclaimer(KINDS) : null;
+        clock = mode == Mode.SNAPSHOTS ? new SnapshotClock() : null;
+        contention = ContentionManager.create(policy);
+        announcements = mode == Mode.WAIT_FREE ? new AnnounceArray() : null;
+        escrow = mode == Mode.ESCROW;
+        this.feed = feed;
+        for (int i = 0; i < n + extraSlots; i++) {
+            Account account = new Account(0);
+            // initial versions are visible to all snapshots
+            if (clock != null)
+                account.timestamp = clock.now();
+            accounts.set(i, account);
         }
     }
 
@@ -40,7 +279,37 @@ public class BankImpl implements Bank {
      */
     @Override
     public int getNumberOfAccounts() {
-        return accounts.length();
+        return numberOfAccounts;
+    }
+
+    /**
+     * Opens new account with zero amount. Operations on other accounts are not paused while the account
+     * space grows: the slot of the new account is initialized first, and then the number of accounts
+     * is incremented with compareAndSet. A thread that loses the race helps to initialize the slot and retries.
+     *
+     * @return index of the new account, which is equal to the number of accounts before it was opened.
+     */
+    public int openAccount() {
+        while (true) {
+            int n = numberOfAccounts;
+            ensureCapacity(n + 1);
+            if (accounts.get(n) == null) {
+                Account account = new Account(0);
+                if (clock != null)
+                    account.timestamp = clock.now();
+                accounts.compareAndSet(n, null, account);
+            }
+            if (NUMBER_OF_ACCOUNTS_UPDATER.compareAndSet(this, n, n + 1))
+                return n;
+        }
+    }
+
+    /**
+     * Makes sure that the account space can hold the given number of accounts. It is invoked before
+     * a new account is counted, so subclasses can grow their own structures that are indexed by account.
+     */
+    void ensureCapacity(int n) {
+        accounts.ensureCapacity(n);
     }
 
     /**
@@ -49,15 +318,18 @@ public class BankImpl implements Bank {
 
     @Override
     public long getAmount(int index) {
-        while (true) {
-            Account account = accounts.get(index);
-            /*
-             * If there is a pending operation on this account, then help to complete it first using
-             * its invokeOperation method. If the result is false then there is no pending operation,
-             * thus the account amount can be safely returned.
-             */
-            if (!account.invokeOperation())
-                return account.amount;
+        /*
+         * This operation never helps pending operations, so it is wait-free. If the account is acquired by
+         * an operation that has not completed yet, then it is linearized before that operation and returns
+         * the amount that was acquired. Otherwise, the operation has already completed, its new amount
+         * is already known and stays in the account until it is released, so it is returned.
+         */
+        checkIndex(index);
+        enter();
+        try {
+            return readAmount(index);
+        } finally {
+            exit();
         }
     }
 
@@ -66,14 +338,105 @@ public class BankImpl implements Bank {
      */
     @Override
     public long getTotalAmount() {
+        if (clock != null) {
+            long sum = 0;
+            int slot = clock.startSnapshot();
+            try {
+                long timestamp = clock.takeTimestamp();
+                // accounts that are opened after the timestamp have no versions in the snapshot
+                int n = numberOfAccounts;
+                for (int i = 0; i < n; i++)
+                    sum += readVersion(i, timestamp);
+            } finally {
+                clock.finishSnapshot(slot);
+            }
+            return sum;
+        }
         /**
          * This operation requires atomic read of all accounts, thus it creates an operation descriptor.
          * Operation's invokeOperation method acquires all accounts, computes the total amount, and releases
          * all accounts. This method returns the result.
          */
-        TotalAmountOp op = new TotalAmountOp();
-        op.invokeOperation();
-        return op.sum;
+        enter();
+        try {
+            TotalAmountOp op = new TotalAmountOp();
+            op.invokeOperation();
+            return op.sum;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>This implementation acquires all accounts of the range, so it takes time proportional to the length
+     * of the range, see {@link SumTreeBankImpl} for O(log n) implementation.
+     * In {@link Mode#SNAPSHOTS} mode it reads a snapshot without acquiring accounts.
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        checkRange(fromIndex, toIndex);
+        if (clock != null) {
+            long sum = 0;
+            int slot = clock.startSnapshot();
+            try {
+                long timestamp = clock.takeTimestamp();
+                for (int i = fromIndex; i < toIndex; i++)
+                    sum += readVersion(i, timestamp);
+            } finally {
+                clock.finishSnapshot(slot);
+            }
+            return sum;
+        }
+        int[] slots = new int[toIndex - fromIndex];
+        for (int k = 0; k < slots.length; k++)
+            slots[k] = fromIndex + k;
+        return sumSlots(slots);
+    }
+
+    /**
+     * Returns current amounts in the specified accounts atomically.
+     * In {@link Mode#SNAPSHOTS} mode this method reads a snapshot without acquiring accounts.
+     *
+     * @param indices account indices from 0 to {@link #getNumberOfAccounts() n}-1, possibly repeated.
+     * @return amounts in accounts in the same order as indices.
+     * @throws IndexOutOfBoundsException when any index is invalid account index.
+     */
+    public long[] getAmounts(int[] indices) {
+        for (int index : indices)
+            checkIndex(index);
+        long[] amounts = new long[indices.length];
+        if (clock != null) {
+            int slot = clock.startSnapshot();
+            try {
+                long timestamp = clock.takeTimestamp();
+                for (int k = 0; k < indices.length; k++)
+                    amounts[k] = readVersion(indices[k], timestamp);
+            } finally {
+                clock.finishSnapshot(slot);
+            }
+            return amounts;
+        }
+        // otherwise, acquire all distinct accounts in ascending order with an update that does not change them
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int k = 0; k < sorted.length; k++) {
+            if (k == 0 || sorted[k] != sorted[k - 1])
+                sorted[n++] = sorted[k];
+        }
+        sorted = Arrays.copyOf(sorted, n);
+        UpdateOp op = new UpdateOp(sorted, new long[n]);
+        enter();
+        try {
+            op.invokeOperation();
+        } finally {
+            exit();
+        }
+        for (int k = 0; k < indices.length; k++)
+            amounts[k] = op.newAmounts[Arrays.binarySearch(sorted, indices[k])];
+        return amounts;
     }
 
     /**
@@ -81,29 +444,69 @@ public class BankImpl implements Bank {
      */
     @Override
     public long deposit(int index, long amount) {
+        long result = tryDeposit(index, amount);
+        if (result < 0)
+            throw new IllegalStateException(message((int) result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
         // First, validate method per-conditions
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
         if (amount > MAX_AMOUNT)
-            throw new IllegalStateException("Overflow");
+            return OVERFLOW;
         /*
          * This operation depends only on a single account, thus it can be directly
          * performed using a regular lock-free compareAndSet loop.
          */
-        while (true) {
-            Account account = accounts.get(index);
-            /*
-             * If there is a pending operation on this account, then help to complete it first using
-             * its invokeOperation method. If the result is false then there is no pending operation,
-             * thus the account can be safely updated.
-             */
-            if (!account.invokeOperation()) {
-                if (account.amount + amount > MAX_AMOUNT)
-                    throw new IllegalStateException("Overflow");
-                Account updated = new Account(account.amount + amount);
-                if (accounts.compareAndSet(index, account, updated))
-                    return updated.amount;
+        enter();
+        try {
+            int failures = 0;
+            while (true) {
+                Account account = accounts.get(index);
+                /*
+                 * If there is a pending operation on this account, then help to complete it first using
+                 * its invokeOperation method, unless contention manager decides to wait for it.
+                 * Otherwise, there is no pending operation, thus the account can be safely updated.
+                 */
+                if (account instanceof AcquiredAccount) {
+                    helpOrWait((AcquiredAccount) account, Long.MAX_VALUE, ++failures);
+                    if (announcements != null && failures >= FAST_PATH_ATTEMPTS)
+                        return updateOnSlowPath(index, amount);
+                    continue;
+                }
+                if (account instanceof EscrowAccount) {
+                    long result = ((EscrowAccount) account).addAndGet(amount);
+                    if (result == EscrowAccount.CONTENDED)
+                        result = updateEscrow(index, (EscrowAccount) account, amount);
+                    if (result != RETRY)
+                        return result;
+                    continue;
+                }
+                long current = account.amount;
+                if ((current & FROZEN) != 0) {
+                    install(index, account);
+                    continue;
+                }
+                if (current + amount > MAX_AMOUNT)
+                    return OVERFLOW;
+                if (updateAmount(index, account, current, current + amount))
+                    return current + amount;
+                if (++failures == ESCROW_PROMOTION_FAILURES && escrow)
+                    promote(index, account);
+                else
+                    contention.onFailedCas(failures);
+                if (announcements != null && failures >= FAST_PATH_ATTEMPTS)
+                    return updateOnSlowPath(index, amount);
             }
+        } finally {
+            exit();
         }
     }
 
@@ -112,22 +515,200 @@ public class BankImpl implements Bank {
      */
     @Override
     public long withdraw(int index, long amount) {
+        long result = tryWithdraw(index, amount);
+        if (result < 0)
+            throw new IllegalStateException(message((int) result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
         if (amount > MAX_AMOUNT)
-            throw new IllegalStateException("Invalid amount: " + amount);
-        while (true) {
-            Account account = accounts.get(index);
-            if (!account.invokeOperation()) {
-                if (account.amount - amount < 0)
-                    throw new IllegalStateException("Underflow");
-                Account updated = new Account(account.amount - amount);
-                if (accounts.compareAndSet(index, account, updated)) {
-                    return updated.amount;
+            return UNDERFLOW;
+        enter();
+        try {
+            int failures = 0;
+            while (true) {
+                Account account = accounts.get(index);
+                if (account instanceof AcquiredAccount) {
+                    helpOrWait((AcquiredAccount) account, Long.MAX_VALUE, ++failures);
+                    if (announcements != null && failures >= FAST_PATH_ATTEMPTS)
+                        return updateOnSlowPath(index, -amount);
+                    continue;
+                }
+                if (account instanceof EscrowAccount) {
+                    long result = ((EscrowAccount) account).addAndGet(-amount);
+                    if (result == EscrowAccount.CONTENDED)
+                        result = updateEscrow(index, (EscrowAccount) account, -amount);
+                    if (result != RETRY)
+                        return result;
+                    continue;
+                }
+                long current = account.amount;
+                if ((current & FROZEN) != 0) {
+                    install(index, account);
+                    continue;
+                }
+                if (current - amount < 0)
+                    return UNDERFLOW;
+                if (updateAmount(index, account, current, current - amount))
+                    return current - amount;
+                if (++failures == ESCROW_PROMOTION_FAILURES && escrow)
+                    promote(index, account);
+                else
+                    contention.onFailedCas(failures);
+                if (announcements != null && failures >= FAST_PATH_ATTEMPTS)
+                    return updateOnSlowPath(index, -amount);
+            }
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Deposits specified amount to account if it does not overflow. Unlike {@link #tryDeposit(int, long)},
+     * this method does not return the resulting amount, so in {@link Mode#ESCROW} mode it does not need
+     * to read all slices of an {@link EscrowAccount} and usually updates only the slice of the current thread.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to deposit.
+     * @return {@link #OK} or {@link #OVERFLOW}.
+     * @throws IllegalArgumentException when amount &lt;= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public int tryCredit(int index, long amount) {
+        if (!escrow) {
+            long result = tryDeposit(index, amount);
+            return result < 0 ? (int) result : OK;
+        }
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount > MAX_AMOUNT)
+            return OVERFLOW;
+        return updateSplit(index, amount);
+    }
+
+    /**
+     * Withdraws specified amount from account if it has enough funds. Unlike {@link #tryWithdraw(int, long)},
+     * this method does not return the resulting amount, so in {@link Mode#ESCROW} mode it does not need
+     * to read all slices of an {@link EscrowAccount} unless the slice of the current thread runs short.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param amount positive amount to withdraw.
+     * @return {@link #OK} or {@link #UNDERFLOW}.
+     * @throws IllegalArgumentException when amount &lt;= 0.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public int tryDebit(int index, long amount) {
+        if (!escrow) {
+            long result = tryWithdraw(index, amount);
+            return result < 0 ? (int) result : OK;
+        }
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount > MAX_AMOUNT)
+            return UNDERFLOW;
+        return updateSplit(index, -amount);
+    }
+
+    /**
+     * Adds delta to account in {@link Mode#ESCROW} mode, promoting the account to {@link EscrowAccount}
+     * when it is contended.
+     *
+     * @return {@link #OK} or failure status code.
+     */
+    private int updateSplit(int index, long delta) {
+        enter();
+        try {
+            int failures = 0;
+            while (true) {
+                Account account = accounts.get(index);
+                if (account instanceof AcquiredAccount) {
+                    helpOrWait((AcquiredAccount) account, Long.MAX_VALUE, ++failures);
+                    continue;
+                }
+                if (account instanceof EscrowAccount) {
+                    EscrowAccount escrowAccount = (EscrowAccount) account;
+                    int result = escrowAccount.addToSlice(delta);
+                    if (result == EscrowAccount.APPLIED)
+                        return OK;
+                    if (result == EscrowAccount.FROZEN_SLICE) {
+                        install(index, escrowAccount);
+                        continue;
+                    }
+                    // the slice runs short, so all slices are aggregated and rebalanced
+                    long total = updateEscrow(index, escrowAccount, delta);
+                    if (total != RETRY)
+                        return total < 0 ? (int) total : OK;
+                    continue;
+                }
+                long current = account.amount;
+                if ((current & FROZEN) != 0) {
+                    install(index, account);
+                    continue;
                 }
+                if (current + delta > MAX_AMOUNT)
+                    return OVERFLOW;
+                if (current + delta < 0)
+                    return UNDERFLOW;
+                if (updateAmount(index, account, current, current + delta))
+                    return OK;
+                if (++failures == ESCROW_PROMOTION_FAILURES)
+                    promote(index, account);
+                else
+                    contention.onFailedCas(failures);
             }
+        } finally {
+            exit();
         }
+    }
+
+    /**
+     * Promotes account to {@link EscrowAccount} in {@link Mode#ESCROW} mode regardless of contention.
+     */
+    void promoteToEscrow(int index) {
+        if (!escrow)
+            throw new IllegalStateException("Not in escrow mode");
+        checkIndex(index);
+        enter();
+        try {
+            while (true) {
+                Account account = accounts.get(index);
+                if (account instanceof EscrowAccount)
+                    return;
+                if (account instanceof AcquiredAccount)
+                    account.invokeOperation();
+                else
+                    promote(index, account);
+            }
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Returns true if account is acquired by an operation that is in progress.
+     */
+    boolean isAcquired(int index) {
+        return accounts.get(index) instanceof AcquiredAccount;
+    }
 
+    /**
+     * Returns true if account was promoted to {@link EscrowAccount}.
+     */
+    boolean isEscrow(int index) {
+        Account account = accounts.get(index);
+        if (account instanceof AcquiredAccount)
+            account = account.prev;
+        return account instanceof EscrowAccount;
     }
 
     /**
@@ -135,105 +716,1143 @@ public class BankImpl implements Bank {
      */
     @Override
     public void transfer(int fromIndex, int toIndex, long amount) {
+        int status = tryTransfer(fromIndex, toIndex, amount);
+        if (status != OK)
+            throw new IllegalStateException(message(status));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
         // First, validate method per-conditions
         if (amount <= 0)
             throw new IllegalArgumentException("Invalid amount: " + amount);
         if (fromIndex == toIndex)
             throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
         if (amount > MAX_AMOUNT)
-            throw new IllegalStateException("Underflow/overflow");
+            return OVERFLOW;
         /**
          * This operation requires atomic read of two accounts, thus it creates an operation descriptor.
          * Operation's invokeOperation method acquires both accounts, computes the result of operation
-         * (if a form of error message), and releases both accounts. This method throws the exception with
-         * the corresponding message if needed.
+         * (in a form of status code), and releases both accounts.
          */
-        TransferOp op = new TransferOp(fromIndex, toIndex, amount);
-        op.invokeOperation();
-        if (op.errorMessage != null)
-            throw new IllegalStateException(op.errorMessage);
+        enter();
+        try {
+            TransferOp op = newTransferOp(fromIndex, toIndex, amount);
+            op.invokeOperation();
+            int status = op.status;
+            retire(op, TRANSFER_OP); // both accounts were released by invokeOperation
+            return status;
+        } finally {
+            exit();
+        }
     }
 
+    /**
+     * Returns message of exception for a failure status code.
+     */
+    static String message(int status) {
+        switch (status) {
+            case UNDERFLOW:
+                return "Underflow";
+            case OVERFLOW:
+                return "Overflow";
+            default:
+                throw new IllegalArgumentException("Invalid status: " + status);
+        }
+    }
 
     /**
-     * This is an implementation of a restricted form of Harris DCSS operation:
-     * It atomically checks that op.completed is false and replaces accounts[index] with AcquiredAccount instance
-     * that hold a reference to the op.
-     * This method returns null if op.completed is true.
+     * Transfers specified amount from one account to another account if the source account has at least
+     * threshold before the transfer. The check and the transfer are a single atomic operation.
+     *
+     * @param fromIndex account index to withdraw from.
+     * @param toIndex account index to deposit to.
+     * @param amount positive amount to transfer.
+     * @param threshold the minimal amount in source account that allows the transfer.
+     * @return {@link #OK}, {@link #UNDERFLOW} when source account has less than threshold or amount,
+     *         or {@link #OVERFLOW} when there is too much in target one.
+     * @throws IllegalArgumentException when amount &lt;= 0 or fromIndex == toIndex.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
      */
-    private AcquiredAccount acquire(int index, Op op) {
-        /*
-         * This method must loop trying to replace accounts[index] with an instance of
-         *     new AcquiredAccount(<old-amount>, op) until that successfully happens and return the
-         *     instance of AcquiredAccount in this case.
-         *
-         * If current account is already "Acquired" by another operation, then this method must help that
-         * other operation by invoking "invokeOperation" and continue trying.
-         *
-         * Because accounts[index] does not have an ABA problem, there is no need to implement full-blown
-         * DCSS operation with descriptors for DCSS operation as explained in Harris CASN work. A simple
-         * lock-free compareAndSet loop suffices here if op.completed is checked after the accounts[index]
-         * is read.
+    public int transferIfBalanceAtLeast(int fromIndex, int toIndex, long amount, long threshold) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        if (amount > MAX_AMOUNT)
+            return OVERFLOW;
+        return (int) conditional(ConditionalOp.TRANSFER_IF_AT_LEAST, fromIndex, toIndex, amount, threshold);
+    }
+
+    /**
+     * Sets amount in account to the new value if it is equal to the expected one.
+     * The check and the update are a single atomic operation.
+     *
+     * @param index account index from 0 to {@link #getNumberOfAccounts() n}-1.
+     * @param expect the expected amount.
+     * @param update the new amount from 0 to {@link #MAX_AMOUNT}.
+     * @return true if the amount was set, false if the amount in account was not equal to the expected one.
+     * @throws IllegalArgumentException when the new amount is out of range.
+     * @throws IndexOutOfBoundsException when index is invalid account index.
+     */
+    public boolean compareAndSetAmount(int index, long expect, long update) {
+        if (update < 0 || update > MAX_AMOUNT)
+            throw new IllegalArgumentException("Invalid amount: " + update);
+        checkIndex(index);
+        return conditional(ConditionalOp.COMPARE_AND_SET, index, -1, update, expect) != 0;
+    }
+
+    /**
+     * Transfers as much as possible, but at most the specified amount, from one account to another account.
+     * The amount is limited by the funds in source account and the room below {@link #MAX_AMOUNT} in target one,
+     * and it is computed and transferred in a single atomic operation.
+     *
+     * @param fromIndex account index to withdraw from.
+     * @param toIndex account index to deposit to.
+     * @param maxAmount positive maximal amount to transfer.
+     * @return the transferred amount, which is zero when nothing can be transferred.
+     * @throws IllegalArgumentException when maxAmount &lt;= 0 or fromIndex == toIndex.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     */
+    public long transferUpTo(int fromIndex, int toIndex, long maxAmount) {
+        if (maxAmount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + maxAmount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        return conditional(ConditionalOp.TRANSFER_UP_TO, fromIndex, toIndex, maxAmount, 0);
+    }
+
+    /**
+     * Performs {@link ConditionalOp} on one or two accounts.
+     *
+     * @param toIndex the second account or -1 when there is only one.
+     * @return the result of operation.
+     */
+    private long conditional(int kind, int fromIndex, int toIndex, long amount, long limit) {
+        int[] indices = toIndex < 0 ? new int[] {fromIndex} :
+                new int[] {Math.min(fromIndex, toIndex), Math.max(fromIndex, toIndex)};
+        int from = indices[0] == fromIndex ? 0 : 1;
+        ConditionalOp op = new ConditionalOp(kind, batchSlots(indices), indices.length, from, 1 - from,
+                amount, limit);
+        invoke(op);
+        return op.result;
+    }
+
+    /**
+     * Atomically transfers specified amounts between accounts. Legs are applied all at once, so only
+     * the net change of every account is checked against underflow and overflow, and either all legs
+     * are committed or none of them.
+     *
+     * @param fromIndices account indices to withdraw from, one for every leg.
+     * @param toIndices account indices to deposit to, one for every leg.
+     * @param amounts positive amounts to transfer, one for every leg.
+     * @throws IllegalArgumentException when arrays have different lengths, any amount <= 0,
+     *                                  or fromIndex == toIndex in any leg.
+     * @throws IndexOutOfBoundsException when account indices are invalid.
+     * @throws IllegalStateException when there is not enough funds in any account or too much in any account
+     *                               after all legs, or when the sum of all amounts exceeds {@link Long#MAX_VALUE}.
+     */
+    public void transferMulti(int[] fromIndices, int[] toIndices, long[] amounts) {
+        int legs = amounts.length;
+        if (fromIndices.length != legs || toIndices.length != legs)
+            throw new IllegalArgumentException("Different number of legs");
+        long sum = 0;
+        for (int k = 0; k < legs; k++) {
+            if (amounts[k] <= 0)
+                throw new IllegalArgumentException("Invalid amount: " + amounts[k]);
+            if (fromIndices[k] == toIndices[k])
+                throw new IllegalArgumentException("fromIndex == toIndex");
+            if (amounts[k] > MAX_AMOUNT)
+                throw new IllegalStateException("Underflow/overflow");
+            checkIndex(fromIndices[k]);
+            checkIndex(toIndices[k]);
+            // partial sums of net changes of accounts cannot overflow when the sum of all amounts does not
+            sum += amounts[k];
+            if (sum < 0)
+                throw new IllegalStateException("Underflow/overflow");
+        }
+        /*
+         * Legs are sorted by account index with their order number in low bits of the key,
+         * so that legs of the same account are adjacent and can be merged into a single delta.
+         * Withdrawals have even order numbers and deposits have odd ones.
+         */
+        long[] keys = new long[2 * legs];
+        for (int k = 0; k < legs; k++) {
+            keys[2 * k] = (long) fromIndices[k] << 32 | 2 * k;
+            keys[2 * k + 1] = (long) toIndices[k] << 32 | 2 * k + 1;
+        }
+        Arrays.sort(keys);
+        int[] indices = new int[keys.length];
+        long[] deltas = new long[keys.length];
+        int n = 0;
+        for (int i = 0; i < keys.length; ) {
+            int index = (int) (keys[i] >>> 32);
+            long delta = 0;
+            for (; i < keys.length && (int) (keys[i] >>> 32) == index; i++) {
+                int leg = (int) keys[i];
+                delta += (leg & 1) == 0 ? -amounts[leg >>> 1] : amounts[leg >>> 1];
+            }
+            // accounts with zero net change are not affected by the operation
+            if (delta != 0) {
+                indices[n] = index;
+                deltas[n] = delta;
+                n++;
+            }
+        }
+        if (n > 0)
+            updateAccounts(Arrays.copyOf(indices, n), Arrays.copyOf(deltas, n));
+    }
+
+    /**
+     * Atomically adds deltas to accounts with an {@link UpdateOp}.
+     *
+     * @param indices distinct account indices in ascending order.
+     * @param deltas non-zero changes of amounts in accounts.
+     * @throws IllegalStateException when any account underflows or overflows.
+     */
+    void updateAccounts(int[] indices, long[] deltas) {
+        UpdateOp op = new UpdateOp(indices, deltas);
+        enter();
+        try {
+            op.invokeOperation();
+        } finally {
+            exit();
+        }
+        if (op.status != OK)
+            throw new IllegalStateException(message(op.status));
+    }
+
+    /**
+     * Applies all transfers of the batch atomically, as if they were performed one by one in their order
+     * in the batch. Transfers are grouped by account, so that the whole batch is a single operation
+     * that acquires and releases every account it uses only once.
+     *
+     * @param batch transfers to apply.
+     * @return status codes of transfers, see {@link TransferBatch#OK} and others.
+     */
+    @Override
+    public int[] applyBatch(TransferBatch batch) {
+        BatchOp op = newBatchOp(batch);
+        if (!op.completed)
+            invoke(op);
+        return op.statuses;
+    }
+
+    /**
+     * Creates descriptor of {@link #applyBatch(TransferBatch) applyBatch(...)} operation, so that it can be
+     * handed to other threads before it is invoked. A batch without valid transfers is completed immediately.
+     */
+    BatchOp newBatchOp(TransferBatch batch) {
+        int size = batch.size();
+        int[] statuses = new int[size];
+        int[] indices = new int[2 * size];
+        int n = 0;
+        for (int k = 0; k < size; k++) {
+            statuses[k] = batch.validate(k, numberOfAccounts);
+            if (statuses[k] == TransferBatch.OK) {
+                indices[n++] = batch.fromIndex(k);
+                indices[n++] = batch.toIndex(k);
+            }
+        }
+        if (n == 0) {
+            BatchOp op = new BatchOp(indices, 0, batch, indices, statuses);
+            op.completed = true;
+            return op;
+        }
+        Arrays.sort(indices, 0, n);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || indices[i] != indices[i - 1])
+                indices[m++] = indices[i];
+        }
+        indices = Arrays.copyOf(indices, m);
+        // positions of source and target accounts of valid transfers in the sorted array of accounts
+        int[] legs = new int[2 * size];
+        for (int k = 0; k < size; k++) {
+            if (statuses[k] == TransferBatch.OK) {
+                legs[2 * k] = Arrays.binarySearch(indices, batch.fromIndex(k));
+                legs[2 * k + 1] = Arrays.binarySearch(indices, batch.toIndex(k));
+            }
+        }
+        return new BatchOp(batchSlots(indices), m, batch, legs, statuses);
+    }
+
+    /**
+     * Invokes operation on behalf of the current thread, which may be helping the thread that created it.
+     */
+    void invoke(Op op) {
+        enter();
+        try {
+            op.invokeOperation();
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Returns slots that are acquired by {@link #applyBatch(TransferBatch) applyBatch(...)}.
+     *
+     * @param indices distinct account indices in ascending order.
+     * @return slots in ascending order that start with the given accounts.
+     */
+    int[] batchSlots(int[] indices) {
+        return indices;
+    }
+
+    /**
+     * Computes deltas of additional slots that are returned by {@link #batchSlots(int[])}.
+     * This method is invoked by all threads that help the operation, so it must not have side effects
+     * besides filling deltas.
+     *
+     * @param slots slots that are acquired by the operation.
+     * @param accounts the number of accounts in the beginning of slots.
+     * @param deltas changes of amounts by slot, those of accounts are already computed.
+     */
+    void batchDeltas(int[] slots, int accounts, long[] deltas) {
+        assert slots.length == accounts;
+    }
+
+
+    /**
+     * Checks that index is a valid account index, because {@link #accounts} array may be longer.
+     */
+    void checkIndex(int index) {
+        if (index < 0 || index >= numberOfAccounts)
+            throw new IndexOutOfBoundsException("Invalid account index: " + index);
+    }
+
+    /**
+     * Checks that accounts from fromIndex to toIndex-1 form a valid range.
+     */
+    void checkRange(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > numberOfAccounts || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+    }
+
+    /**
+     * Returns total amount in slots atomically. A single slot is read without acquiring it, otherwise
+     * all slots are acquired with an update that does not change them.
+     *
+     * @param slots distinct slot indices in ascending order.
+     */
+    long sumSlots(int[] slots) {
+        if (slots.length == 0)
+            return 0;
+        if (slots.length == 1) {
+            enter();
+            try {
+                return readAmount(slots[0]);
+            } finally {
+                exit();
+            }
+        }
+        UpdateOp op = new UpdateOp(slots, new long[slots.length]);
+        invoke(op);
+        long sum = 0;
+        for (long amount : op.newAmounts)
+            sum += amount;
+        return sum;
+    }
+
+    /**
+     * Reads current amount in the slot without helping pending operation, see {@link #getAmount(int)}.
+     */
+    long readAmount(int index) {
+        Account account = accounts.get(index);
+        if (account instanceof EscrowAccount) {
+            long amount = ((EscrowAccount) account).read();
+            if (amount != EscrowAccount.CONTENDED)
+                return amount;
+            // slices keep changing, so they are frozen, and the amount does not change while all slices are frozen
+            account.casClaim(null, 0L);
+            amount = account.freeze();
+            install(index, account);
+            return amount;
+        }
+        if (account instanceof AcquiredAccount) {
+            AcquiredAccount acquiredAccount = (AcquiredAccount) account;
+            Op op = acquiredAccount.op;
+            if (!op.completed)
+                return acquiredAccount.amount;
+            // newAmount is written before the volatile write to completed
+            stamp(op);
+            return acquiredAccount.newAmount;
+        }
+        stamp(account);
+        return account.amount & ~FROZEN;
+    }
+
+    /**
+     * Reads the amount in the slot as of snapshot with a given timestamp.
+     * This method must be called only in {@link Mode#SNAPSHOTS} mode.
+     */
+    private long readVersion(int index, long timestamp) {
+        Account account = accounts.get(index);
+        if (account instanceof AcquiredAccount) {
+            AcquiredAccount acquiredAccount = (AcquiredAccount) account;
+            Op op = acquiredAccount.op;
+            /*
+             * An operation that has not completed yet gets timestamp after it completes, so it is newer
+             * than this snapshot, and the version that was acquired by this operation is read.
+             */
+            if (op.completed) {
+                stamp(op);
+                if (op.timestamp <= timestamp)
+                    return acquiredAccount.newAmount;
+            }
+            account = acquiredAccount.prev;
+        }
+        while (account != null) {
+            stamp(account);
+            if (account.timestamp <= timestamp)
+                return account.amount & ~FROZEN;
+            account = account.prev;
+        }
+        return 0; // account was opened after the snapshot
+    }
+
+    /**
+     * Replaces amount of an account that is not acquired by any operation.
+     * In {@link Mode#SNAPSHOTS} mode a new version of the account is installed, and when changes are published
+     * to {@link #feed} a new account instance is installed, otherwise the amount is updated in place.
+     *
+     * @return true on success or false when the account has changed and the update shall be retried.
+     */
+    private boolean updateAmount(int index, Account account, long expect, long update) {
+        if (clock == null && feed == null)
+            return account.casAmount(expect, update);
+        // no other change of the account commits between reading it and replacing it
+        long sequence = feed == null ? 0 : feed.next();
+        // previous version must have its timestamp before the next version can get one
+        stamp(account);
+        Account updated;
+        if (clock == null) {
+            updated = newAccount(update);
+        } else {
+            updated = new Account(update);
+            updated.prev = account;
+        }
+        if (!accounts.compareAndSet(index, account, updated)) {
+            if (feed != null)
+                feed.skip(sequence);
+            recycle(updated, ACCOUNT);
+            return false;
+        }
+        if (feed != null)
+            feed.publish(new Change(sequence, index, update - expect, update));
+        if (clock == null) {
+            retire(account, ACCOUNT);
+        } else {
+            stamp(updated);
+            truncate(updated);
+        }
+        return true;
+    }
+
+    /**
+     * Takes sequence number for the change by completing operation and stores it in {@link Op#sequence}, unless
+     * another helper has done it first. Must be called while all accounts of the operation are acquired
+     * and before it is completed.
+     *
+     * @return the sequence number to publish the change with or 0 when the change shall not be published
+     *         by the caller.
+     */
+    private long takeSequence(Op op) {
+        if (feed == null || op.sequence != 0)
+            return 0;
+        long sequence = feed.next();
+        if (op.casSequence(0, sequence))
+            return sequence;
+        feed.skip(sequence);
+        return 0;
+    }
+
+    /**
+     * Publishes the change of accounts by completing operation, see {@link #takeSequence(Op)}.
+     * Slots after accounts and accounts with zero deltas are not included, and nothing is published when
+     * no account changes.
+     *
+     * @param slots slot indices in ascending order.
+     * @param acquired acquired slots with their new amounts.
+     * @param deltas changes of amounts by slot.
+     */
+    private void publish(Op op, int[] slots, AcquiredAccount[] acquired, long[] deltas) {
+        if (feed == null)
+            return;
+        int n = numberOfAccounts;
+        int size = 0;
+        for (int k = 0; k < slots.length; k++) {
+            if (slots[k] < n && deltas[k] != 0)
+                size++;
+        }
+        if (size == 0)
+            return;
+        long sequence = takeSequence(op);
+        if (sequence == 0)
+            return;
+        if (size == 1) {
+            for (int k = 0; k < slots.length; k++) {
+                if (slots[k] < n && deltas[k] != 0)
+                    feed.publish(new Change(sequence, slots[k], deltas[k], acquired[k].newAmount));
+            }
+            return;
+        }
+        int[] indices = new int[size];
+        long[] changes = new long[size];
+        long[] amounts = new long[size];
+        size = 0;
+        for (int k = 0; k < slots.length; k++) {
+            if (slots[k] < n && deltas[k] != 0) {
+                indices[size] = slots[k];
+                changes[size] = deltas[k];
+                amounts[size++] = acquired[k].newAmount;
+            }
+        }
+        feed.publish(new Change(sequence, Change.UPDATE, indices, changes, amounts));
+    }
+
+    /**
+     * Publishes transfer by completing operation, see {@link #takeSequence(Op)}.
+     */
+    private void publishTransfer(Op op, int fromIndex, int toIndex, long amount, long fromAmount, long toAmount) {
+        if (feed == null)
+            return;
+        long sequence = takeSequence(op);
+        if (sequence != 0)
+            feed.publish(new Change(sequence, Change.TRANSFER, new int[] {fromIndex, toIndex},
+                    new long[] {-amount, amount}, new long[] {fromAmount, toAmount}));
+    }
+
+    /**
+     * Replaces escrow account with a new one that holds the amount updated by delta and rebalanced between slices.
+     * All slices of the account are frozen first, so the account does not change until it is replaced. This is
+     * the fallback when the slice of the current thread runs short or other slices keep changing.
+     *
+     * @return resulting amount, failure status code, or {@link #RETRY} when the account was replaced by
+     *         another thread.
+     */
+    private long updateEscrow(int index, EscrowAccount account, long delta) {
+        if (!account.casClaim(null, delta)) {
+            install(index, account);
+            return RETRY;
+        }
+        // the account is replaced only with the claimed successor from now on, whoever installs it
+        long current = account.freeze();
+        install(index, account);
+        if (current + delta < 0 || current + delta > MAX_AMOUNT)
+            return delta < 0 ? UNDERFLOW : OVERFLOW;
+        return current + delta;
+    }
+
+    /**
+     * Replaces an ordinary account with {@link EscrowAccount} holding the same amount.
+     * Nothing happens if the account is claimed by another thread first.
+     */
+    private void promote(int index, Account account) {
+        account.casClaim(null, 0L);
+        install(index, account);
+    }
+
+    /**
+     * Sets timestamp of the account version if it is not set yet. Does nothing unless in {@link Mode#SNAPSHOTS}.
+     */
+    private void stamp(Account account) {
+        if (clock != null && account.timestamp == SnapshotClock.TBD)
+            account.casTimestamp(SnapshotClock.TBD, clock.now());
+    }
+
+    /**
+     * Sets timestamp of the completed operation if it is not set yet. Does nothing unless in {@link Mode#SNAPSHOTS}.
+     */
+    private void stamp(Op op) {
+        assert op.completed;
+        if (clock != null && op.timestamp == SnapshotClock.TBD)
+            op.casTimestamp(SnapshotClock.TBD, clock.now());
+    }
+
+    /**
+     * Cuts versions that are older than the oldest version that can be read by any snapshot.
+     */
+    private void truncate(Account version) {
+        long oldest = clock.oldestVisible();
+        for (Account account = version; account != null; account = account.prev) {
+            long timestamp = account.timestamp;
+            if (timestamp != SnapshotClock.TBD && timestamp <= oldest) {
+                account.prev = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * This is an implementation of a restricted form of Harris DCSS operation:
+     * It atomically checks that op.completed is false and replaces accounts[index] with AcquiredAccount instance
+     * that hold a reference to the op.
+     * This method returns null if op.completed is true.
+     */
+    AcquiredAccount acquire(int index, Op op) {
+        /*
+         * This method must loop trying to replace accounts[index] with an instance of
+         *     new AcquiredAccount(<old-amount>, op) until that successfully happens and return the
+         *     instance of AcquiredAccount in this case.
+         *
+         * If current account is already "Acquired" by another operation, then this method must help that
+         * other operation by invoking "invokeOperation" and continue trying.
+         *
+         * Because accounts[index] does not have an ABA problem, there is no need to implement full-blown
+         * DCSS operation with descriptors for DCSS operation as explained in Harris CASN work. A simple
+         * lock-free compareAndSet loop suffices here if op.completed is checked after the accounts[index]
+         * is read.
+         *
+         */
+        int failures = 0;
+        while (true) {
+            Account account = accounts.get(index);
+            if (op.completed) {
+                return null;
+            }
+            if (account instanceof AcquiredAccount) {
+                if (((AcquiredAccount) account).op == op) {
+                    return (AcquiredAccount) account;
+                }
+                helpOrWait((AcquiredAccount) account, op.birthTime, ++failures);
+                if (failures == FAST_PATH_ATTEMPTS)
+                    announce(op);
+                continue;
+            }
+            /*
+             * Account is claimed for the operation first, then its amount is frozen, so that concurrent deposits
+             * and withdrawals cannot change it in place anymore, and only then the account is replaced with
+             * AcquiredAccount instance. A thread that finds the frozen amount completes the replacement itself,
+             * and so does this thread when the account was claimed by another operation.
+             */
+            account.casClaim(null, op);
+            Account installed = install(index, account);
+            if (account.claim == op) {
+                if (installed != null)
+                    return (AcquiredAccount) installed;
+                continue; // installed by another thread, or the account was replaced before it was frozen
+            }
+            contention.onFailedCas(++failures);
+            if (failures == FAST_PATH_ATTEMPTS)
+                announce(op);
+        }
+    }
+
+    /**
+     * Turns operation to the slow path in {@link Mode#WAIT_FREE} mode: announces it, so that other
+     * threads help it, and helps all operations that were announced earlier. Does nothing in other modes.
+     */
+    private void announce(Op op) {
+        if (announcements != null) {
+            announcements.announce(op);
+            announcements.helpOlder(op.phase);
+        }
+    }
+
+    /**
+     * Performs deposit or withdraw on the slow path with {@link UpdateOp}.
+     *
+     * @return resulting amount in account or failure status code.
+     */
+    private long updateOnSlowPath(int index, long delta) {
+        UpdateOp op = new UpdateOp(new int[] {index}, new long[] {delta});
+        announce(op);
+        op.invokeOperation();
+        return op.status == OK ? op.newAmounts[0] : op.status;
+    }
+
+    /**
+     * Helps operation that has acquired the account or waits for it to complete, as decided by
+     * contention manager. The caller must read the account again in any case.
+     *
+     * @param birthTime birth time of the caller's operation or {@link Long#MAX_VALUE} if it has no descriptor.
+     * @param failures the number of consecutive failures of the caller.
+     */
+    private void helpOrWait(AcquiredAccount account, long birthTime, int failures) {
+        if (contention.shouldHelp(birthTime, account.op.birthTime, failures))
+            account.invokeOperation();
+    }
+
+    /**
+     * Releases an account that was previously acquired by {@link #acquire(int, Op)}.
+     * This method does nothing if the account at index is not currently acquired.
+     */
+    void release(int index, Op op) {
+        assert op.completed; // must be called only on operations that were already completed
+        Account account = accounts.get(index);
+        if (account instanceof AcquiredAccount) {
+            AcquiredAccount acquiredAccount = (AcquiredAccount) account;
+            if (acquiredAccount.op == op) {
+                // release performs update at most once while the account is still acquired
+                Account updated = acquiredAccount.prev instanceof EscrowAccount ?
+                        new EscrowAccount(acquiredAccount.newAmount) : newAccount(acquiredAccount.newAmount);
+                if (clock != null) {
+                    // all accounts of the operation get the same timestamp
+                    stamp(op);
+                    updated.timestamp = op.timestamp;
+                    updated.prev = acquiredAccount.prev;
+                }
+                if (accounts.compareAndSet(index, account, updated)) {
+                    retire(acquiredAccount, ACQUIRED_ACCOUNT);
+                    if (clock != null)
+                        truncate(updated);
+                } else {
+                    recycle(updated, ACCOUNT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Freezes account that was claimed, see {@link Account#claim}, and replaces it with the successor that
+     * the claim defines. The frozen amount never changes, so every thread that calls this method builds the same
+     * successor, and only one of them replaces the account. It is called by the thread that claims the account,
+     * and by any thread that finds the account frozen, which completes the replacement instead of waiting for
+     * the claiming thread. Nothing happens if the account was replaced already.
+     *
+     * @return the installed successor or null if the account was not replaced by this thread.
+     */
+    private Account install(int index, Account account) {
+        Object claim = account.claim;
+        assert claim != null;
+        long amount = account.freeze();
+        Account successor;
+        if (claim instanceof Op) {
+            stamp(account);
+            successor = newAcquiredAccount(amount, (Op) claim);
+            successor.prev = account;
+        } else {
+            long updated = amount + (Long) claim;
+            successor = new EscrowAccount(updated < 0 || updated > MAX_AMOUNT ? amount : updated);
+        }
+        if (accounts.compareAndSet(index, account, successor)) {
+            retire(account, ACCOUNT);
+            return successor;
+        }
+        if (claim instanceof Op)
+            recycle(successor, ACQUIRED_ACCOUNT);
+        return null;
+    }
+
+    void enter() {
+        if (reclaimer != null)
+            reclaimer.enter();
+        if (announcements != null)
+            announcements.helpSome();
+    }
+
+    void exit() {
+        if (reclaimer != null)
+            reclaimer.exit();
+    }
+
+    /**
+     * Retires an object that was removed from {@link #accounts} array or the operation that has completed.
+     */
+    private void retire(Object object, int kind) {
+        if (reclaimer != null)
+            reclaimer.retire(object, kind);
+    }
+
+    /**
+     * Returns an object that was never published to other threads for reuse.
+     */
+    private void recycle(Object object, int kind) {
+        if (reclaimer != null)
+            reclaimer.recycle(object, kind);
+    }
+
+    private Account newAccount(long amount) {
+        Account account = reclaimer == null ? null : (Account) reclaimer.reuse(ACCOUNT);
+        if (account == null)
+            return new Account(amount);
+        account.amount = amount;
+        account.claim = null;
+        return account;
+    }
+
+    private AcquiredAccount newAcquiredAccount(long amount, Op op) {
+        AcquiredAccount account = reclaimer == null ? null : (AcquiredAccount) reclaimer.reuse(ACQUIRED_ACCOUNT);
+        if (account == null)
+            return new AcquiredAccount(amount, op);
+        account.init(amount, op);
+        return account;
+    }
+
+    private TransferOp newTransferOp(int fromIndex, int toIndex, long amount) {
+        TransferOp op = reclaimer == null ? null : (TransferOp) reclaimer.reuse(TRANSFER_OP);
+        if (op == null)
+            return new TransferOp(fromIndex, toIndex, amount);
+        op.init(fromIndex, toIndex, amount);
+        return op;
+    }
+
+    /**
+     * Account data structure.
+     * Its amount can be updated in place with {@link #casAmount(long, long)} until it is frozen.
+     */
+    static class Account {
+        private static final AtomicLongFieldUpdater<Account> AMOUNT_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(Account.class, "amount");
+        private static final AtomicLongFieldUpdater<Account> TIMESTAMP_UPDATER =
+                AtomicLongFieldUpdater.newUpdater(Account.class, "timestamp");
+        private static final AtomicReferenceFieldUpdater<Account, Object> CLAIM_UPDATER =
+                AtomicReferenceFieldUpdater.newUpdater(Account.class, Object.class, "claim");
+
+        /**
+         * Amount of funds in this account, possibly with {@link #FROZEN} bit set.
+         */
+        volatile long amount;
+
+        /**
+         * Timestamp of this version in {@link Mode#SNAPSHOTS} mode or {@link SnapshotClock#TBD}.
+         */
+        volatile long timestamp;
+
+        /**
+         * Previous version in {@link Mode#SNAPSHOTS} mode. For AcquiredAccount it is the acquired version.
+         */
+        Account prev;
+
+        /**
+         * Defines the successor of this instance in {@link #accounts} array, it is set once before the amount
+         * is frozen. It is the operation that acquires the account, or the delta (a {@link Long}) that
+         * an {@link EscrowAccount} with the frozen amount gets, or keeps when the amount would be out of
+         * [0, {@link #MAX_AMOUNT}] range. See {@link #install(int, Account)}.
+         */
+        volatile Object claim;
+
+        Account(long amount) {
+            this.amount = amount;
+        }
+
+        boolean casAmount(long expect, long update) {
+            return AMOUNT_UPDATER.compareAndSet(this, expect, update);
+        }
+
+        void casTimestamp(long expect, long update) {
+            TIMESTAMP_UPDATER.compareAndSet(this, expect, update);
+        }
+
+        boolean casClaim(Object expect, Object update) {
+            return CLAIM_UPDATER.compareAndSet(this, expect, update);
+        }
+
+        /**
+         * Sets {@link #FROZEN} bit, so that amount is never changed in place again.
+         *
+         * @return the frozen amount.
+         */
+        long freeze() {
+            while (true) {
+                long current = amount;
+                if ((current & FROZEN) != 0)
+                    return current & ~FROZEN;
+                if (casAmount(current, current | FROZEN))
+                    return current;
+            }
+        }
+
+        /**
+         * Invokes operation that is pending on this account.
+         * This implementation returns false (no pending operation),
+         * other implementations return true.
+         */
+        boolean invokeOperation() {
+            return false;
+        }
+    }
+
+    /**
+     * Account with amount that is split into slices in {@link Mode#ESCROW} mode. Every thread updates the slice
+     * that its probe points to, and moves the probe to another slice when it fails a compareAndSet there, as
+     * {@link java.util.concurrent.atomic.LongAdder} does, so concurrent threads tend to update different slices.
+     * Slices have upper bounds that sum up to {@link #MAX_AMOUNT}, so updates of slices never overflow the account.
+     * <p>
+     * <p>Every slice word holds the amount of the slice, a version that is incremented by every change of the word,
+     * {@link #FROZEN} bit like the amount word of an ordinary account, and {@link #PENDING} bit. An operation that
+     * needs the whole amount to change it freezes all slices one by one, and the amount does not change once the
+     * last slice is frozen. The amount is read without freezing by collecting slices twice: when no version
+     * has changed between the collects, the slices held the collected amounts at the same moment. Versions are
+     * short and wrap around, so every slice also counts its changes in a separate word, which a collect compares
+     * as well.
+     * <p>
+     * <p>An update that returns the resulting amount sets its slice to the new amount with {@link #PENDING} bit,
+     * so that it is not visible to readers yet, collects the other slices, and clears the bit only if they have
+     * not changed since before it was set. Otherwise, the update is rolled back and retried. A thread that needs
+     * a pending slice rolls it back itself using the delta of the update that is kept next to the slice,
+     * so no thread ever waits for another one.
+     */
+    static class EscrowAccount extends Account {
+        static final int APPLIED = 0;
+        static final int SHORT = 1;
+        static final int FROZEN_SLICE = 2;
+
+        /**
+         * Result of {@link #read()} and {@link #addAndGet(long)} when the slices keep changing or cannot
+         * be updated, then the caller freezes all slices.
+         */
+        static final long CONTENDED = -1;
+
+        private static final int SLICES =
+                Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 2) - 1) << 1;
+        private static final int PAD = 8; // slices are kept in separate cache lines
+        private static final int ATTEMPTS = 4; // collects or updates before the caller falls back to freezing
+
+        /**
+         * Bit of a slice that is updated by {@link #addAndGet(long)} and may be rolled back.
+         */
+        private static final long PENDING = 1L << 62;
+
+        /**
+         * Versions are kept above the amount of a slice that never exceeds {@code MAX_AMOUNT / 2}, so only
+         * 13 bits are left for them. A slice that has changed exactly a multiple of {@code 2^13} times between
+         * collects looks unchanged by its version, but not by its count of changes, see {@link #changes(int)}.
+         */
+        private static final int VERSION_SHIFT = 64 - Long.numberOfLeadingZeros(MAX_AMOUNT / 2);
+        private static final long AMOUNT_MASK = (1L << VERSION_SHIFT) - 1;
+        private static final long VERSION_MASK = (PENDING - 1) & ~AMOUNT_MASK;
+
+        /**
+         * Slot of the current thread, rehashed on contention.
+         */
+        private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[] {ThreadLocalRandom.current().nextInt() | 1};
+            }
+        };
+
+        /**
+         * Slices of this account at indices that are multiples of {@link #PAD}, each followed by the delta
+         * of its pending update or 0, and by the count of attempts to change its version.
+         */
+        private final AtomicLongArray slices = new AtomicLongArray(SLICES * PAD);
+
+        /**
+         * Creates account with amount distributed evenly between slices.
+         */
+        EscrowAccount(long amount) {
+            super(0);
+            for (int i = 0; i < SLICES; i++)
+                slices.set(i * PAD, amount / SLICES + (i < amount % SLICES ? 1 : 0));
+        }
+
+        /**
+         * Adds delta to the slice of the current thread unless it runs short or is frozen.
          *
+         * @return {@link #APPLIED}, {@link #SHORT} or {@link #FROZEN_SLICE}.
          */
-        while (true) {
-            Account account = accounts.get(index);
-            if (op.completed) {
-                return null;
+        int addToSlice(long delta) {
+            int slice = slice();
+            while (true) {
+                long current = slices.get(slice * PAD);
+                if ((current & FROZEN) != 0)
+                    return FROZEN_SLICE;
+                if ((current & PENDING) != 0) {
+                    rollBack(slice, current);
+                    continue;
+                }
+                long updated = (current & AMOUNT_MASK) + delta;
+                if (updated < 0 || updated > limit(slice))
+                    return SHORT;
+                if (casSlice(slice, current, next(current, updated)))
+                    return APPLIED;
+                slice = rehash();
             }
-            if (account instanceof AcquiredAccount) {
-                if (((AcquiredAccount) account).op == op) {
-                    return (AcquiredAccount) account;
+        }
+
+        /**
+         * Adds delta to the slice of the current thread and returns the resulting amount of the account.
+         *
+         * @return the amount or {@link #CONTENDED} when the update was not applied, because the slice runs short,
+         *         is frozen, or the other slices keep changing.
+         */
+        long addAndGet(long delta) {
+            int slice = slice();
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++, slice = rehash()) {
+                long current = slices.get(slice * PAD);
+                if ((current & FROZEN) != 0)
+                    return CONTENDED;
+                if ((current & PENDING) != 0) {
+                    rollBack(slice, current);
+                    continue;
                 }
-                if (!account.invokeOperation()) {
+                long updated = (current & AMOUNT_MASK) + delta;
+                if (updated < 0 || updated > limit(slice))
+                    return CONTENDED;
+                long changes = changes(slice);
+                long versions = versions(slice);
+                if (versions < 0 || !slices.compareAndSet(slice * PAD + 1, 0, delta))
+                    continue; // another update is pending
+                long pending = next(current, updated) | PENDING;
+                if (casSlice(slice, current, pending)) {
+                    long others = 0;
+                    long versionsAfter = 0;
+                    for (int i = 0; i < SLICES; i++) {
+                        long word = slices.get(i * PAD);
+                        if (i != slice) {
+                            others += word & AMOUNT_MASK;
+                            versionsAfter += version(word);
+                        }
+                    }
+                    /*
+                     * The other slices held the collected amounts when the pending bit was set, and nobody could
+                     * observe the slice until the bit is cleared without rolling the update back, so the update
+                     * takes effect as if at the moment when the bit was set.
+                     */
+                    if (versions == versionsAfter && changes(slice) == changes
+                            && slices.compareAndSet(slice * PAD, pending, pending & ~PENDING)) {
+                        slices.set(slice * PAD + 1, 0);
+                        return others + updated;
+                    }
+                    // other slices have changed, or another thread has rolled the update back
+                    casSlice(slice, pending, next(pending, current & AMOUNT_MASK));
+                }
+                slices.set(slice * PAD + 1, 0);
+            }
+            return CONTENDED;
+        }
+
+        /**
+         * Reads the amount without changing slices.
+         *
+         * @return the amount or {@link #CONTENDED} when slices keep changing.
+         */
+        long read() {
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                long changes = changes(-1);
+                long versions = versions(-1);
+                if (versions < 0)
                     continue;
+                long sum = 0;
+                long versionsAfter = 0;
+                for (int i = 0; i < SLICES; i++) {
+                    long word = slices.get(i * PAD);
+                    sum += word & AMOUNT_MASK;
+                    versionsAfter += version(word);
                 }
+                if (versions == versionsAfter && changes(-1) == changes)
+                    return sum;
             }
-            AcquiredAccount acquiredAccount = new AcquiredAccount(account.amount, op);
-            if (accounts.compareAndSet(index, account, acquiredAccount)) {
-                return acquiredAccount;
+            return CONTENDED;
+        }
+
+        /**
+         * Freezes all slices, rolling back pending updates.
+         *
+         * @return the total amount of all slices.
+         */
+        @Override
+        long freeze() {
+            long sum = 0;
+            for (int i = 0; i < SLICES; i++) {
+                while (true) {
+                    long current = slices.get(i * PAD);
+                    if ((current & PENDING) != 0) {
+                        rollBack(i, current);
+                        continue;
+                    }
+                    if ((current & FROZEN) != 0 || slices.compareAndSet(i * PAD, current, current | FROZEN)) {
+                        sum += current & AMOUNT_MASK;
+                        break;
+                    }
+                }
             }
+            return sum;
+        }
 
+        /**
+         * Returns the sum of versions of all slices except the given one, or -1 if some of them is pending.
+         * The sum changes whenever any slice changes, except for freezing that does not change the amount.
+         */
+        private long versions(int except) {
+            long sum = 0;
+            for (int i = 0; i < SLICES; i++) {
+                long word = slices.get(i * PAD);
+                if (i == except)
+                    continue;
+                if ((word & PENDING) != 0)
+                    return -1;
+                sum += version(word);
+            }
+            return sum;
         }
-    }
 
-    /**
-     * Releases an account that was previously acquired by {@link #acquire(int, Op)}.
-     * This method does nothing if the account at index is not currently acquired.
-     */
-    private void release(int index, Op op) {
-        assert op.completed; // must be called only on operations that were already completed
-        Account account = accounts.get(index);
-        if (account instanceof AcquiredAccount) {
-            AcquiredAccount acquiredAccount = (AcquiredAccount) account;
-            if (acquiredAccount.op == op) {
-                // release performs update at most once while the account is still acquired
-                Account updated = new Account(acquiredAccount.newAmount);
-                accounts.compareAndSet(index, account, updated);
+        /**
+         * Returns the sum of counts of changes of all slices except the given one. A slice counts an attempt
+         * before it tries to change its version, so a collect that reads the same sum before and after itself has
+         * missed at most the changes that were counted before it by threads that are in the middle of changing,
+         * and versions of the slices tell these changes as long as there are fewer such threads than
+         * {@code 2^13}.
+         */
+        private long changes(int except) {
+            long sum = 0;
+            for (int i = 0; i < SLICES; i++) {
+                if (i != except)
+                    sum += slices.get(i * PAD + 2);
             }
+            return sum;
         }
-    }
 
-    /**
-     * Immutable account data structure.
-     */
-    private static class Account {
         /**
-         * Amount of funds in this account.
+         * Counts an attempt to change the version of the slice and tries it.
          */
-        final long amount;
+        private boolean casSlice(int slice, long expect, long update) {
+            slices.incrementAndGet(slice * PAD + 2);
+            return slices.compareAndSet(slice * PAD, expect, update);
+        }
 
-        Account(long amount) {
-            this.amount = amount;
+        private static long version(long word) {
+            return (word & VERSION_MASK) >>> VERSION_SHIFT;
         }
 
         /**
-         * Invokes operation that is pending on this account.
-         * This implementation returns false (no pending operation),
-         * other implementations return true.
+         * Rolls back pending update of the slice. Nothing happens if the update is already committed or rolled
+         * back, because then the version of the slice has changed.
          */
-        boolean invokeOperation() {
-            return false;
+        private void rollBack(int slice, long pending) {
+            long delta = slices.get(slice * PAD + 1);
+            if (delta != 0)
+                casSlice(slice, pending, next(pending, (pending & AMOUNT_MASK) - delta));
+        }
+
+        /**
+         * Returns the word of the slice with a given amount and the next version.
+         */
+        private static long next(long word, long amount) {
+            return (word + (1L << VERSION_SHIFT)) & VERSION_MASK | amount;
+        }
+
+        private static long limit(int slice) {
+            return MAX_AMOUNT / SLICES + (slice < MAX_AMOUNT % SLICES ? 1 : 0);
+        }
+
+        private static int slice() {
+            return PROBE.get()[0] & (SLICES - 1);
+        }
+
+        /**
+         * Moves the probe of the current thread to another slice.
+         */
+        private static int rehash() {
+            int[] probe = PROBE.get();
+            int h = probe[0];
+            h ^= h << 13;
+            h ^= h >>> 17;
+            h ^= h << 5;
+            probe[0] = h;
+            return h & (SLICES - 1);
         }
     }
 
@@ -242,8 +1861,8 @@ public class BankImpl implements Bank {
      *
      * @see #acquire(int, Op)
      */
-    private static class AcquiredAccount extends Account {
-        final Op op;
+    static class AcquiredAccount extends Account {
+        Op op;
 
         /**
          * New amount of funds in this account when op completes.
@@ -252,6 +1871,14 @@ public class BankImpl implements Bank {
 
         AcquiredAccount(long amount, Op op) {
             super(amount);
+            init(amount, op);
+        }
+
+        /**
+         * Initializes this instance before it is published, so it can be reused.
+         */
+        void init(long amount, Op op) {
+            this.amount = amount;
             this.op = op;
             this.newAmount = amount;
         }
@@ -266,12 +1893,44 @@ public class BankImpl implements Bank {
     /**
      * Abstract operation that acts on multiple accounts.
      */
-    private abstract class Op {
+    abstract class Op {
         /**
          * True when operation has completed.
          */
         volatile boolean completed;
 
+        /**
+         * Timestamp of completed operation in {@link Mode#SNAPSHOTS} mode or {@link SnapshotClock#TBD}.
+         */
+        volatile long timestamp;
+
+        /**
+         * Birth time for contention manager, see {@link ContentionManager#birthTime()}.
+         */
+        long birthTime = contention.birthTime();
+
+        /**
+         * Phase of operation on the slow path in {@link Mode#WAIT_FREE} mode or {@link AnnounceArray#NOT_ANNOUNCED}.
+         */
+        volatile long phase;
+
+        /**
+         * Sequence number of the published change or 0, see {@link #takeSequence(Op)}.
+         */
+        volatile long sequence;
+
+        void casTimestamp(long expect, long update) {
+            TIMESTAMP_UPDATER.compareAndSet(this, expect, update);
+        }
+
+        boolean casPhase(long expect, long update) {
+            return PHASE_UPDATER.compareAndSet(this, expect, update);
+        }
+
+        boolean casSequence(long expect, long update) {
+            return SEQUENCE_UPDATER.compareAndSet(this, expect, update);
+        }
+
         abstract void invokeOperation();
     }
 
@@ -285,16 +1944,32 @@ public class BankImpl implements Bank {
          */
         long sum;
 
+        /**
+         * The number of accounts to sum. Accounts may be opened while the operation is in progress,
+         * so it grows until all counted accounts are acquired while no more accounts are opened.
+         * Then it is sealed by storing its bitwise complement, and all helpers agree on the same value.
+         */
+        volatile int count = numberOfAccounts;
+
         @Override
         void invokeOperation() {
             long sum = 0;
-            int i;
-            int n = accounts.length();
-            for (i = 0; i < n; i++) {
-                AcquiredAccount account = acquire(i, this);
-                if (account == null)
+            int i = 0;
+            int n;
+            while (true) {
+                int c = count;
+                n = c < 0 ? ~c : c;
+                for (; i < n; i++) {
+                    AcquiredAccount account = acquire(i, this);
+                    if (account == null)
+                        break;
+                    sum += account.amount;
+                }
+                if (i < n || c < 0)
                     break;
-                sum += account.amount;
+                // all counted accounts are acquired, so the total is linearized if no more accounts are opened
+                int current = numberOfAccounts;
+                COUNT_UPDATER.compareAndSet(this, c, current > c ? current : ~c);
             }
             if (i == n) {
                 /*
@@ -319,16 +1994,30 @@ public class BankImpl implements Bank {
      * Descriptor for {@link #transfer(int, int, long) transfer(...)} operation.
      */
     private class TransferOp extends Op {
-        final int fromIndex;
-        final int toIndex;
-        final long amount;
+        int fromIndex;
+        int toIndex;
+        long amount;
 
-        String errorMessage;
+        /**
+         * Result of operation, it is written before setting {@link #completed} to true.
+         */
+        int status;
 
         TransferOp(int fromIndex, int toIndex, long amount) {
+            init(fromIndex, toIndex, amount);
+        }
+
+        /**
+         * Initializes this descriptor before it is published, so it can be reused.
+         */
+        void init(int fromIndex, int toIndex, long amount) {
             this.fromIndex = fromIndex;
             this.toIndex = toIndex;
             this.amount = amount;
+            this.status = OK;
+            this.completed = false;
+            this.sequence = 0;
+            this.birthTime = contention.birthTime();
         }
 
         @Override
@@ -347,18 +2036,346 @@ public class BankImpl implements Bank {
                 AcquiredAccount to = lowerIndex == fromIndex ? acquiredHigher : acquiredLower;
 
                 if (to.amount + amount > MAX_AMOUNT) {
-                    errorMessage = "Overflow";
+                    status = OVERFLOW;
 
                 } else if (from.amount < amount) {
-                    errorMessage = "Underflow";
+                    status = UNDERFLOW;
                 } else {
                     to.newAmount = to.amount + amount;
                     from.newAmount = from.amount - amount;
+                    publishTransfer(this, fromIndex, toIndex, amount, from.newAmount, to.newAmount);
+                }
+                this.completed = true;
+            }
+            release(higherIndex, this);
+            release(lowerIndex, this);
+        }
+    }
+
+    /**
+     * Descriptor for two concurrent transfers in opposite directions between the same pair of accounts,
+     * see {@link EliminationBankImpl}. Both transfers take effect at its linearization point, so the accounts
+     * are acquired once and get the net amount of successful transfers. The first transfer goes first,
+     * unless only the opposite order lets both transfers succeed.
+     */
+    class OppositeTransfersOp extends Op {
+        final int fromIndex;
+        final int toIndex;
+        final long amount;
+        final long oppositeAmount;
+
+        /**
+         * Results of the first and the opposite transfer, they are written before setting {@link #completed} to true.
+         */
+        int status;
+        int oppositeStatus;
+
+        OppositeTransfersOp(int fromIndex, int toIndex, long amount, long oppositeAmount) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.amount = amount;
+            this.oppositeAmount = oppositeAmount;
+        }
+
+        @Override
+        void invokeOperation() {
+            int lowerIndex = Math.min(fromIndex, toIndex);
+            int higherIndex = Math.max(fromIndex, toIndex);
+            AcquiredAccount acquiredLower = acquire(lowerIndex, this);
+            AcquiredAccount acquiredHigher = acquire(higherIndex, this);
+            if (acquiredLower != null && acquiredHigher != null) {
+                AcquiredAccount from = lowerIndex == fromIndex ? acquiredLower : acquiredHigher;
+                AcquiredAccount to = lowerIndex == fromIndex ? acquiredHigher : acquiredLower;
+                // benign data race: all helpers compute the same values from the same acquired amounts
+                int status = transferStatus(from.amount, to.amount, amount);
+                long net = status == OK ? amount : 0;
+                int oppositeStatus = transferStatus(to.amount + net, from.amount - net, oppositeAmount);
+                if ((status != OK || oppositeStatus != OK)
+                        && transferStatus(to.amount, from.amount, oppositeAmount) == OK
+                        && transferStatus(from.amount + oppositeAmount, to.amount - oppositeAmount, amount) == OK) {
+                    status = OK;
+                    oppositeStatus = OK;
+                    net = amount;
                 }
+                if (oppositeStatus == OK)
+                    net -= oppositeAmount;
+                if (net != 0) {
+                    from.newAmount = from.amount - net;
+                    to.newAmount = to.amount + net;
+                    if (net > 0)
+                        publishTransfer(this, fromIndex, toIndex, net, from.newAmount, to.newAmount);
+                    else
+                        publishTransfer(this, toIndex, fromIndex, -net, to.newAmount, from.newAmount);
+                }
+                this.status = status;
+                this.oppositeStatus = oppositeStatus;
                 this.completed = true;
             }
             release(higherIndex, this);
             release(lowerIndex, this);
         }
     }
+
+    /**
+     * Returns status of transfer between accounts with the given amounts with the same rules as {@link TransferOp}.
+     */
+    private static int transferStatus(long fromAmount, long toAmount, long amount) {
+        if (toAmount + amount > MAX_AMOUNT)
+            return OVERFLOW;
+        return fromAmount < amount ? UNDERFLOW : OK;
+    }
+
+    /**
+     * Descriptor for operation that atomically adds deltas to amounts in several slots of {@link #accounts} array.
+     * The operation fails without changing anything when any of the resulting account amounts is out of
+     * [0, {@link #MAX_AMOUNT}] range. Amounts in additional slots after accounts are not checked.
+     */
+    class UpdateOp extends Op {
+        /**
+         * Slot indices in ascending order, so that all operations acquire slots in the same order.
+         */
+        final int[] indices;
+        final long[] deltas;
+
+        /**
+         * Resulting amounts by slot, they are written before setting {@link #completed} to true
+         * and are valid only when {@link #status} is {@link #OK}.
+         */
+        final long[] newAmounts;
+
+        int status;
+
+        UpdateOp(int[] indices, long[] deltas) {
+            this.indices = indices;
+            this.deltas = deltas;
+            this.newAmounts = new long[indices.length];
+        }
+
+        @Override
+        void invokeOperation() {
+            int n = indices.length;
+            AcquiredAccount[] acquired = new AcquiredAccount[n];
+            int i;
+            for (i = 0; i < n; i++) {
+                acquired[i] = acquire(indices[i], this);
+                if (acquired[i] == null)
+                    break;
+            }
+            if (i == n) {
+                // benign data race: all helpers compute the same values from the same acquired amounts
+                int status = OK;
+                for (int k = 0; k < n && status == OK; k++) {
+                    long newAmount = acquired[k].amount + deltas[k];
+                    if (indices[k] < numberOfAccounts) {
+                        if (newAmount < 0)
+                            status = UNDERFLOW;
+                        else if (newAmount > MAX_AMOUNT)
+                            status = OVERFLOW;
+                    }
+                    newAmounts[k] = newAmount;
+                }
+                if (status == OK) {
+                    for (int k = 0; k < n; k++)
+                        acquired[k].newAmount = newAmounts[k];
+                    publish(this, indices, acquired, deltas);
+                }
+                this.status = status;
+                this.completed = true;
+            }
+            for (; --i >= 0; ) {
+                release(indices[i], this);
+            }
+        }
+    }
+
+    /**
+     * Descriptor for {@link #applyBatch(TransferBatch) applyBatch(...)} operation.
+     */
+    class BatchOp extends Op {
+        /**
+         * Slot indices in ascending order, starting with accounts used by the batch.
+         */
+        final int[] slots;
+        final int accounts;
+        final TransferBatch batch;
+
+        /**
+         * Positions of source and target accounts of k-th transfer in slots are 2k-th and (2k+1)-th elements.
+         */
+        final int[] legs;
+
+        /**
+         * Status codes of transfers, it is replaced with final status codes before setting
+         * {@link #completed} to true.
+         */
+        int[] statuses;
+
+        BatchOp(int[] slots, int accounts, TransferBatch batch, int[] legs, int[] statuses) {
+            this.slots = slots;
+            this.accounts = accounts;
+            this.batch = batch;
+            this.legs = legs;
+            this.statuses = statuses;
+        }
+
+        @Override
+        void invokeOperation() {
+            int n = slots.length;
+            AcquiredAccount[] acquired = new AcquiredAccount[n];
+            int i;
+            for (i = 0; i < n; i++) {
+                acquired[i] = acquire(slots[i], this);
+                if (acquired[i] == null)
+                    break;
+            }
+            if (i == n) {
+                // every helper computes its own copy of the results from the same acquired amounts
+                int[] statuses = this.statuses.clone();
+                long[] amounts = new long[accounts];
+                for (int k = 0; k < accounts; k++)
+                    amounts[k] = acquired[k].amount;
+                for (int k = 0; k < statuses.length; k++) {
+                    if (statuses[k] != TransferBatch.OK)
+                        continue;
+                    int from = legs[2 * k];
+                    int to = legs[2 * k + 1];
+                    long amount = batch.amount(k);
+                    if (amount > MAX_AMOUNT - amounts[to]) {
+                        statuses[k] = TransferBatch.OVERFLOW;
+                    } else if (amounts[from] < amount) {
+                        statuses[k] = TransferBatch.UNDERFLOW;
+                    } else {
+                        amounts[from] -= amount;
+                        amounts[to] += amount;
+                    }
+                }
+                long[] deltas = new long[n];
+                for (int k = 0; k < accounts; k++)
+                    deltas[k] = amounts[k] - acquired[k].amount;
+                batchDeltas(slots, accounts, deltas);
+                for (int k = 0; k < n; k++)
+                    acquired[k].newAmount = acquired[k].amount + deltas[k];
+                publish(this, slots, acquired, deltas);
+                this.statuses = statuses;
+                this.completed = true;
+            }
+            for (; --i >= 0; ) {
+                release(slots[i], this);
+            }
+        }
+    }
+
+    /**
+     * Descriptor for operations that decide how to change one or two accounts by their acquired amounts, see
+     * {@link #transferIfBalanceAtLeast(int, int, long, long) transferIfBalanceAtLeast(...)},
+     * {@link #compareAndSetAmount(int, long, long) compareAndSetAmount(...)}, and
+     * {@link #transferUpTo(int, int, long) transferUpTo(...)}.
+     */
+    class ConditionalOp extends Op {
+        // kinds of operations
+        static final int TRANSFER_IF_AT_LEAST = 1;
+        static final int COMPARE_AND_SET = 2;
+        static final int TRANSFER_UP_TO = 3;
+
+        final int kind;
+
+        /**
+         * Slot indices in ascending order, starting with accounts used by the operation.
+         */
+        final int[] slots;
+        final int accounts;
+
+        /**
+         * Positions of source and target accounts in slots, the target is ignored by compare-and-set.
+         */
+        final int from;
+        final int to;
+
+        /**
+         * The amount to transfer, the maximal amount to transfer, or the new amount to set.
+         */
+        final long amount;
+
+        /**
+         * The threshold of source account or the expected amount.
+         */
+        final long limit;
+
+        /**
+         * Result of operation, it is written before setting {@link #completed} to true. It is a status code,
+         * 1 or 0 for successful or failed compare-and-set, or the transferred amount.
+         */
+        long result;
+
+        ConditionalOp(int kind, int[] slots, int accounts, int from, int to, long amount, long limit) {
+            this.kind = kind;
+            this.slots = slots;
+            this.accounts = accounts;
+            this.from = from;
+            this.to = to;
+            this.amount = amount;
+            this.limit = limit;
+        }
+
+        @Override
+        void invokeOperation() {
+            int n = slots.length;
+            AcquiredAccount[] acquired = new AcquiredAccount[n];
+            int i;
+            for (i = 0; i < n; i++) {
+                acquired[i] = acquire(slots[i], this);
+                if (acquired[i] == null)
+                    break;
+            }
+            if (i == n) {
+                // benign data race: all helpers compute the same values from the same acquired amounts
+                long[] deltas = new long[n];
+                long result = decide(acquired, deltas);
+                batchDeltas(slots, accounts, deltas);
+                for (int k = 0; k < n; k++)
+                    acquired[k].newAmount = acquired[k].amount + deltas[k];
+                if (kind == COMPARE_AND_SET)
+                    publish(this, slots, acquired, deltas);
+                else if (deltas[from] != 0)
+                    publishTransfer(this, slots[from], slots[to], deltas[to], acquired[from].newAmount,
+                            acquired[to].newAmount);
+                this.result = result;
+                this.completed = true;
+            }
+            for (; --i >= 0; ) {
+                release(slots[i], this);
+            }
+        }
+
+        /**
+         * Computes deltas of accounts from their acquired amounts.
+         *
+         * @return the result of operation.
+         */
+        private long decide(AcquiredAccount[] acquired, long[] deltas) {
+            long fromAmount = acquired[from].amount;
+            switch (kind) {
+                case TRANSFER_IF_AT_LEAST:
+                    if (amount > MAX_AMOUNT - acquired[to].amount)
+                        return OVERFLOW;
+                    if (fromAmount < amount || fromAmount < limit)
+                        return UNDERFLOW;
+                    deltas[from] = -amount;
+                    deltas[to] = amount;
+                    return OK;
+                case COMPARE_AND_SET:
+                    if (fromAmount != limit)
+                        return 0;
+                    deltas[from] = amount - fromAmount;
+                    return 1;
+                case TRANSFER_UP_TO:
+                    long moved = Math.min(Math.min(amount, fromAmount), MAX_AMOUNT - acquired[to].amount);
+                    deltas[from] = -moved;
+                    deltas[to] = moved;
+                    return moved;
+                default:
+                    throw new AssertionError("Invalid operation: " + kind);
+            }
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Contention management policy for retry loops of {@link BankImpl}.
+ * Implementations are thread-safe and keep no per-operation state, failures are counted by callers.
+ * <p>
+ * <p>A retry loop calls {@link #onFailedCas(int)} when its compareAndSet fails and {@link #shouldHelp}
+ * when it finds an account that is acquired by another operation. Any policy eventually helps the other
+ * operation, so that a stalled thread cannot prevent others from making progress and the bank stays lock-free.
+ */
+abstract class ContentionManager {
+    private static final int MIN_SPINS = 16;
+    private static final int MAX_SPINS = 16 * 1024;
+    private static final int YIELD_SPINS = 1024; // longer waits yield processor to other threads
+
+    /**
+     * Written by nobody, read while spinning, so that spin loops are not eliminated by JIT.
+     */
+    private static volatile int spinSink;
+
+    /**
+     * Creates contention manager for the given policy.
+     */
+    static ContentionManager create(BankImpl.ContentionPolicy policy) {
+        switch (policy) {
+            case NONE:
+                return NONE;
+            case EXPONENTIAL_BACKOFF:
+                return new Backoff(false);
+            case RANDOMIZED_BACKOFF:
+                return new Backoff(true);
+            case HELP_AFTER_FAILURES:
+                return new HelpAfterFailures();
+            case PRIORITY_BY_AGE:
+                return new PriorityByAge();
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    /**
+     * Policy that helps conflicting operations immediately and retries failed CAS immediately.
+     */
+    static final ContentionManager NONE = new ContentionManager() {};
+
+    /**
+     * Returns a value that is kept in operation descriptor and passed to {@link #shouldHelp}.
+     * Only policies that need operation age use it.
+     */
+    long birthTime() {
+        return 0;
+    }
+
+    /**
+     * Invoked when compareAndSet of an account fails.
+     *
+     * @param failures the number of consecutive failures of the caller, starting from 1.
+     */
+    void onFailedCas(int failures) {}
+
+    /**
+     * Invoked when an account is acquired by another operation. This method may wait before returning.
+     *
+     * @param birthTime birth time of the caller's operation or {@link Long#MAX_VALUE} for a single-account
+     *                  operation, which is not visible to other threads.
+     * @param other birth time of the operation that has acquired the account.
+     * @param failures the number of consecutive failures of the caller, starting from 1.
+     * @return true if the other operation shall be helped now, false if the account shall be read again.
+     */
+    boolean shouldHelp(long birthTime, long other, int failures) {
+        return true;
+    }
+
+    /**
+     * Busy-waits for a number of iterations that grows exponentially with the number of failures.
+     */
+    static void backoff(int failures, boolean randomized) {
+        int spins = MIN_SPINS << Math.min(failures - 1, Integer.numberOfTrailingZeros(MAX_SPINS / MIN_SPINS));
+        if (randomized)
+            spins = ThreadLocalRandom.current().nextInt(spins) + 1;
+        spin(spins);
+    }
+
+    static void spin(int spins) {
+        if (spins >= YIELD_SPINS) {
+            // waiting for a preempted thread is pointless, let it run
+            Thread.yield();
+            spins -= YIELD_SPINS;
+        }
+        for (int i = 0; i < spins; i++) {
+            if (spinSink != 0)
+                return;
+        }
+    }
+
+    /**
+     * Policy that backs off after every failure and helps conflicting operations after backing off.
+     */
+    private static class Backoff extends ContentionManager {
+        private final boolean randomized;
+
+        Backoff(boolean randomized) {
+            this.randomized = randomized;
+        }
+
+        @Override
+        void onFailedCas(int failures) {
+            backoff(failures, randomized);
+        }
+
+        @Override
+        boolean shouldHelp(long birthTime, long other, int failures) {
+            backoff(failures, randomized);
+            return true;
+        }
+    }
+
+    /**
+     * Policy that gives conflicting operations a chance to complete by themselves and helps them
+     * only after {@link #MAX_WAITS} consecutive failures.
+     */
+    private static class HelpAfterFailures extends ContentionManager {
+        static final int MAX_WAITS = 8;
+
+        @Override
+        boolean shouldHelp(long birthTime, long other, int failures) {
+            if (failures > MAX_WAITS)
+                return true;
+            backoff(failures, false);
+            return false;
+        }
+    }
+
+    /**
+     * Policy that gives priority to older operations like the timestamp contention manager of
+     * software transactional memory: an older operation helps the younger one it conflicts with immediately
+     * to get it out of the way, while a younger operation waits for the older one to complete
+     * and helps it only after {@link #MAX_WAITS} consecutive failures.
+     */
+    private static class PriorityByAge extends HelpAfterFailures {
+        @Override
+        long birthTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        boolean shouldHelp(long birthTime, long other, int failures) {
+            boolean older = birthTime != Long.MAX_VALUE && birthTime - other < 0;
+            return older || super.shouldHelp(birthTime, other, failures);
+        }
+    }
+}
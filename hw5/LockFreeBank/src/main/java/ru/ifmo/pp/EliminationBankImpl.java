@@ -0,0 +1,130 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Bank implementation that nets concurrent transfers in opposite directions between the same pair of accounts,
+ * like elimination in "A scalable lock-free stack algorithm" by D. Hendler, N. Shavit and L. Yerushalmi.
+ * This class is thread-safe and lock-free.
+ * <p>
+ * <p>A transfer first looks at the slot of its pair of accounts in the elimination array. When the slot holds
+ * an offer of the opposite transfer, both transfers are netted into a single operation that acquires the two
+ * accounts only once and writes the difference of the transferred amounts. Otherwise, when one of the accounts
+ * is acquired by another operation, the transfer offers itself in the slot for a short time, and it falls back
+ * to an ordinary transfer when nobody takes the offer or the accounts are not contended. Both netted
+ * transfers take effect at the linearization point of the operation one after another, the waiting transfer
+ * first unless only the opposite order lets both of them succeed, and each of them gets its own status code
+ * with the same underflow and overflow rules as an ordinary transfer. The thread whose offer was taken helps
+ * the operation to complete, so it never waits for the other thread.
+ */
+public class EliminationBankImpl extends BankImpl {
+    private static final int SLOTS = 64;
+    private static final int WAIT_SPINS = 64; // number of checks of an offer before it is cancelled
+
+    /**
+     * State of an offer that was cancelled by its owner.
+     */
+    private static final Object CANCELLED = new Object();
+
+    private final AtomicReferenceArray<Offer> offers = new AtomicReferenceArray<>(SLOTS);
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public EliminationBankImpl(int n) {
+        super(n);
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param mode defines how account instances and operation descriptors are managed.
+     */
+    public EliminationBankImpl(int n, Mode mode) {
+        super(n, mode);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        if (amount > MAX_AMOUNT)
+            return OVERFLOW;
+        int slot = slot(fromIndex, toIndex);
+        Offer other = offers.get(slot);
+        if (other != null) {
+            if (other.fromIndex == toIndex && other.toIndex == fromIndex) {
+                OppositeTransfersOp op = new OppositeTransfersOp(other.fromIndex, other.toIndex, other.amount, amount);
+                if (other.casState(null, op)) {
+                    offers.compareAndSet(slot, other, null);
+                    invoke(op);
+                    return op.oppositeStatus;
+                }
+            }
+            return super.tryTransfer(fromIndex, toIndex, amount);
+        }
+        if (!isAcquired(fromIndex) && !isAcquired(toIndex))
+            return super.tryTransfer(fromIndex, toIndex, amount);
+        Offer offer = new Offer(fromIndex, toIndex, amount);
+        if (!offers.compareAndSet(slot, null, offer))
+            return super.tryTransfer(fromIndex, toIndex, amount);
+        for (int spins = 0; spins < WAIT_SPINS && offer.state == null; spins++) {
+            // wait for the opposite transfer
+        }
+        if (offer.casState(null, CANCELLED)) {
+            offers.compareAndSet(slot, offer, null);
+            return super.tryTransfer(fromIndex, toIndex, amount);
+        }
+        // the offer was taken, help the operation with both transfers
+        OppositeTransfersOp op = (OppositeTransfersOp) offer.state;
+        if (!op.completed)
+            invoke(op);
+        return op.status;
+    }
+
+    /**
+     * Returns slot of elimination array for a pair of accounts regardless of the direction of transfer.
+     */
+    private static int slot(int fromIndex, int toIndex) {
+        int hash = (Math.min(fromIndex, toIndex) * 0x9E3779B9 + Math.max(fromIndex, toIndex)) * 0x9E3779B9;
+        return hash >>> (32 - Integer.numberOfTrailingZeros(SLOTS));
+    }
+
+    /**
+     * Transfer that waits for the opposite one in elimination array.
+     */
+    private static class Offer {
+        private static final AtomicReferenceFieldUpdater<Offer, Object> STATE_UPDATER =
+                AtomicReferenceFieldUpdater.newUpdater(Offer.class, Object.class, "state");
+
+        final int fromIndex;
+        final int toIndex;
+        final long amount;
+
+        /**
+         * Null while the offer is waiting, {@link #CANCELLED}, or the operation that applies this transfer.
+         */
+        volatile Object state;
+
+        Offer(int fromIndex, int toIndex, long amount) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.amount = amount;
+        }
+
+        boolean casState(Object expect, Object update) {
+            return STATE_UPDATER.compareAndSet(this, expect, update);
+        }
+    }
+}
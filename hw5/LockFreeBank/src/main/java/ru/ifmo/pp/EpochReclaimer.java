@@ -0,0 +1,249 @@
+package ru.ifmo.pp;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Epoch-based reclamation of objects that are shared between threads of a lock-free data structure,
+ * as described in "Practical lock-freedom" by Keir Fraser.
+ * This class is thread-safe.
+ * <p>
+ * <p>Every operation on the data structure is performed between {@link #enter()} and {@link #exit()}.
+ * An object that was removed from the data structure is passed to {@link #retire(Object, int)}, and is returned
+ * by {@link #reuse(int)} only when all threads that might still hold a reference to it have exited, thus
+ * reused objects never suffer from ABA problem. Objects are kept in per-thread pools by their kind
+ * (a number from 0 to {@code kinds}-1), so that different classes of objects are not mixed.
+ * <p>
+ * <p>Per-thread states are never removed from the list of threads, but a thread that has terminated releases
+ * its state to the next new thread together with its pools. Thus the list is never longer than the largest
+ * number of threads that were alive at the same time, and a terminated thread never prevents epoch from advancing.
+ */
+class EpochReclaimer {
+    private static final long QUIESCENT = -1; // epoch of a thread that is outside of any operation
+    private static final int EPOCHS = 3; // objects retired in epoch e are safe to reuse in epoch e + EPOCHS
+    private static final int ADVANCE_PERIOD = 64; // number of retired objects between attempts to advance epoch
+    private static final int MAX_POOL_SIZE = 1024; // objects above this limit are left to garbage collector
+
+    private static final AtomicReferenceFieldUpdater<Local, Owner> OWNER_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(Local.class, Owner.class, "owner");
+
+    private final int kinds;
+    private final AtomicLong globalEpoch = new AtomicLong();
+    private final AtomicReference<Local> head = new AtomicReference<>();
+
+    /**
+     * Per-thread state is strongly reachable only from {@link #head}. Pooled objects usually reference the
+     * data structure itself, so a strong reference from a thread-local value would keep the thread-local key
+     * and the whole data structure reachable from every thread that ever used it. The reference is cleared
+     * only when the reclaimer itself becomes unreachable.
+     */
+    private final ThreadLocal<WeakReference<Local>> local = new ThreadLocal<>();
+
+    /**
+     * Creates new reclaimer.
+     *
+     * @param kinds the number of different kinds of objects.
+     */
+    EpochReclaimer(int kinds) {
+        this.kinds = kinds;
+    }
+
+    /**
+     * Marks the beginning of an operation by the current thread.
+     */
+    void enter() {
+        Local l = local();
+        assert l.epoch == QUIESCENT : "Nested enter";
+        long epoch;
+        do {
+            // epoch may advance before it is published, then objects that the thread reads may be reused already
+            epoch = globalEpoch.get();
+            l.epoch = epoch;
+        } while (globalEpoch.get() != epoch);
+        if (epoch != l.seenEpoch) {
+            l.seenEpoch = epoch;
+            l.flushLimbo(epoch);
+        }
+    }
+
+    /**
+     * Marks the end of an operation by the current thread.
+     */
+    void exit() {
+        local().epoch = QUIESCENT;
+    }
+
+    /**
+     * Returns an object of a given kind that is safe to reuse or null if there is none.
+     */
+    Object reuse(int kind) {
+        return local().pool[kind].poll();
+    }
+
+    /**
+     * Returns an object that was never shared with other threads back to the pool.
+     */
+    void recycle(Object object, int kind) {
+        local().addToPool(object, kind);
+    }
+
+    /**
+     * Retires an object that was removed from the data structure by the current thread.
+     * It must be called between {@link #enter()} and {@link #exit()}.
+     */
+    void retire(Object object, int kind) {
+        Local l = local();
+        assert l.epoch != QUIESCENT : "Retire outside of operation";
+        l.limbo(l.epoch)[kind].add(object);
+        if (++l.retired % ADVANCE_PERIOD == 0)
+            tryAdvance();
+    }
+
+    /**
+     * Advances global epoch if all threads that are inside of operations have already observed it.
+     */
+    private void tryAdvance() {
+        long epoch = globalEpoch.get();
+        for (Local l = head.get(); l != null; l = l.next) {
+            long e = l.epoch;
+            if (e != QUIESCENT && e != epoch && !l.isReleased())
+                return;
+        }
+        globalEpoch.compareAndSet(epoch, epoch + 1);
+    }
+
+    private Local local() {
+        WeakReference<Local> ref = local.get();
+        Local l = ref == null ? null : ref.get();
+        if (l == null) {
+            l = claim();
+            local.set(new WeakReference<>(l));
+        }
+        return l;
+    }
+
+    /**
+     * Takes per-thread state that was released by a terminated thread or adds a new one to the list.
+     */
+    private Local claim() {
+        Owner owner = new Owner(Thread.currentThread());
+        for (Local l = head.get(); l != null; l = l.next) {
+            Owner prev = l.owner;
+            if (l.isReleased() && OWNER_UPDATER.compareAndSet(l, prev, owner)) {
+                // the terminated thread might have left in the middle of operation
+                l.epoch = QUIESCENT;
+                return l;
+            }
+        }
+        Local l = new Local(kinds, owner);
+        do {
+            l.next = head.get();
+        } while (!head.compareAndSet(l.next, l));
+        return l;
+    }
+
+    /**
+     * Per-thread state.
+     */
+    private static class Local {
+        /**
+         * Epoch in which this thread performs current operation or {@link #QUIESCENT}.
+         */
+        volatile long epoch = QUIESCENT;
+
+        /**
+         * Next thread in the list of all threads, immutable after this instance is published.
+         */
+        Local next;
+
+        /**
+         * Thread that uses this instance, it is released when the thread terminates.
+         */
+        volatile Owner owner;
+
+        long seenEpoch;
+        long retired;
+
+        final ArrayDeque<Object>[] pool;
+        final ArrayDeque<Object>[][] limbo;
+        final long[] limboEpoch = new long[EPOCHS];
+
+        @SuppressWarnings("unchecked")
+        Local(int kinds, Owner owner) {
+            this.owner = owner;
+            pool = newQueues(kinds);
+            limbo = (ArrayDeque<Object>[][]) new ArrayDeque<?>[EPOCHS][];
+            for (int i = 0; i < EPOCHS; i++) {
+                limbo[i] = newQueues(kinds);
+                limboEpoch[i] = QUIESCENT;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static ArrayDeque<Object>[] newQueues(int kinds) {
+            ArrayDeque<Object>[] queues = (ArrayDeque<Object>[]) new ArrayDeque<?>[kinds];
+            for (int kind = 0; kind < kinds; kind++)
+                queues[kind] = new ArrayDeque<>();
+            return queues;
+        }
+
+        /**
+         * Returns true when the thread that used this instance has terminated.
+         */
+        boolean isReleased() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        /**
+         * Returns limbo lists for objects retired in a given epoch.
+         */
+        ArrayDeque<Object>[] limbo(long epoch) {
+            int i = (int) (epoch % EPOCHS);
+            if (limboEpoch[i] != epoch) {
+                // the list is from epoch - EPOCHS or earlier, so it is already safe
+                moveToPool(i);
+                limboEpoch[i] = epoch;
+            }
+            return limbo[i];
+        }
+
+        /**
+         * Moves all objects that were retired in epochs at least {@link #EPOCHS} ago to the pool.
+         */
+        void flushLimbo(long epoch) {
+            for (int i = 0; i < EPOCHS; i++) {
+                if (limboEpoch[i] != QUIESCENT && limboEpoch[i] <= epoch - EPOCHS) {
+                    moveToPool(i);
+                    limboEpoch[i] = QUIESCENT;
+                }
+            }
+        }
+
+        private void moveToPool(int i) {
+            for (int kind = 0; kind < pool.length; kind++) {
+                ArrayDeque<Object> queue = limbo[i][kind];
+                Object object;
+                while ((object = queue.poll()) != null)
+                    addToPool(object, kind);
+            }
+        }
+
+        void addToPool(Object object, int kind) {
+            if (pool[kind].size() < MAX_POOL_SIZE)
+                pool[kind].add(object);
+        }
+    }
+
+    /**
+     * Weak reference to the thread that uses per-thread state, so that the state does not keep it reachable.
+     */
+    private static class Owner extends WeakReference<Thread> {
+        Owner(Thread thread) {
+            super(thread);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bank implementation with flat combining, as described in
+ * "Flat combining and the synchronization-parallelism tradeoff" by D. Hendler et al.
+ * This class is thread-safe, but it is blocking: a combiner that is stalled delays all other threads.
+ * <p>
+ * <p>Every thread publishes its operation in its own {@link Request} record and then either waits for
+ * the record to be served or becomes a combiner. The combiner applies all pending requests in a single pass
+ * over the records. Amounts are kept in a plain array that is accessed only by the combiner, so contended
+ * accounts are updated by one thread at a time without compareAndSet retries and their cache lines
+ * do not move between processors. The combiner also keeps a Fenwick tree of amounts, so that sums of ranges
+ * of accounts take O(log n) time.
+ *
+ * @see BankImpl
+ */
+public class FlatCombiningBankImpl implements Bank {
+    // kinds of requests
+    private static final int GET_AMOUNT = 1;
+    private static final int GET_TOTAL_AMOUNT = 2;
+    private static final int DEPOSIT = 3;
+    private static final int WITHDRAW = 4;
+    private static final int TRANSFER = 5;
+    private static final int GET_RANGE_AMOUNT = 6;
+
+    /**
+     * The maximal number of passes over requests by a combiner. Requests that are published while the
+     * combiner is busy are served by it, so that the combiner role does not move for every operation.
+     */
+    private static final int COMBINING_PASSES = 4;
+
+    /**
+     * The number of times a waiting thread checks its request before yielding processor to the combiner.
+     */
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    private static final AtomicIntegerFieldUpdater<FlatCombiningBankImpl> COMBINING_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(FlatCombiningBankImpl.class, "combining");
+
+    /**
+     * Amounts of accounts. Accessed only by the combiner.
+     */
+    private final long[] amounts;
+
+    /**
+     * Fenwick tree of amounts, element i holds the sum of amounts from {@code i - (i & -i)} to i-1.
+     * Accessed only by the combiner.
+     */
+    private final long[] partialSums;
+
+    /**
+     * Total amount of all accounts. Accessed only by the combiner.
+     */
+    private long totalAmount;
+
+    /**
+     * 1 when some thread is the combiner, 0 otherwise.
+     */
+    private volatile int combining;
+
+    /**
+     * Stack of request records of all threads that ever used this bank.
+     */
+    private final AtomicReference<Request> requests = new AtomicReference<>();
+
+    /**
+     * Request record of the current thread. It does not reference this instance.
+     */
+    private final ThreadLocal<Request> request = new ThreadLocal<Request>() {
+        @Override
+        protected Request initialValue() {
+            Request r = new Request();
+            do {
+                r.next = requests.get();
+            } while (!requests.compareAndSet(r.next, r));
+            return r;
+        }
+    };
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public FlatCombiningBankImpl(int n) {
+        amounts = new long[n];
+        partialSums = new long[n + 1];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return amounts.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        checkIndex(index);
+        return execute(GET_AMOUNT, index, 0, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return execute(GET_TOTAL_AMOUNT, 0, 0, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > amounts.length || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        return execute(GET_RANGE_AMOUNT, fromIndex, toIndex, 0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long result = tryDeposit(index, amount);
+        if (result < 0)
+            throw new IllegalStateException(BankImpl.message((int) result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount > MAX_AMOUNT)
+            return OVERFLOW;
+        return execute(DEPOSIT, index, 0, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long result = tryWithdraw(index, amount);
+        if (result < 0)
+            throw new IllegalStateException(BankImpl.message((int) result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount > MAX_AMOUNT)
+            return UNDERFLOW;
+        return execute(WITHDRAW, index, 0, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        int status = tryTransfer(fromIndex, toIndex, amount);
+        if (status != OK)
+            throw new IllegalStateException(BankImpl.message(status));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        if (amount > MAX_AMOUNT)
+            return OVERFLOW;
+        return (int) execute(TRANSFER, fromIndex, toIndex, amount);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= amounts.length)
+            throw new IndexOutOfBoundsException("Invalid account index: " + index);
+    }
+
+    /**
+     * Publishes request of the current thread and waits until it is served by a combiner,
+     * becoming the combiner when there is none.
+     *
+     * @return the result of request.
+     */
+    private long execute(int kind, int index, int toIndex, long amount) {
+        Request r = request.get();
+        r.kind = kind;
+        r.index = index;
+        r.toIndex = toIndex;
+        r.amount = amount;
+        r.pending = true; // volatile write publishes the request
+        int spins = 0;
+        while (r.pending) {
+            if (combining == 0 && COMBINING_UPDATER.compareAndSet(this, 0, 1)) {
+                try {
+                    combine();
+                } finally {
+                    combining = 0;
+                }
+                // the request was pending when the combiner started, so it was served by the first pass
+                break;
+            }
+            if (++spins % SPINS_BEFORE_YIELD == 0)
+                Thread.yield();
+        }
+        return r.result;
+    }
+
+    /**
+     * Serves pending requests of all threads. Must be invoked only by the combiner.
+     */
+    private void combine() {
+        for (int pass = 0; pass < COMBINING_PASSES; pass++) {
+            boolean served = false;
+            for (Request r = requests.get(); r != null; r = r.next) {
+                if (r.pending) {
+                    r.result = apply(r.kind, r.index, r.toIndex, r.amount);
+                    r.pending = false; // volatile write publishes the result
+                    served = true;
+                }
+            }
+            if (!served)
+                return;
+        }
+    }
+
+    private long apply(int kind, int index, int toIndex, long amount) {
+        switch (kind) {
+            case GET_AMOUNT:
+                return amounts[index];
+            case GET_TOTAL_AMOUNT:
+                return totalAmount;
+            case GET_RANGE_AMOUNT:
+                return prefixSum(toIndex) - prefixSum(index);
+            case DEPOSIT:
+                if (amounts[index] + amount > MAX_AMOUNT)
+                    return OVERFLOW;
+                add(index, amount);
+                return amounts[index];
+            case WITHDRAW:
+                if (amounts[index] - amount < 0)
+                    return UNDERFLOW;
+                add(index, -amount);
+                return amounts[index];
+            case TRANSFER:
+                if (amounts[toIndex] + amount > MAX_AMOUNT)
+                    return OVERFLOW;
+                if (amounts[index] < amount)
+                    return UNDERFLOW;
+                add(index, -amount);
+                add(toIndex, amount);
+                return OK;
+            default:
+                throw new AssertionError("Invalid request: " + kind);
+        }
+    }
+
+    /**
+     * Adds delta to the amount of account and all sums that include it. Must be invoked only by the combiner.
+     */
+    private void add(int index, long delta) {
+        amounts[index] += delta;
+        totalAmount += delta;
+        for (int i = index + 1; i < partialSums.length; i += i & -i)
+            partialSums[i] += delta;
+    }
+
+    /**
+     * Returns total amount in accounts from 0 to toIndex-1. Must be invoked only by the combiner.
+     */
+    private long prefixSum(int toIndex) {
+        long sum = 0;
+        for (int i = toIndex; i > 0; i -= i & -i)
+            sum += partialSums[i];
+        return sum;
+    }
+
+    /**
+     * Request record of a thread. Its fields are written by the owner thread before {@link #pending} is set
+     * and the result is written by the combiner before {@link #pending} is cleared.
+     */
+    private static class Request {
+        int kind;
+        int index;
+        int toIndex;
+        long amount;
+        long result;
+        volatile boolean pending;
+
+        /**
+         * Next record in the stack, never changes after the record is published.
+         */
+        Request next;
+    }
+}
@@ -0,0 +1,192 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Long-to-int hash map with open addressing and linear probes, a variant of {@code IntIntHashMap}
+ * from hw4 that is widened to long keys. Keys are never removed and values are never changed once set,
+ * which is all that is needed to map account identifiers to slots.
+ * This class is thread-safe and lock-free, lookups do not allocate.
+ * <p>
+ * <p>When a key cannot be placed within {@link #MAX_PROBES} probes, the map moves to a core of
+ * twice the capacity. Every slot of the old core is frozen by setting the sign bit of its value
+ * and then copied, so operations that find a frozen slot continue in the next core.
+ */
+class LongIntHashMap {
+    private static final long MAGIC = 0x9E3779B97F4A7C15L; // golden ratio
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_PROBES = 8; // max number of probes to find an item
+
+    private static final long NULL_KEY = 0; // missing key (initial value)
+    private static final int NULL_VALUE = 0; // missing value (initial value)
+    private static final int FROZEN = Integer.MIN_VALUE; // bit of value that was (or is being) copied to next core
+    private static final int NEEDS_REHASH = -1; // returned by putInternal to indicate that rehash is needed
+
+    /**
+     * Value returned when the key is not present.
+     */
+    static final int ABSENT = -1;
+
+    private final AtomicReference<Core> core = new AtomicReference<>(new Core(INITIAL_CAPACITY));
+
+    /**
+     * Returns value for the corresponding key or {@link #ABSENT} if this key is not present.
+     *
+     * @param key a positive key.
+     * @throws IllegalArgumentException if key is not positive.
+     */
+    int get(long key) {
+        if (key <= 0) throw new IllegalArgumentException("Key must be positive: " + key);
+        return core.get().getInternal(key) - 1;
+    }
+
+    /**
+     * Sets value for the corresponding key unless it is already present.
+     *
+     * @param key a positive key.
+     * @param value a non-negative value less than {@link Integer#MAX_VALUE}.
+     * @return value that is already present or {@link #ABSENT} if the given value was set.
+     * @throws IllegalArgumentException if key is not positive or value is out of range.
+     */
+    int putIfAbsent(long key, int value) {
+        if (key <= 0) throw new IllegalArgumentException("Key must be positive: " + key);
+        if (value < 0 || value == Integer.MAX_VALUE) throw new IllegalArgumentException("Invalid value: " + value);
+        while (true) {
+            Core old = core.get();
+            int oldValue = old.putInternal(key, value + 1); // values are shifted by one to keep NULL_VALUE free
+            if (oldValue != NEEDS_REHASH)
+                return oldValue - 1;
+            core.compareAndSet(old, old.rehash());
+        }
+    }
+
+    private static class Core {
+        final AtomicLongArray keys;
+        final AtomicIntegerArray values;
+        final int shift;
+        final AtomicReference<Core> next = new AtomicReference<>(null);
+
+        /**
+         * Creates new core with a given capacity, which is a power of two.
+         */
+        Core(int capacity) {
+            int mask = capacity - 1;
+            assert mask > 0 && (mask & capacity) == 0 : "Capacity must be power of 2: " + capacity;
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicIntegerArray(capacity);
+            shift = 64 - Integer.bitCount(mask);
+        }
+
+        int getInternal(long key) {
+            int index = index(key);
+            for (int probes = 0; probes < MAX_PROBES; probes++) {
+                long k = keys.get(index);
+                if (k == key) {
+                    int value = values.get(index);
+                    if (value < 0) {
+                        help(index, value);
+                        return next.get().getInternal(key);
+                    }
+                    return value; // NULL_VALUE when the key is being put concurrently
+                }
+                if (k == NULL_KEY) {
+                    // the key is not in this core, but it may have been put into the next one after this slot was frozen
+                    return values.get(index) < 0 ? next.get().getInternal(key) : NULL_VALUE;
+                }
+                index = (index - 1) & (keys.length() - 1);
+            }
+            Core next = this.next.get();
+            return next == null ? NULL_VALUE : next.getInternal(key);
+        }
+
+        /**
+         * Puts value unless the key is already present.
+         *
+         * @return value that is already present, {@link #NULL_VALUE} if the given value was put,
+         *         or {@link #NEEDS_REHASH}.
+         */
+        int putInternal(long key, int value) {
+            int index = index(key);
+            int probes = 0;
+            while (true) {
+                long k = keys.get(index);
+                if (k == key)
+                    break;
+                if (k == NULL_KEY) {
+                    if (values.get(index) < 0)
+                        return next.get().putInternal(key, value); // the key is not in this core
+                    if (keys.compareAndSet(index, NULL_KEY, key))
+                        break;
+                    continue; // read the key that was put concurrently
+                }
+                if (++probes >= MAX_PROBES)
+                    return NEEDS_REHASH;
+                index = (index - 1) & (keys.length() - 1);
+            }
+            // found or claimed the key -- set value unless it was set
+            if (values.compareAndSet(index, NULL_VALUE, value))
+                return NULL_VALUE;
+            int oldValue = values.get(index);
+            if (oldValue < 0) {
+                help(index, oldValue);
+                return next.get().putInternal(key, value);
+            }
+            return oldValue;
+        }
+
+        /**
+         * Copies frozen slot to the next core unless it is empty.
+         */
+        private void help(int index, int value) {
+            assert value < 0;
+            if (value != FROZEN)
+                next.get().copy(keys.get(index), value & ~FROZEN);
+        }
+
+        /**
+         * Puts key and value that are copied from the previous core. The copy is idempotent, so that multiple
+         * helpers can copy the same slot. This core is not frozen until the previous one is completely copied.
+         */
+        private void copy(long key, int value) {
+            int index = index(key);
+            while (true) {
+                long k = keys.get(index);
+                if (k == key)
+                    break;
+                if (k == NULL_KEY && keys.compareAndSet(index, NULL_KEY, key))
+                    break;
+                if (keys.get(index) == key)
+                    break;
+                // the new core is twice as big as the old one, so it always has enough space for all its keys
+                index = (index - 1) & (keys.length() - 1);
+            }
+            values.compareAndSet(index, NULL_VALUE, value);
+        }
+
+        /**
+         * Freezes and copies all slots to the next core.
+         *
+         * @return the next core.
+         */
+        Core rehash() {
+            next.compareAndSet(null, new Core(2 * keys.length()));
+            for (int index = 0; index < keys.length(); index++) {
+                int value;
+                do {
+                    value = values.get(index);
+                } while (value >= 0 && !values.compareAndSet(index, value, value | FROZEN));
+                help(index, value | FROZEN);
+            }
+            return next.get();
+        }
+
+        /**
+         * Returns an initial index in the core to look for a given key.
+         */
+        int index(long key) {
+            return (int) ((key * MAGIC) >>> shift);
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bank implementation that keeps amounts outside of the Java heap in a single {@link OffHeapLongArray},
+ * 8 bytes per account, so that it holds hundreds of millions of accounts without any objects per account.
+ * This class is thread-safe and lock-free.
+ * <p>
+ * <p>Like {@link BankImpl}, it is based on "A Practical Multi-Word Compare-and-Swap Operation" by T. L. Harris et al.,
+ * but an account word cannot reference a descriptor, so it keeps either the amount, which is never negative,
+ * or the identifier of a descriptor with the sign bit set. Identifiers consist of the slot of the descriptor in
+ * {@link #descriptors} table and of the generation of the slot, which is incremented whenever the slot is taken,
+ * so an identifier is never installed into a word again after its descriptor has been removed from the table.
+ * Thus, unlike {@link BankImpl}, this implementation uses full RDCSS operation of the paper to acquire accounts,
+ * see {@link #acquire(Op, int)}.
+ * <p>
+ * <p>Deposit and withdraw update the amount with a single compareAndSet and do not allocate.
+ * {@link #getTotalAmount()} acquires all accounts of the range too, so it is linearizable, but it freezes them
+ * instead: a frozen word keeps the amount together with the {@link #FROZEN} bit and the tag of the operation in
+ * {@link #totals} table. Thus the amounts are summed from the words themselves once all of them are frozen,
+ * the operation takes constant memory on the heap whatever the size of the range, and {@link #getAmount(int)}
+ * reads frozen accounts without waiting. A tag is not reused while any thread helps its operation,
+ * see {@link TotalOp#enter()}, so a frozen word is never released by a stale helper of another operation.
+ */
+public class OffHeapBankImpl implements Bank {
+    private static final long DESCRIPTOR = Long.MIN_VALUE;
+    private static final long RDCSS = 1L << 62; // otherwise identifier of an operation
+    private static final int SLOT_BITS = 12;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final long GENERATION_MASK = (1L << (62 - SLOT_BITS)) - 1;
+
+    private static final int AMOUNT_BITS = 50; // MAX_AMOUNT < 2^50
+    private static final long AMOUNT_MASK = (1L << AMOUNT_BITS) - 1;
+    private static final long FROZEN = 1L << 62; // otherwise amount of an account
+    private static final int TAG_BITS = 62 - AMOUNT_BITS;
+    private static final int TAGS = 1 << TAG_BITS;
+
+    private static final int UNDECIDED = Integer.MIN_VALUE;
+    private static final long UNSET = -1;
+
+    private final int numberOfAccounts;
+    private final OffHeapLongArray amounts;
+
+    /**
+     * Descriptors that may be installed into account words by their slots. A thread has at most one operation
+     * and one RDCSS descriptor in the table at a time.
+     */
+    private final AtomicReferenceArray<Descriptor> descriptors = new AtomicReferenceArray<>(SLOTS);
+    private final AtomicLongArray generations = new AtomicLongArray(SLOTS);
+
+    /**
+     * Operations that freeze account words by their tags.
+     */
+    private final AtomicReferenceArray<TotalOp> totals = new AtomicReferenceArray<>(TAGS);
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public OffHeapBankImpl(int n) {
+        numberOfAccounts = n;
+        amounts = new OffHeapLongArray(n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return numberOfAccounts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        checkIndex(index);
+        while (true) {
+            long word = amounts.get(index);
+            if (word >= 0)
+                return word & AMOUNT_MASK;
+            help(word);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return getTotalAmount(0, numberOfAccounts);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > numberOfAccounts || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        if (fromIndex == toIndex)
+            return 0;
+        if (toIndex - fromIndex == 1)
+            return getAmount(fromIndex);
+        TotalOp op = new TotalOp(amounts, fromIndex, toIndex);
+        int tag = (int) Thread.currentThread().getId() & (TAGS - 1);
+        while (true) {
+            op.marker = FROZEN | (long) tag << AMOUNT_BITS;
+            if (totals.compareAndSet(tag, null, op))
+                break;
+            tag = (tag + 1) & (TAGS - 1);
+        }
+        invoke(op);
+        op.leave(totals);
+        return op.sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long result = tryDeposit(index, amount);
+        if (result < 0)
+            throw new IllegalStateException(BankImpl.message((int) result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount > MAX_AMOUNT)
+            return OVERFLOW;
+        while (true) {
+            long word = amounts.get(index);
+            if (!isAmount(word)) {
+                help(word);
+                continue;
+            }
+            if (word + amount > MAX_AMOUNT)
+                return OVERFLOW;
+            if (amounts.compareAndSet(index, word, word + amount))
+                return word + amount;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long result = tryWithdraw(index, amount);
+        if (result < 0)
+            throw new IllegalStateException(BankImpl.message((int) result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount > MAX_AMOUNT)
+            return UNDERFLOW;
+        while (true) {
+            long word = amounts.get(index);
+            if (!isAmount(word)) {
+                help(word);
+                continue;
+            }
+            if (word - amount < 0)
+                return UNDERFLOW;
+            if (amounts.compareAndSet(index, word, word - amount))
+                return word - amount;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        int status = tryTransfer(fromIndex, toIndex, amount);
+        if (status != OK)
+            throw new IllegalStateException(BankImpl.message(status));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        if (amount > MAX_AMOUNT)
+            return OVERFLOW;
+        TransferOp op = new TransferOp(fromIndex, toIndex, amount);
+        perform(op);
+        return op.status;
+    }
+
+    private static boolean isAmount(long word) {
+        return (word & (DESCRIPTOR | FROZEN)) == 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= numberOfAccounts)
+            throw new IndexOutOfBoundsException("Invalid account index: " + index);
+    }
+
+    /**
+     * Registers operation in the table, invokes it, and removes it from the table after it has been released
+     * from all accounts.
+     */
+    private void perform(Op op) {
+        register(op, 0);
+        invoke(op);
+        unregister(op);
+    }
+
+    /**
+     * Takes a free slot for the descriptor and assigns it a new identifier. The search starts from a slot that
+     * depends on the current thread, so threads rarely compete for the same slot.
+     */
+    private void register(Descriptor descriptor, long kind) {
+        int slot = (int) Thread.currentThread().getId() & (SLOTS - 1);
+        while (!descriptors.compareAndSet(slot, null, descriptor))
+            slot = (slot + 1) & (SLOTS - 1);
+        long generation = generations.incrementAndGet(slot) & GENERATION_MASK;
+        descriptor.id = DESCRIPTOR | kind | generation << SLOT_BITS | slot;
+    }
+
+    private void unregister(Descriptor descriptor) {
+        descriptors.set((int) descriptor.id & (SLOTS - 1), null);
+    }
+
+    /**
+     * Helps to remove the descriptor with the identifier or the operation that has frozen the word
+     * from account words.
+     */
+    private void help(long id) {
+        if (id >= 0) {
+            TotalOp op = totals.get((int) (id >>> AMOUNT_BITS) & (TAGS - 1));
+            // the word is stale if the operation has left the table or cannot be entered
+            if (op != null && op.enter()) {
+                invoke(op);
+                op.leave(totals);
+            }
+            return;
+        }
+        Descriptor descriptor = descriptors.get((int) id & (SLOTS - 1));
+        // the descriptor is no longer in the table only after it has been removed from all words
+        if (descriptor == null || descriptor.id != id)
+            return;
+        if ((id & RDCSS) != 0)
+            complete((Rdcss) descriptor);
+        else
+            invoke((Op) descriptor);
+    }
+
+    /**
+     * Acquires all accounts of the operation in the order of indices, decides its status,
+     * and releases the accounts with their new amounts. It is invoked by the owner and by all helpers.
+     */
+    private void invoke(Op op) {
+        int size = op.size();
+        int k = 0;
+        while (k < size && acquire(op, k))
+            k++;
+        if (k == size && op.status == UNDECIDED)
+            STATUS_UPDATER.compareAndSet(op, UNDECIDED, op.decide());
+        for (k = 0; k < size; k++) {
+            int index = op.index(k);
+            long word = amounts.get(index);
+            if (op.holds(word))
+                amounts.compareAndSet(index, word, op.releasedWord(k, word));
+        }
+    }
+
+    /**
+     * Installs the word of the operation into the k-th account word while the operation is undecided.
+     * The amount is first replaced with a new {@link Rdcss} descriptor, which is then replaced with the operation
+     * if it is still undecided, so the amount is recorded by {@link Op#acquiredWord(int, long)} exactly once.
+     * Otherwise the amount is restored.
+     *
+     * @return true when the account is acquired, false when the operation has already been decided.
+     */
+    private boolean acquire(Op op, int k) {
+        int index = op.index(k);
+        while (true) {
+            long word = amounts.get(index);
+            if (op.holds(word))
+                return true;
+            if (op.status != UNDECIDED)
+                return false;
+            if (!isAmount(word)) {
+                help(word);
+                continue;
+            }
+            Rdcss rdcss = new Rdcss(op, k, index, word);
+            register(rdcss, RDCSS);
+            if (amounts.compareAndSet(index, word, rdcss.id))
+                complete(rdcss);
+            unregister(rdcss);
+        }
+    }
+
+    /**
+     * Replaces RDCSS descriptor in the account word. The status is read after the descriptor has been installed,
+     * and the operation cannot be decided while the descriptor is there, so all helpers make the same choice.
+     */
+    private void complete(Rdcss rdcss) {
+        Op op = rdcss.op;
+        if (op.status == UNDECIDED) {
+            amounts.compareAndSet(rdcss.index, rdcss.id, op.acquiredWord(rdcss.k, rdcss.amount));
+        } else {
+            amounts.compareAndSet(rdcss.index, rdcss.id, rdcss.amount);
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<Op> STATUS_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Op.class, "status");
+
+    /**
+     * Descriptor that is installed into account words by its identifier.
+     */
+    private abstract static class Descriptor {
+        volatile long id;
+    }
+
+    private static final AtomicIntegerFieldUpdater<TotalOp> USERS_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(TotalOp.class, "users");
+    private static final AtomicLongFieldUpdater<TotalOp> SUM_UPDATER =
+            AtomicLongFieldUpdater.newUpdater(TotalOp.class, "sum");
+
+    /**
+     * Descriptor of an operation on a sorted set of accounts.
+     */
+    private abstract static class Op extends Descriptor {
+        volatile int status = UNDECIDED;
+
+        abstract int size();
+
+        /**
+         * Returns index of the k-th account, indices are increasing.
+         */
+        abstract int index(int k);
+
+        /**
+         * Computes status when all accounts are acquired.
+         */
+        abstract int decide();
+
+        /**
+         * Records amount of the k-th account when it is acquired and returns the word that replaces it.
+         */
+        abstract long acquiredWord(int k, long amount);
+
+        /**
+         * Returns whether the account word is acquired by the operation.
+         */
+        abstract boolean holds(long word);
+
+        /**
+         * Returns amount of the k-th account after the operation has been decided.
+         */
+        abstract long releasedWord(int k, long word);
+    }
+
+    /**
+     * Operation that installs its identifier into account words and keeps their amounts.
+     */
+    private static class TransferOp extends Op {
+        final int fromIndex;
+        final int toIndex;
+        final long amount;
+
+        /**
+         * Amounts of accounts at the moment they were acquired, {@link #UNSET} until then.
+         */
+        final AtomicLongArray acquired = new AtomicLongArray(new long[] {UNSET, UNSET});
+
+        TransferOp(int fromIndex, int toIndex, long amount) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.amount = amount;
+        }
+
+        @Override
+        int size() {
+            return 2;
+        }
+
+        @Override
+        int index(int k) {
+            return (k == 0) == (fromIndex < toIndex) ? fromIndex : toIndex;
+        }
+
+        @Override
+        int decide() {
+            int from = fromIndex < toIndex ? 0 : 1;
+            if (acquired.get(1 - from) + amount > MAX_AMOUNT)
+                return OVERFLOW;
+            if (acquired.get(from) < amount)
+                return UNDERFLOW;
+            return OK;
+        }
+
+        @Override
+        long acquiredWord(int k, long amount) {
+            acquired.compareAndSet(k, UNSET, amount);
+            return id;
+        }
+
+        @Override
+        boolean holds(long word) {
+            return word == id;
+        }
+
+        @Override
+        long releasedWord(int k, long word) {
+            long amount = acquired.get(k);
+            if (status != OK)
+                return amount;
+            return index(k) == fromIndex ? amount - this.amount : amount + this.amount;
+        }
+    }
+
+    /**
+     * Operation that freezes account words with its tag and sums their amounts once all of them are frozen.
+     * It is not registered in {@link #descriptors} table, but in {@link #totals} table by its tag.
+     */
+    private static class TotalOp extends Op {
+        final OffHeapLongArray amounts;
+        final int fromIndex;
+        final int toIndex;
+
+        /**
+         * The {@link #FROZEN} bit together with the tag of the operation.
+         */
+        long marker;
+
+        /**
+         * The number of threads that invoke the operation including its owner, zero when it has left the table.
+         */
+        volatile int users = 1;
+
+        volatile long sum = UNSET;
+
+        TotalOp(OffHeapLongArray amounts, int fromIndex, int toIndex) {
+            this.amounts = amounts;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        /**
+         * Registers a helper unless the operation has left the table.
+         */
+        boolean enter() {
+            while (true) {
+                int users = this.users;
+                if (users == 0)
+                    return false;
+                if (USERS_UPDATER.compareAndSet(this, users, users + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Unregisters the owner or a helper. The last of them removes the operation from the table,
+         * and its tag may be taken again, since no thread is going to release words with it.
+         */
+        void leave(AtomicReferenceArray<TotalOp> totals) {
+            if (USERS_UPDATER.decrementAndGet(this) == 0)
+                totals.compareAndSet((int) (marker >>> AMOUNT_BITS) & (TAGS - 1), this, null);
+        }
+
+        @Override
+        int size() {
+            return toIndex - fromIndex;
+        }
+
+        @Override
+        int index(int k) {
+            return fromIndex + k;
+        }
+
+        @Override
+        int decide() {
+            // words are released only after the sum has been published, so all helpers publish the same sum
+            long sum = 0;
+            for (int index = fromIndex; index < toIndex; index++) {
+                long word = amounts.get(index);
+                if (!holds(word))
+                    return OK;
+                sum += word & AMOUNT_MASK;
+            }
+            SUM_UPDATER.compareAndSet(this, UNSET, sum);
+            return OK;
+        }
+
+        @Override
+        long acquiredWord(int k, long amount) {
+            return marker | amount;
+        }
+
+        @Override
+        boolean holds(long word) {
+            return (word & ~AMOUNT_MASK) == marker;
+        }
+
+        @Override
+        long releasedWord(int k, long word) {
+            return word & AMOUNT_MASK;
+        }
+    }
+
+    /**
+     * Descriptor of RDCSS operation that replaces the amount of the k-th account of the operation with
+     * the operation identifier only while the operation is undecided.
+     */
+    private static class Rdcss extends Descriptor {
+        final Op op;
+        final int k;
+        final int index;
+        final long amount;
+
+        Rdcss(Op op, int k, int index, long amount) {
+            this.op = op;
+            this.k = k;
+            this.index = index;
+            this.amount = amount;
+        }
+    }
+}
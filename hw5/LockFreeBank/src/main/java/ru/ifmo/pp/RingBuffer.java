@@ -0,0 +1,107 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi-producer multi-consumer queue in a ring buffer, as described in
+ * "Bounded MPMC queue" by D. Vyukov.
+ * This class is thread-safe and lock-free, offer and poll do not allocate.
+ * <p>
+ * <p>Every cell has a sequence number that tells whether it is ready to be written or read on the current lap.
+ * Producers and consumers claim positions with compareAndSet on {@link #tail} and {@link #head} only when
+ * the cell is ready, and the volatile write of the sequence number publishes the cell to the other side.
+ */
+class RingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates new queue.
+     *
+     * @param capacity the maximal number of elements, a power of two.
+     */
+    RingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("Capacity must be power of 2: " + capacity);
+        mask = capacity - 1;
+        items = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            sequences.set(i, i);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of elements in the queue, which is only an estimate while it is being changed.
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : size > mask ? mask + 1 : (int) size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of elements that were ever added to the queue.
+     */
+    long offered() {
+        return tail.get();
+    }
+
+    /**
+     * Adds element to the tail of the queue unless it is full.
+     *
+     * @return true if the element was added, false if the queue is full.
+     */
+    boolean offer(E item) {
+        long t = tail.get();
+        while (true) {
+            int index = (int) t & mask;
+            long diff = sequences.get(index) - t;
+            if (diff == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    items.lazySet(index, item);
+                    sequences.set(index, t + 1); // publishes the item
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // the cell was not read on the previous lap yet
+            }
+            t = tail.get();
+        }
+    }
+
+    /**
+     * Removes element from the head of the queue.
+     *
+     * @return the element or null if the queue is empty.
+     */
+    E poll() {
+        long h = head.get();
+        while (true) {
+            int index = (int) h & mask;
+            long diff = sequences.get(index) - (h + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(h, h + 1)) {
+                    E item = items.get(index);
+                    items.lazySet(index, null);
+                    sequences.set(index, h + mask + 1); // frees the cell for the next lap
+                    return item;
+                }
+            } else if (diff < 0) {
+                return null; // the cell was not written on this lap yet
+            }
+            h = head.get();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Array of references that grows without copying, as described in
+ * "Lock-free dynamically resizable arrays" by D. Dechev et al.
+ * This class is thread-safe and lock-free.
+ * <p>
+ * <p>Elements are kept in buckets that are never moved. Bucket b has {@code FIRST_BUCKET_SIZE << b} elements,
+ * so element index is mapped to its bucket and offset with a few bit operations regardless of the size,
+ * and buckets are published with compareAndSet when the array grows.
+ */
+class SegmentedArray<E> {
+    private static final int FIRST_BUCKET_SHIFT = 4;
+    private static final int FIRST_BUCKET_SIZE = 1 << FIRST_BUCKET_SHIFT;
+    private static final int BUCKETS = 32 - FIRST_BUCKET_SHIFT;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<E>> buckets = new AtomicReferenceArray<>(BUCKETS);
+
+    /**
+     * Creates new array.
+     *
+     * @param capacity initial capacity.
+     */
+    SegmentedArray(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    E get(int index) {
+        int position = index + FIRST_BUCKET_SIZE;
+        int highestBit = 31 - Integer.numberOfLeadingZeros(position);
+        return buckets.get(highestBit - FIRST_BUCKET_SHIFT).get(position ^ (1 << highestBit));
+    }
+
+    void set(int index, E value) {
+        int position = index + FIRST_BUCKET_SIZE;
+        int highestBit = 31 - Integer.numberOfLeadingZeros(position);
+        buckets.get(highestBit - FIRST_BUCKET_SHIFT).set(position ^ (1 << highestBit), value);
+    }
+
+    boolean compareAndSet(int index, E expect, E update) {
+        int position = index + FIRST_BUCKET_SIZE;
+        int highestBit = 31 - Integer.numberOfLeadingZeros(position);
+        return buckets.get(highestBit - FIRST_BUCKET_SHIFT).compareAndSet(position ^ (1 << highestBit), expect, update);
+    }
+
+    /**
+     * Makes sure that elements with indices less than capacity can be accessed.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= 0)
+            return;
+        int position = capacity - 1 + FIRST_BUCKET_SIZE;
+        int lastBucket = 31 - Integer.numberOfLeadingZeros(position) - FIRST_BUCKET_SHIFT;
+        for (int bucket = 0; bucket <= lastBucket; bucket++) {
+            if (buckets.get(bucket) == null)
+                buckets.compareAndSet(bucket, null, new AtomicReferenceArray<E>(FIRST_BUCKET_SIZE << bucket));
+        }
+    }
+}
@@ -0,0 +1,784 @@
+package ru.ifmo.pp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bank implementation where accounts are partitioned between shards, and every shard is owned by a single
+ * worker thread that applies all operations on its accounts one by one.
+ * This class is thread-safe. Operations are asynchronous and return {@link CompletableFuture}, while the
+ * methods of {@link Bank} interface wait for them to complete.
+ * <p>
+ * <p>Account i belongs to shard {@code i % shards}. Amounts are kept in a plain array of the shard that is
+ * accessed only by its worker, so they are updated without atomic instructions. Requests are published
+ * in a bounded {@link RingBuffer} of the shard, and a caller waits while the ring is full, so a shard that
+ * falls behind slows down its callers, see {@link #getQueueDepth()}.
+ * <p>
+ * <p>A transfer between accounts of different shards is handed off between their workers through separate
+ * hand-off rings. The worker of the account with the lower index locks it and passes its amount to the shard
+ * of the other account, whose worker decides the status by both amounts, applies its part, and passes
+ * the status back. Then the first worker applies its part and unlocks the account. Requests for a locked account
+ * are deferred until it is unlocked, and so are hand-offs that find their account locked by another transfer,
+ * while the transfer keeps its lock: accounts are locked in the order of indices, so transfers never wait
+ * for each other in a cycle. Workers never wait for each other either: a hand-off that does not fit into
+ * the ring is kept in a local outbox, and the worker does not take new requests until the outbox is empty.
+ * A transfer that would both underflow and overflow reports {@link #OVERFLOW}, like {@link BankImpl}.
+ * <p>
+ * <p>All operations are linearizable. A transfer takes effect when its status is decided, since the other
+ * account is locked until then. {@link #getTotalAmount()} and sums of ranges are coordinated cuts of the shards
+ * that hold accounts of the range: their workers stop taking new requests, complete their own cross-shard
+ * transfers, add their sums, and wait until all of them have added theirs. Other shards keep working.
+ * Cuts are submitted in the same order to all involved shards through their own unbounded queues,
+ * see {@link #sum(int, int, int)}.
+ * <p>
+ * <p>Dependent actions of returned futures that are not asynchronous run in worker threads, so they must not
+ * block. Workers are daemon threads that are stopped by {@link #close()}.
+ *
+ * @see FlatCombiningBankImpl
+ */
+public class ShardedBankImpl implements Bank, AutoCloseable {
+    /**
+     * The default number of requests in the ring of every shard.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // kinds of requests
+    private static final int GET_AMOUNT = 1;
+    private static final int GET_TOTAL_AMOUNT = 2;
+    private static final int GET_RANGE_AMOUNT = 3;
+    private static final int DEPOSIT = 4;
+    private static final int WITHDRAW = 5;
+    private static final int TRANSFER = 6;
+
+    // phases of cross-shard transfer
+    private static final int LOCKED = 1; // handed off to the shard of the higher index
+    private static final int DECIDED = 2; // handed back to the shard of the lower index
+
+    /**
+     * The number of empty polls by a worker before it parks.
+     */
+    private static final int SPINS_BEFORE_PARK = 64;
+
+    /**
+     * The time a worker parks for when it cannot be woken up by new requests.
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int n;
+    private final Shard[] shards;
+    private volatile boolean closed;
+
+    /**
+     * Creates new bank instance with a shard per processor.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public ShardedBankImpl(int n) {
+        this(n, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     * @param shards the number of shards and worker threads.
+     * @param queueCapacity the number of requests that can wait in every shard, a power of two.
+     */
+    public ShardedBankImpl(int n, int shards, int queueCapacity) {
+        if (shards <= 0)
+            throw new IllegalArgumentException("Invalid number of shards: " + shards);
+        this.n = n;
+        this.shards = new Shard[shards];
+        for (int k = 0; k < shards; k++)
+            this.shards[k] = new Shard(k, (n - k + shards - 1) / shards, queueCapacity);
+        for (Shard shard : this.shards)
+            shard.thread.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumberOfAccounts() {
+        return n;
+    }
+
+    /**
+     * Returns the number of requests that wait in the most loaded shard. Callers that submit requests to a shard
+     * whose queue is full wait until there is room in it, so a depth close to {@link #getQueueCapacity()}
+     * means that callers are slowed down.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Shard shard : shards)
+            depth = Math.max(depth, shard.requests.size());
+        return depth;
+    }
+
+    /**
+     * Returns the maximal number of requests that can wait in every shard.
+     */
+    public int getQueueCapacity() {
+        return shards[0].requests.capacity();
+    }
+
+    /**
+     * Returns current amount in the specified account asynchronously.
+     *
+     * @see #getAmount(int)
+     */
+    public CompletableFuture<Long> getAmountAsync(int index) {
+        checkIndex(index);
+        Request r = new Request(GET_AMOUNT, index, 0, 0);
+        submit(shardOf(index), r);
+        return r.amountResult;
+    }
+
+    /**
+     * Returns total amount in the specified range of accounts asynchronously. It is a coordinated cut of
+     * the shards that hold accounts of the range, the others are not involved.
+     *
+     * @see #getTotalAmount(int, int)
+     */
+    public CompletableFuture<Long> getTotalAmountAsync(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > n || fromIndex > toIndex)
+            throw new IndexOutOfBoundsException("Invalid range: " + fromIndex + ".." + toIndex);
+        return sum(GET_RANGE_AMOUNT, fromIndex, toIndex);
+    }
+
+    /**
+     * Returns total amount deposited in this bank asynchronously.
+     *
+     * @see #getTotalAmount()
+     */
+    public CompletableFuture<Long> getTotalAmountAsync() {
+        return sum(GET_TOTAL_AMOUNT, 0, n);
+    }
+
+    /**
+     * Submits requests of a cut to the shards that hold accounts from fromIndex to toIndex-1. Requests
+     * of different cuts are submitted under the lock, so that every worker takes them in the same order
+     * and never waits for a cut that others have not taken yet. Queues of cuts are unbounded, so the lock
+     * is never held while waiting for room in a ring.
+     */
+    private CompletableFuture<Long> sum(int kind, int fromIndex, int toIndex) {
+        if (closed)
+            throw new IllegalStateException("Bank is closed");
+        if (fromIndex == toIndex)
+            return CompletableFuture.completedFuture(0L);
+        boolean[] involved = new boolean[shards.length];
+        int parts = 0;
+        for (int i = fromIndex; i < toIndex && parts < shards.length; i++, parts++)
+            involved[i % shards.length] = true;
+        Cut cut = new Cut(parts);
+        synchronized (shards) {
+            for (Shard shard : shards) {
+                if (involved[shard.id]) {
+                    Request r = new Request(kind, fromIndex, toIndex, 0);
+                    r.cut = cut;
+                    shard.cuts.add(r);
+                }
+            }
+        }
+        for (Shard shard : shards) {
+            if (involved[shard.id])
+                shard.wakeUp();
+        }
+        return cut.result;
+    }
+
+    /**
+     * Deposits specified amount to account asynchronously.
+     *
+     * @return future resulting amount in account or {@link #OVERFLOW}.
+     * @see #tryDeposit(int, long)
+     */
+    public CompletableFuture<Long> depositAsync(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount > MAX_AMOUNT)
+            return CompletableFuture.completedFuture((long) OVERFLOW);
+        Request r = new Request(DEPOSIT, index, 0, amount);
+        submit(shardOf(index), r);
+        return r.amountResult;
+    }
+
+    /**
+     * Withdraws specified amount from account asynchronously.
+     *
+     * @return future resulting amount in account or {@link #UNDERFLOW}.
+     * @see #tryWithdraw(int, long)
+     */
+    public CompletableFuture<Long> withdrawAsync(int index, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        checkIndex(index);
+        if (amount > MAX_AMOUNT)
+            return CompletableFuture.completedFuture((long) UNDERFLOW);
+        Request r = new Request(WITHDRAW, index, 0, amount);
+        submit(shardOf(index), r);
+        return r.amountResult;
+    }
+
+    /**
+     * Transfers specified amount from one account to another account asynchronously.
+     *
+     * @return future {@link #OK}, {@link #UNDERFLOW}, or {@link #OVERFLOW}.
+     * @see #tryTransfer(int, int, long)
+     */
+    public CompletableFuture<Integer> transferAsync(int fromIndex, int toIndex, long amount) {
+        if (amount <= 0)
+            throw new IllegalArgumentException("Invalid amount: " + amount);
+        if (fromIndex == toIndex)
+            throw new IllegalArgumentException("fromIndex == toIndex");
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        if (amount > MAX_AMOUNT)
+            return CompletableFuture.completedFuture(OVERFLOW);
+        Request r = new Request(TRANSFER, fromIndex, toIndex, amount);
+        submit(shardOf(Math.min(fromIndex, toIndex)), r);
+        return r.statusResult;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAmount(int index) {
+        return getAmountAsync(index).join();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        return getTotalAmountAsync().join();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        return getTotalAmountAsync(fromIndex, toIndex).join();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long deposit(int index, long amount) {
+        long result = tryDeposit(index, amount);
+        if (result < 0)
+            throw new IllegalStateException(BankImpl.message((int) result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        return depositAsync(index, amount).join();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long withdraw(int index, long amount) {
+        long result = tryWithdraw(index, amount);
+        if (result < 0)
+            throw new IllegalStateException(BankImpl.message((int) result));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        return withdrawAsync(index, amount).join();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void transfer(int fromIndex, int toIndex, long amount) {
+        int status = tryTransfer(fromIndex, toIndex, amount);
+        if (status != OK)
+            throw new IllegalStateException(BankImpl.message(status));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        return transferAsync(fromIndex, toIndex, amount).join();
+    }
+
+    /**
+     * Stops worker threads after all submitted requests are completed. Requests must not be submitted
+     * concurrently with or after this method.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Shard shard : shards)
+            LockSupport.unpark(shard.thread);
+        boolean interrupted = false;
+        for (Shard shard : shards) {
+            while (true) {
+                try {
+                    shard.thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= n)
+            throw new IndexOutOfBoundsException("Invalid account index: " + index);
+    }
+
+    private Shard shardOf(int index) {
+        return shards[index % shards.length];
+    }
+
+    /**
+     * Publishes request in the ring of the shard, waiting while the ring is full.
+     */
+    private void submit(Shard shard, Request r) {
+        if (closed)
+            throw new IllegalStateException("Bank is closed");
+        while (!shard.requests.offer(r)) {
+            shard.wakeUp();
+            Thread.yield();
+        }
+        shard.wakeUp();
+    }
+
+    /**
+     * Returns true when all requests that were submitted to all shards are completed.
+     */
+    private boolean isQuiescent() {
+        long offered = 0;
+        long completed = 0;
+        // completions are counted first, so that they never exceed requests that are counted after them
+        for (Shard shard : shards)
+            completed += shard.completed;
+        for (Shard shard : shards)
+            offered += shard.requests.offered();
+        return offered == completed;
+    }
+
+    /**
+     * A partition of accounts that is owned by its worker thread.
+     */
+    private class Shard implements Runnable {
+        final int id;
+        final RingBuffer<Request> requests;
+
+        /**
+         * Cross-shard transfers that are handed off to this shard by workers of other shards.
+         */
+        final RingBuffer<Request> handoffs;
+
+        /**
+         * Requests of cuts, in the order of their submission to all shards.
+         */
+        final ConcurrentLinkedQueue<Request> cuts = new ConcurrentLinkedQueue<>();
+
+        final Thread thread;
+
+        /**
+         * True when the worker is parked or is about to park.
+         */
+        volatile boolean parked;
+
+        /**
+         * The number of requests that were completed by this worker, including cross-shard transfers
+         * that were submitted to other shards. Written only by the worker.
+         */
+        volatile long completed;
+
+        // the following fields are accessed only by the worker
+
+        /**
+         * Amounts of accounts of this shard, account {@code id + k * shards} is at index k.
+         */
+        final long[] amounts;
+
+        /**
+         * Accounts that are locked by cross-shard transfers.
+         */
+        final boolean[] locked;
+
+        /**
+         * The number of accounts that are locked.
+         */
+        int locks;
+
+        /**
+         * Requests and hand-offs that wait for locked accounts, in the order of their arrival.
+         */
+        final ArrayDeque<Request> deferredRequests = new ArrayDeque<>();
+        final ArrayDeque<Request> deferredHandoffs = new ArrayDeque<>();
+
+        /**
+         * True when an account was unlocked after deferred requests were handled.
+         */
+        boolean unlocked;
+
+        /**
+         * Hand-offs that did not fit into the ring of another shard.
+         */
+        final ArrayDeque<Request> outbox = new ArrayDeque<>();
+
+        Shard(int id, int accounts, int queueCapacity) {
+            this.id = id;
+            amounts = new long[accounts];
+            locked = new boolean[accounts];
+            requests = new RingBuffer<>(queueCapacity);
+            handoffs = new RingBuffer<>(queueCapacity);
+            thread = new Thread(this, "ShardedBank-" + id);
+            thread.setDaemon(true);
+        }
+
+        void wakeUp() {
+            if (parked)
+                LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            int spins = 0;
+            while (true) {
+                boolean worked = handleHandoffs();
+                Request r;
+                if (unlocked) {
+                    unlocked = false;
+                    for (int k = deferredRequests.size(); k > 0; k--)
+                        handle(deferredRequests.removeFirst());
+                }
+                if (outbox.isEmpty() && (r = cuts.poll()) != null) {
+                    cut(r);
+                    worked = true;
+                }
+                if (outbox.isEmpty() && (r = requests.poll()) != null) {
+                    handle(r);
+                    worked = true;
+                }
+                if (worked) {
+                    spins = 0;
+                    continue;
+                }
+                if (++spins < SPINS_BEFORE_PARK)
+                    continue;
+                if (closed && isQuiescent() && cuts.isEmpty())
+                    return;
+                parked = true;
+                if (requests.isEmpty() && handoffs.isEmpty() && cuts.isEmpty()) {
+                    // hand-offs in the outbox and completion of close are not signalled
+                    if (outbox.isEmpty() && !closed)
+                        LockSupport.park(this);
+                    else
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                parked = false;
+            }
+        }
+
+        /**
+         * Publishes hand-offs from the outbox, handles hand-offs from other shards, and retries deferred
+         * hand-offs when an account was unlocked.
+         *
+         * @return true if any hand-off was published or handled.
+         */
+        private boolean handleHandoffs() {
+            boolean worked = flush();
+            Request r;
+            while ((r = handoffs.poll()) != null) {
+                receive(r);
+                worked = true;
+            }
+            if (unlocked) {
+                for (int k = deferredHandoffs.size(); k > 0; k--)
+                    receive(deferredHandoffs.removeFirst());
+            }
+            return worked;
+        }
+
+        /**
+         * Handles hand-off from another shard, or defers it when its account is locked by another transfer.
+         */
+        private void receive(Request r) {
+            if (r.phase == LOCKED && locked[local(Math.max(r.index, r.toIndex))]) {
+                deferredHandoffs.addLast(r);
+                return;
+            }
+            transfer(r);
+        }
+
+        private void handle(Request r) {
+            switch (r.kind) {
+                case GET_AMOUNT: {
+                    int k = local(r.index);
+                    if (!defer(r, k))
+                        complete(r, amounts[k]);
+                    break;
+                }
+                case DEPOSIT: {
+                    int k = local(r.index);
+                    if (defer(r, k)) {
+                        // completed when the account is unlocked
+                    } else if (amounts[k] + r.amount > MAX_AMOUNT) {
+                        complete(r, OVERFLOW);
+                    } else {
+                        amounts[k] += r.amount;
+                        complete(r, amounts[k]);
+                    }
+                    break;
+                }
+                case WITHDRAW: {
+                    int k = local(r.index);
+                    if (defer(r, k)) {
+                        // completed when the account is unlocked
+                    } else if (amounts[k] < r.amount) {
+                        complete(r, UNDERFLOW);
+                    } else {
+                        amounts[k] -= r.amount;
+                        complete(r, amounts[k]);
+                    }
+                    break;
+                }
+                case TRANSFER:
+                    transfer(r);
+                    break;
+                default:
+                    throw new AssertionError("Invalid request: " + r.kind);
+            }
+        }
+
+        /**
+         * Defers the request when the account is locked.
+         */
+        private boolean defer(Request r, int k) {
+            if (!locked[k])
+                return false;
+            deferredRequests.addLast(r);
+            return true;
+        }
+
+        /**
+         * Waits until cross-shard transfers of this shard are completed and then until all shards of the cut
+         * have completed theirs, handling hand-offs meanwhile. Then this worker adds the sum of this shard
+         * and waits until all shards of the cut have added theirs without handling anything, so every shard
+         * keeps the amounts it has added since its last change, and the cut takes effect at the latest of them.
+         */
+        private void cut(Request r) {
+            Cut cut = r.cut;
+            while (locks > 0) {
+                if (!handleHandoffs())
+                    Thread.yield();
+            }
+            cut.drained.incrementAndGet();
+            while (cut.drained.get() < cut.parts) {
+                if (!handleHandoffs())
+                    Thread.yield();
+            }
+            cut.add(r.kind == GET_TOTAL_AMOUNT ? sum(0, n) : sum(r.index, r.toIndex));
+            while (!cut.result.isDone())
+                Thread.yield();
+        }
+
+        private void transfer(Request r) {
+            boolean up = r.index < r.toIndex; // whether amount moves to the higher index
+            int low = Math.min(r.index, r.toIndex);
+            int high = Math.max(r.index, r.toIndex);
+            switch (r.phase) {
+                case 0: {
+                    int from = local(r.index);
+                    int to = local(r.toIndex);
+                    if (shardOf(high) == this) {
+                        if (defer(r, from) || defer(r, to))
+                            break;
+                        int status = status(amounts[from], amounts[to], r.amount);
+                        if (status == OK) {
+                            amounts[from] -= r.amount;
+                            amounts[to] += r.amount;
+                        }
+                        complete(r, status);
+                    } else if (!defer(r, local(low))) {
+                        locked[local(low)] = true;
+                        locks++;
+                        r.lowAmount = amounts[local(low)];
+                        r.phase = LOCKED;
+                        handOff(shardOf(high), r);
+                    }
+                    break;
+                }
+                case LOCKED: {
+                    int k = local(high);
+                    r.status = up ? status(r.lowAmount, amounts[k], r.amount) :
+                            status(amounts[k], r.lowAmount, r.amount);
+                    if (r.status == OK)
+                        amounts[k] += up ? r.amount : -r.amount;
+                    r.phase = DECIDED;
+                    handOff(shardOf(low), r);
+                    break;
+                }
+                case DECIDED: {
+                    int k = local(low);
+                    if (r.status == OK)
+                        amounts[k] += up ? -r.amount : r.amount;
+                    locked[k] = false;
+                    locks--;
+                    unlocked = true;
+                    complete(r, r.status);
+                    break;
+                }
+                default:
+                    throw new AssertionError("Invalid phase: " + r.phase);
+            }
+        }
+
+        /**
+         * Publishes request in the hand-off ring of another shard or keeps it in the outbox.
+         */
+        private void handOff(Shard shard, Request r) {
+            r.target = shard;
+            if (outbox.isEmpty() && shard.handoffs.offer(r))
+                shard.wakeUp();
+            else
+                outbox.addLast(r);
+        }
+
+        /**
+         * Publishes hand-offs from the outbox in their order.
+         *
+         * @return true if any hand-off was published.
+         */
+        private boolean flush() {
+            boolean flushed = false;
+            Request r;
+            while ((r = outbox.peekFirst()) != null && r.target.handoffs.offer(r)) {
+                outbox.removeFirst();
+                r.target.wakeUp();
+                flushed = true;
+            }
+            return flushed;
+        }
+
+        /**
+         * Returns total amount in accounts of this shard from fromIndex to toIndex-1.
+         */
+        private long sum(int fromIndex, int toIndex) {
+            int k = fromIndex <= id ? 0 : (fromIndex - id + shards.length - 1) / shards.length;
+            long sum = 0;
+            for (; k < amounts.length && id + (long) k * shards.length < toIndex; k++)
+                sum += amounts[k];
+            return sum;
+        }
+
+        private int status(long fromAmount, long toAmount, long amount) {
+            if (toAmount + amount > MAX_AMOUNT)
+                return OVERFLOW;
+            return fromAmount < amount ? UNDERFLOW : OK;
+        }
+
+        private int local(int index) {
+            return index / shards.length;
+        }
+
+        private void complete(Request r, long result) {
+            if (r.amountResult != null)
+                r.amountResult.complete(result);
+            else
+                r.statusResult.complete((int) result);
+            complete(r);
+        }
+
+        private void complete(Request r) {
+            completed++; // single writer
+        }
+    }
+
+    /**
+     * Request of a caller. Its fields are written before it is published in a ring, and the phase of
+     * cross-shard transfer is changed only by the worker that holds the request.
+     */
+    private static class Request {
+        final int kind;
+        final int index;
+        final int toIndex;
+        final long amount;
+        final CompletableFuture<Long> amountResult;
+        final CompletableFuture<Integer> statusResult;
+        Cut cut;
+        int phase;
+        Shard target;
+
+        /**
+         * Amount of the locked account with the lower index and the decided status of cross-shard transfer.
+         */
+        long lowAmount;
+        int status;
+
+        Request(int kind, int index, int toIndex, long amount) {
+            this.kind = kind;
+            this.index = index;
+            this.toIndex = toIndex;
+            this.amount = amount;
+            if (kind == TRANSFER) {
+                amountResult = null;
+                statusResult = new CompletableFuture<>();
+            } else {
+                amountResult = kind == GET_AMOUNT || kind == DEPOSIT || kind == WITHDRAW ?
+                        new CompletableFuture<Long>() : null;
+                statusResult = null;
+            }
+        }
+    }
+
+    /**
+     * Coordinated cut of the involved shards. Its result is the sum of partial sums of shards that is completed
+     * by the last of them.
+     */
+    private static class Cut {
+        final int parts;
+
+        /**
+         * The number of shards that have no cross-shard transfers of their own in flight.
+         */
+        final AtomicInteger drained = new AtomicInteger();
+        final AtomicLong sum = new AtomicLong();
+        final AtomicInteger remaining;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        Cut(int parts) {
+            this.parts = parts;
+            remaining = new AtomicInteger(parts);
+        }
+
+        void add(long partial) {
+            sum.addAndGet(partial);
+            if (remaining.decrementAndGet() == 0)
+                result.complete(sum.get());
+        }
+    }
+}
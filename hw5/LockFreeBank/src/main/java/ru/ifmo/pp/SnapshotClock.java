@@ -0,0 +1,80 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Global version clock for multi-version snapshot reads, as described in
+ * "Constant-time snapshots with applications to concurrent data structures" by Y. Wei et al.
+ * This class is thread-safe.
+ * <p>
+ * <p>Every committed version gets a timestamp equal to the value of the clock at the time it is set.
+ * A snapshot increments the clock and sees exactly the versions with timestamps not greater than its own.
+ * Snapshots announce themselves, so that writers know which old versions can still be read and
+ * cut the rest of version chains, see {@link #oldestVisible()}.
+ */
+class SnapshotClock {
+    /**
+     * Timestamp of a version that is not assigned yet. Clock starts from 1, so it is never assigned.
+     */
+    static final long TBD = 0;
+
+    private static final long IDLE = 0; // value of announcement slot that is not used by any snapshot
+    private static final int SLOTS = 16;
+
+    private final AtomicLong clock = new AtomicLong(1);
+    private final AtomicInteger activeSnapshots = new AtomicInteger();
+    private final AtomicLongArray announcements = new AtomicLongArray(SLOTS);
+
+    /**
+     * Returns current timestamp to be assigned to a version.
+     */
+    long now() {
+        return clock.get();
+    }
+
+    /**
+     * Starts a snapshot. It must be finished with {@link #finishSnapshot(int)}.
+     *
+     * @return announcement slot of this snapshot.
+     */
+    int startSnapshot() {
+        activeSnapshots.incrementAndGet();
+        int slot = (int) (Thread.currentThread().getId() % SLOTS);
+        while (!announcements.compareAndSet(slot, IDLE, clock.get())) {
+            // slot is used by another snapshot, try next one
+            slot = (slot + 1) % SLOTS;
+        }
+        return slot;
+    }
+
+    /**
+     * Takes snapshot timestamp. Versions with greater timestamps are invisible to this snapshot.
+     */
+    long takeTimestamp() {
+        return clock.getAndIncrement();
+    }
+
+    void finishSnapshot(int slot) {
+        announcements.set(slot, IDLE);
+        activeSnapshots.decrementAndGet();
+    }
+
+    /**
+     * Returns a timestamp that is not greater than a timestamp of any snapshot that is active now or starts later.
+     * The newest version with timestamp not greater than the result is the oldest version anyone can read.
+     */
+    long oldestVisible() {
+        // clock is read first, so any snapshot that starts after that takes a timestamp that is not less
+        long oldest = clock.get();
+        if (activeSnapshots.get() == 0)
+            return oldest;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            long announced = announcements.get(slot);
+            if (announced != IDLE && announced < oldest)
+                oldest = announced;
+        }
+        return oldest;
+    }
+}
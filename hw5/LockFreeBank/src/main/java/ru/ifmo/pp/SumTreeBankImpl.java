@@ -0,0 +1,453 @@
+package ru.ifmo.pp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bank implementation that maintains partial sums of account amounts in a binary tree that grows with accounts.
+ * This class is thread-safe and lock-free using operation objects.
+ * <p>
+ * <p>Accounts are changed by the operations of {@link BankImpl}, so deposit and withdraw are still a single
+ * compareAndSet and transfer acquires only its two accounts. Inner nodes of the tree are counters outside
+ * of accounts: after an operation has committed, the thread that invoked it adds its deltas to the ancestors
+ * of changed accounts, and transfer stops at the lowest common ancestor of its accounts, where its deltas cancel.
+ * Deposit and withdraw also add their deltas to the total amount, which is a {@link LongAdder},
+ * so writers never contend on a single root.
+ * <p>
+ * <p>Node {@code (l, j)} at level l covers accounts from {@code j << l} to {@code (j + 1) << l} exclusive,
+ * so its range does not depend on the number of accounts, and {@link #openAccount()} does not move any node.
+ * Nodes with j = 0 cover the prefix of accounts, they would have to be added above the root as the tree grows,
+ * so they are not kept, and their sums are computed from their right descendants when a range needs them.
+ * <p>
+ * <p>Counters lag behind accounts while operations are in progress, so every node counts started and finished
+ * operations that change its sum, like a seqlock, and so does the total. An operation counts its start at all
+ * nodes that it changes, including nodes of its accounts at level 0, before it commits, and counts its finish
+ * at every node after it has added its delta there. A sum is read optimistically from the nodes that cover
+ * the range and is valid when none of these nodes has had an operation in progress meanwhile, which makes
+ * the operations that change them either entirely before or entirely after the sum. Transfers never change
+ * the total, and operations outside of the range do not change its nodes, so they do not fail validation.
+ * {@link #getTotalAmount()} reads the total in O(1) time and {@link #getTotalAmount(int, int)} reads O(log n)
+ * nodes. When the sum fails validation {@link #OPTIMISTIC_TOTALS} times in a row, it is computed by
+ * {@link BankImpl} from accounts themselves.
+ */
+public class SumTreeBankImpl extends BankImpl {
+    /**
+     * The number of attempts to read a sum from the tree before it is computed from accounts.
+     */
+    static final int OPTIMISTIC_TOTALS = 4;
+
+    /**
+     * Inner nodes {@code (l, j)} with l, j &gt; 0, which are created when they are first updated.
+     * A node is kept at index {@code (j << l) + (1 << (l - 1)) - 1} right before the middle of its range,
+     * so indices of nodes are distinct and less than 1.5 times the number of accounts.
+     */
+    private final SegmentedArray<Node> nodes;
+
+    /**
+     * Nodes at level 0, which only count operations, because their sums are amounts of accounts.
+     */
+    private final SegmentedArray<Node> leaves;
+
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Counters of operations that change the total, every started operation is finished eventually.
+     */
+    private final LongAdder started = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+
+    /**
+     * The number of sums that have failed validation and have been computed from accounts.
+     */
+    private final LongAdder fallbacks = new LongAdder();
+
+    /**
+     * Creates new bank instance.
+     *
+     * @param n the number of accounts (numbered from 0 to n-1).
+     */
+    public SumTreeBankImpl(int n) {
+        super(n);
+        nodes = new SegmentedArray<>(n + n / 2);
+        leaves = new SegmentedArray<>(n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void ensureCapacity(int n) {
+        super.ensureCapacity(n);
+        nodes.ensureCapacity(n + n / 2);
+        leaves.ensureCapacity(n);
+    }
+
+    /**
+     * Returns the number of sums that have failed validation {@link #OPTIMISTIC_TOTALS} times and have been
+     * computed from accounts.
+     */
+    long getFallbackCount() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalAmount() {
+        for (int attempt = 0; attempt < OPTIMISTIC_TOTALS; attempt++) {
+            long before = finished.sum();
+            long sum = total.sum();
+            if (started.sum() == before)
+                return sum;
+        }
+        fallbacks.increment();
+        return super.getTotalAmount();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>The range is covered by at most 2 log n nodes of the tree that are not ancestors of each other,
+     * and a node that covers a prefix is read as O(log n) other nodes once at most,
+     * so this operation takes O(log n) time unless it fails validation.
+     */
+    @Override
+    public long getTotalAmount(int fromIndex, int toIndex) {
+        checkRange(fromIndex, toIndex);
+        int[] levels = new int[3 * Integer.SIZE];
+        int[] js = new int[levels.length];
+        int count = 0;
+        for (int level = 0, from = fromIndex, to = toIndex; from < to; level++, from >>>= 1, to >>>= 1) {
+            if ((from & 1) != 0)
+                count = cover(level, from++, levels, js, count);
+            if ((to & 1) != 0)
+                count = cover(level, --to, levels, js, count);
+        }
+        long[] before = new long[count];
+        for (int attempt = 0; attempt < OPTIMISTIC_TOTALS; attempt++) {
+            // finished counters of all nodes are read before started ones, like in PartitionedBank
+            for (int k = 0; k < count; k++) {
+                Node node = get(levels[k], js[k]);
+                before[k] = node == null ? 0 : node.finished.get();
+            }
+            long sum = 0;
+            for (int k = 0; k < count; k++)
+                sum += read(levels[k], js[k]);
+            int k = 0;
+            while (k < count) {
+                Node node = get(levels[k], js[k]);
+                if ((node == null ? 0 : node.started.get()) != before[k])
+                    break;
+                k++;
+            }
+            if (k == count)
+                return sum;
+        }
+        fallbacks.increment();
+        return super.getTotalAmount(fromIndex, toIndex);
+    }
+
+    /**
+     * Adds node {@code (level, j)} to the nodes that cover a range. A prefix is not kept, so it is added
+     * as account 0 and the right children of smaller prefixes.
+     *
+     * @return the number of nodes.
+     */
+    private static int cover(int level, int j, int[] levels, int[] js, int count) {
+        if (level > 0 && j == 0) {
+            levels[count] = 0;
+            js[count++] = 0;
+            for (int l = 0; l < level; l++) {
+                levels[count] = l;
+                js[count++] = 1;
+            }
+            return count;
+        }
+        levels[count] = level;
+        js[count++] = j;
+        return count;
+    }
+
+    /**
+     * Returns sum of node {@code (level, j)} with j &gt; 0 or level 0, which is amount of account j at level 0.
+     */
+    private long read(int level, int j) {
+        if (level == 0) {
+            enter();
+            try {
+                return readAmount(j);
+            } finally {
+                exit();
+            }
+        }
+        Node node = get(level, j);
+        return node == null ? 0 : node.sum.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryDeposit(int index, long amount) {
+        checkIndex(index);
+        start(index, true);
+        long delta = 0;
+        try {
+            long result = super.tryDeposit(index, amount);
+            if (result >= 0)
+                delta = amount;
+            return result;
+        } finally {
+            finish(index, delta, true);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long tryWithdraw(int index, long amount) {
+        checkIndex(index);
+        start(index, true);
+        long delta = 0;
+        try {
+            long result = super.tryWithdraw(index, amount);
+            if (result >= 0)
+                delta = -amount;
+            return result;
+        } finally {
+            finish(index, delta, true);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryTransfer(int fromIndex, int toIndex, long amount) {
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        start(fromIndex, toIndex);
+        long moved = 0;
+        try {
+            int status = super.tryTransfer(fromIndex, toIndex, amount);
+            if (status == OK)
+                moved = amount;
+            return status;
+        } finally {
+            finish(fromIndex, toIndex, moved);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int transferIfBalanceAtLeast(int fromIndex, int toIndex, long amount, long threshold) {
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        start(fromIndex, toIndex);
+        long moved = 0;
+        try {
+            int status = super.transferIfBalanceAtLeast(fromIndex, toIndex, amount, threshold);
+            if (status == OK)
+                moved = amount;
+            return status;
+        } finally {
+            finish(fromIndex, toIndex, moved);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSetAmount(int index, long expect, long update) {
+        checkIndex(index);
+        start(index, update != expect);
+        long delta = 0;
+        try {
+            boolean result = super.compareAndSetAmount(index, expect, update);
+            if (result)
+                delta = update - expect;
+            return result;
+        } finally {
+            finish(index, delta, update != expect);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long transferUpTo(int fromIndex, int toIndex, long maxAmount) {
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        start(fromIndex, toIndex);
+        long moved = 0;
+        try {
+            moved = super.transferUpTo(fromIndex, toIndex, maxAmount);
+            return moved;
+        } finally {
+            finish(fromIndex, toIndex, moved);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void updateAccounts(int[] indices, long[] deltas) {
+        long net = 0;
+        for (long delta : deltas)
+            net += delta;
+        if (net != 0)
+            started.increment();
+        for (int index : indices)
+            start(index, false);
+        boolean applied = false;
+        try {
+            super.updateAccounts(indices, deltas);
+            applied = true;
+        } finally {
+            for (int k = 0; k < indices.length; k++)
+                finish(indices[k], applied ? deltas[k] : 0, false);
+            if (net != 0) {
+                if (applied)
+                    total.add(net);
+                finished.increment();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] applyBatch(TransferBatch batch) {
+        int n = getNumberOfAccounts();
+        boolean[] counted = new boolean[batch.size()];
+        for (int k = 0; k < counted.length; k++) {
+            if (batch.validate(k, n) == TransferBatch.OK) {
+                start(batch.fromIndex(k), batch.toIndex(k));
+                counted[k] = true;
+            }
+        }
+        int[] statuses = null;
+        try {
+            statuses = super.applyBatch(batch);
+            return statuses;
+        } finally {
+            for (int k = 0; k < counted.length; k++) {
+                boolean applied = statuses != null && statuses[k] == TransferBatch.OK;
+                if (applied && !counted[k]) {
+                    // the account has been opened meanwhile, which is only possible when the caller has guessed it
+                    start(batch.fromIndex(k), batch.toIndex(k));
+                    counted[k] = true;
+                }
+                if (counted[k])
+                    finish(batch.fromIndex(k), batch.toIndex(k), applied ? batch.amount(k) : 0);
+            }
+        }
+    }
+
+    /**
+     * Counts start of an operation on the account at its node and at all its ancestors that are kept,
+     * and at the total when the operation may change it.
+     */
+    private void start(int index, boolean changesTotal) {
+        if (changesTotal)
+            started.increment();
+        node(0, index).started.incrementAndGet();
+        for (int level = 1, j = index >>> 1; j != 0; level++, j >>>= 1)
+            node(level, j).started.incrementAndGet();
+    }
+
+    /**
+     * Adds delta of the account to all its ancestors that are kept and to the total, and counts finish
+     * of the operation that was started by {@link #start(int, boolean)}.
+     */
+    private void finish(int index, long delta, boolean changesTotal) {
+        node(0, index).finished.incrementAndGet();
+        for (int level = 1, j = index >>> 1; j != 0; level++, j >>>= 1)
+            node(level, j).add(delta);
+        if (changesTotal) {
+            total.add(delta);
+            finished.increment();
+        }
+    }
+
+    /**
+     * Counts start of a transfer at nodes of both accounts and at their ancestors below their lowest common
+     * ancestor, where its deltas cancel.
+     */
+    private void start(int fromIndex, int toIndex) {
+        node(0, fromIndex).started.incrementAndGet();
+        node(0, toIndex).started.incrementAndGet();
+        for (int level = 1, from = fromIndex >>> 1, to = toIndex >>> 1; from != to; level++, from >>>= 1, to >>>= 1) {
+            if (from != 0)
+                node(level, from).started.incrementAndGet();
+            if (to != 0)
+                node(level, to).started.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds deltas of the transfer of the given amount, which is 0 when it has failed, and counts its finish
+     * at the nodes of {@link #start(int, int)}.
+     */
+    private void finish(int fromIndex, int toIndex, long amount) {
+        node(0, fromIndex).finished.incrementAndGet();
+        node(0, toIndex).finished.incrementAndGet();
+        for (int level = 1, from = fromIndex >>> 1, to = toIndex >>> 1; from != to; level++, from >>>= 1, to >>>= 1) {
+            if (from != 0)
+                node(level, from).add(-amount);
+            if (to != 0)
+                node(level, to).add(amount);
+        }
+    }
+
+    /**
+     * Returns node {@code (level, j)}, creating it if it is not kept yet.
+     */
+    private Node node(int level, int j) {
+        SegmentedArray<Node> array = level == 0 ? leaves : nodes;
+        int index = level == 0 ? j : index(level, j);
+        Node node = array.get(index);
+        if (node == null) {
+            array.compareAndSet(index, null, new Node());
+            node = array.get(index);
+        }
+        return node;
+    }
+
+    /**
+     * Returns node {@code (level, j)} or null if it has never been updated.
+     */
+    private Node get(int level, int j) {
+        return level == 0 ? leaves.get(j) : nodes.get(index(level, j));
+    }
+
+    private static int index(int level, int j) {
+        return (j << level) + (1 << (level - 1)) - 1;
+    }
+
+    /**
+     * Sum of a node with counters of started and finished operations that change it.
+     */
+    private static class Node {
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong finished = new AtomicLong();
+
+        /**
+         * Adds delta of an operation and counts its finish.
+         */
+        void add(long delta) {
+            if (delta != 0)
+                sum.addAndGet(delta);
+            finished.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests for {@link AccountIdBank}.
+ */
+public class AccountIdBankTest extends TestCase {
+    private static final long ID1 = 4_000_000_000_017L;
+    private static final long ID2 = 17;
+    private static final int THREADS = 4;
+    private static final int ACCOUNTS_PER_THREAD = 2_000;
+    private static final long MEAN = 1_000_000;
+
+    private final AccountIdBank bank = new AccountIdBank();
+
+    public void testOperations() {
+        assertFalse(bank.isOpen(ID1));
+        assertTrue(bank.openAccount(ID1));
+        assertTrue(bank.openAccount(ID2));
+        assertFalse(bank.openAccount(ID1));
+        assertTrue(bank.isOpen(ID1));
+        assertEquals(2, bank.getNumberOfAccounts());
+        assertEquals(1000, bank.deposit(ID1, 1000));
+        bank.transfer(ID1, ID2, 300);
+        assertEquals(600, bank.withdraw(ID1, 100));
+        assertEquals(600, bank.getAmount(ID1));
+        assertEquals(300, bank.getAmount(ID2));
+        assertEquals(900, bank.getTotalAmount());
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(ID2, ID1, 301));
+        assertEquals(Bank.UNDERFLOW, bank.tryWithdraw(ID2, 301));
+        assertEquals(Bank.OK, bank.tryTransfer(ID2, ID1, 300));
+        assertEquals(900, bank.getAmount(ID1));
+        try {
+            bank.deposit(ID1 + 1, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Threads open accounts with sparse identifiers and transfer money between accounts that are already open.
+     */
+    public void testConcurrentOpenAndTransfer() throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final int thread = threadNo;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < ACCOUNTS_PER_THREAD; k++) {
+                            long id = idOf(k * THREADS + thread);
+                            assertTrue(bank.openAccount(id));
+                            bank.deposit(id, MEAN);
+                            long other = idOf(rnd.nextInt(k * THREADS + thread + 1));
+                            if (other != id && bank.isOpen(other))
+                                bank.tryTransfer(id, other, rnd.nextInt(1000) + 1);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            ts[threadNo].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        long total = 0;
+        for (int i = 0; i < THREADS * ACCOUNTS_PER_THREAD; i++)
+            total += bank.getAmount(idOf(i));
+        assertEquals(THREADS * ACCOUNTS_PER_THREAD * MEAN, total);
+        assertEquals(total, bank.getTotalAmount());
+        assertEquals(THREADS * ACCOUNTS_PER_THREAD, bank.getNumberOfAccounts());
+    }
+
+    private static long idOf(int i) {
+        return 1_000_000_007L * (i + 1);
+    }
+}
@@ -0,0 +1,84 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Single-threaded benchmark that measures how much memory bank operations allocate.
+ *
+ * <p>It relies on HotSpot-specific {@link com.sun.management.ThreadMXBean} to count allocated bytes.
+ */
+public class AllocationTest extends TestCase {
+    private static final int N = 10;
+    private static final int WARM_UP = 100_000;
+    private static final int OPS = 1_000_000;
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public void testDepositWithdrawDoNotAllocate() {
+        Bank bank = new BankImpl(N);
+        double bytesPerOp = measure(bank, false);
+        System.out.printf("deposit/withdraw: %.3f bytes per op%n", bytesPerOp);
+        assertTrue(bytesPerOp < 0.01);
+    }
+
+    /**
+     * Only reports allocation of transfers in default mode, to compare with {@link #testRecyclingTransferDoesNotAllocate()}.
+     */
+    public void testTransfer() {
+        Bank bank = new BankImpl(N);
+        double bytesPerOp = measure(bank, true);
+        System.out.printf("transfer: %.3f bytes per op%n", bytesPerOp);
+    }
+
+    public void testRecyclingTransferDoesNotAllocate() {
+        Bank bank = new BankImpl(N, BankImpl.Mode.RECYCLE_DESCRIPTORS);
+        double bytesPerOp = measure(bank, true);
+        System.out.printf("transfer with recycled descriptors: %.3f bytes per op%n", bytesPerOp);
+        assertTrue(bytesPerOp < 0.01);
+    }
+
+    public void testRejectedTryOperationsDoNotAllocate() {
+        Bank bank = new BankImpl(N);
+        bank.deposit(1, 100);
+        for (int k = 0; k < WARM_UP; k++) {
+            bank.tryWithdraw(0, 100);
+            bank.tryDeposit(1, Bank.MAX_AMOUNT);
+        }
+        long bytes = allocatedBytes();
+        for (int k = 0; k < OPS; k++) {
+            bank.tryWithdraw(0, 100);
+            bank.tryDeposit(1, Bank.MAX_AMOUNT);
+        }
+        double bytesPerOp = (double) (allocatedBytes() - bytes) / (2 * OPS);
+        System.out.printf("rejected tryWithdraw/tryDeposit: %.3f bytes per op%n", bytesPerOp);
+        assertTrue(bytesPerOp < 0.01);
+    }
+
+    private double measure(Bank bank, boolean transfer) {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, 1_000_000);
+        run(bank, transfer, WARM_UP);
+        long bytes = allocatedBytes();
+        run(bank, transfer, OPS);
+        return (double) (allocatedBytes() - bytes) / (transfer ? OPS : 2 * OPS);
+    }
+
+    private void run(Bank bank, boolean transfer, int ops) {
+        for (int k = 0; k < ops; k++) {
+            int i = k % N;
+            if (transfer) {
+                bank.transfer(i, (i + 1) % N, 100);
+            } else {
+                bank.deposit(i, 100);
+                bank.withdraw(i, 100);
+            }
+        }
+    }
+
+    private long allocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
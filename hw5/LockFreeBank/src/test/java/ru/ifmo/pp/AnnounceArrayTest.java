@@ -0,0 +1,75 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link AnnounceArray} with operations that announce other operations while they are helped.
+ */
+public class AnnounceArrayTest extends TestCase {
+    private static final int CHAIN = 100_000;
+
+    private final BankImpl bank = new BankImpl(1, BankImpl.Mode.WAIT_FREE);
+    private final AnnounceArray announcements = new AnnounceArray();
+    private final List<BankImpl.Op> invoked = new ArrayList<>();
+    private int depth;
+    private int maxDepth;
+
+    /**
+     * Every operation of a long chain announces the next one and helps older operations while it is helped,
+     * as acquire does on the slow path. The helper must help them one by one without recursion.
+     */
+    public void testChain() {
+        BankImpl.Op first = newOp(CHAIN - 1);
+        announcements.announce(first);
+        announcements.helpOlder(first.phase + 1);
+        assertEquals(CHAIN, invoked.size());
+        assertEquals(1, maxDepth);
+        for (BankImpl.Op op : invoked)
+            assertTrue(op.completed);
+    }
+
+    /**
+     * When all slots are taken, announce helps one operation to free a slot, and helpOlder helps the rest
+     * in the order of phases.
+     */
+    public void testPhaseOrder() {
+        List<BankImpl.Op> ops = new ArrayList<>();
+        for (int k = 0; k <= AnnounceArray.SLOTS; k++) {
+            BankImpl.Op op = newOp(0);
+            announcements.announce(op);
+            assertTrue(op.phase != AnnounceArray.NOT_ANNOUNCED);
+            ops.add(op);
+        }
+        assertEquals(1, invoked.size());
+        BankImpl.Op helped = invoked.get(0);
+        ops.remove(helped);
+        announcements.helpOlder(ops.get(ops.size() - 1).phase);
+        assertEquals(AnnounceArray.SLOTS, invoked.size());
+        assertEquals(ops.subList(0, ops.size() - 1), invoked.subList(1, invoked.size()));
+        assertFalse(ops.get(ops.size() - 1).completed);
+    }
+
+    /**
+     * Creates operation that announces a chain of the given number of operations when it is invoked.
+     */
+    private BankImpl.Op newOp(final int remaining) {
+        return bank.new Op() {
+            @Override
+            void invokeOperation() {
+                depth++;
+                maxDepth = Math.max(maxDepth, depth);
+                invoked.add(this);
+                if (remaining > 0) {
+                    BankImpl.Op next = newOp(remaining - 1);
+                    announcements.announce(next);
+                    announcements.helpOlder(next.phase + 1);
+                }
+                completed = true;
+                depth--;
+            }
+        };
+    }
+}
@@ -0,0 +1,132 @@
+package ru.ifmo.pp;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Test case that is run for every bank implementation and mode, see {@link Variant}.
+ * Subclasses build their suites with {@link #suite(Class)} and create banks with {@link #createBank(int)}.
+ */
+public abstract class BankTestCase extends TestCase {
+    /**
+     * Factory of nodes of {@link PartitionedBank}.
+     */
+    static final PartitionedBank.NodeFactory NODES = new PartitionedBank.NodeFactory() {
+        @Override
+        public Bank newNode(int n) {
+            return new BankImpl(n);
+        }
+    };
+
+    /**
+     * Bank implementations and modes that are tested by every suite.
+     */
+    enum Variant {
+        DEFAULT,
+        RECYCLE_DESCRIPTORS,
+        SNAPSHOTS,
+        WAIT_FREE,
+        ESCROW,
+        PRIORITY_BY_AGE,
+        ELIMINATION,
+        FLAT_COMBINING,
+        SUM_TREE,
+        OFF_HEAP,
+        PARTITIONED,
+        SHARDED;
+
+        Bank createBank(int n) {
+            switch (this) {
+                case DEFAULT:
+                    return new BankImpl(n);
+                case RECYCLE_DESCRIPTORS:
+                    return new BankImpl(n, BankImpl.Mode.RECYCLE_DESCRIPTORS);
+                case SNAPSHOTS:
+                    return new BankImpl(n, BankImpl.Mode.SNAPSHOTS);
+                case WAIT_FREE:
+                    return new BankImpl(n, BankImpl.Mode.WAIT_FREE);
+                case ESCROW:
+                    return EscrowBankTest.createEscrowBank(n);
+                case PRIORITY_BY_AGE:
+                    return new BankImpl(n, BankImpl.Mode.DEFAULT, BankImpl.ContentionPolicy.PRIORITY_BY_AGE);
+                case ELIMINATION:
+                    return new EliminationBankImpl(n);
+                case FLAT_COMBINING:
+                    return new FlatCombiningBankImpl(n);
+                case SUM_TREE:
+                    return new SumTreeBankImpl(n);
+                case OFF_HEAP:
+                    return new OffHeapBankImpl(n);
+                case PARTITIONED:
+                    return new PartitionedBank(n, 3, NODES);
+                case SHARDED:
+                    return new ShardedBankImpl(n, 3, 16);
+                default:
+                    throw new AssertionError("Invalid variant: " + this);
+            }
+        }
+    }
+
+    private final Variant variant;
+
+    /**
+     * The last bank that was created, it is closed when the next one is created or the test ends.
+     */
+    private Bank bank;
+
+    protected BankTestCase(String name, Variant variant) {
+        super(name);
+        this.variant = variant;
+    }
+
+    /**
+     * Returns suite of all tests of the class for every variant. The class must have a public constructor
+     * with the name of the test and the variant.
+     */
+    static Test suite(Class<? extends BankTestCase> testClass) {
+        TestSuite suite = new TestSuite(testClass.getName());
+        try {
+            Constructor<? extends BankTestCase> constructor = testClass.getConstructor(String.class, Variant.class);
+            for (Variant variant : Variant.values()) {
+                TestSuite variantSuite = new TestSuite(testClass.getName() + "[" + variant + "]");
+                for (Method method : testClass.getMethods()) {
+                    if (method.getName().startsWith("test") && method.getParameterTypes().length == 0)
+                        variantSuite.addTest(constructor.newInstance(method.getName(), variant));
+                }
+                suite.addTest(variantSuite);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+        return suite;
+    }
+
+    /**
+     * Creates an instance of the bank implementation that is being tested.
+     */
+    protected Bank createBank(int n) {
+        closeBank();
+        bank = variant.createBank(n);
+        return bank;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        closeBank();
+    }
+
+    private void closeBank() {
+        if (bank instanceof ShardedBankImpl)
+            ((ShardedBankImpl) bank).close();
+        bank = null;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "[" + variant + "](" + getClass().getName() + ")";
+    }
+}
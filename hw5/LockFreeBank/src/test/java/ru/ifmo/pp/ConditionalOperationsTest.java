@@ -0,0 +1,124 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Concurrent tests for conditional operations of {@link BankImpl} in all modes and its subclasses.
+ */
+public class ConditionalOperationsTest extends TestCase {
+    private static final int N = 8;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 20_000;
+    private static final long MEAN = 1_000;
+    private static final long FLOOR = 500;
+
+    public void testBalanceNeverDropsBelowThreshold() throws InterruptedException {
+        for (BankImpl bank : banks())
+            checkBalanceNeverDropsBelowThreshold(bank);
+    }
+
+    public void testCompareAndSetWithTransfersUpTo() throws InterruptedException {
+        for (BankImpl bank : banks())
+            checkCompareAndSetWithTransfersUpTo(bank);
+    }
+
+    private static BankImpl[] banks() {
+        BankImpl.Mode[] modes = BankImpl.Mode.values();
+        BankImpl[] banks = new BankImpl[modes.length + 2];
+        for (int k = 0; k < modes.length; k++)
+            banks[k] = new BankImpl(N, modes[k]);
+        banks[modes.length] = new SumTreeBankImpl(N);
+        banks[modes.length + 1] = new EliminationBankImpl(N);
+        return banks;
+    }
+
+    /**
+     * Transfers only keep at least {@link #FLOOR} in source accounts, so no reader ever sees less than that.
+     */
+    private void checkBalanceNeverDropsBelowThreshold(final BankImpl bank) throws InterruptedException {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        run(new Task() {
+            @Override
+            void run(int threadNo, ThreadLocalRandom rnd) {
+                if (threadNo == 0) {
+                    long amount = bank.getAmount(rnd.nextInt(N));
+                    assertTrue("Amount " + amount, amount >= FLOOR);
+                    return;
+                }
+                int i = rnd.nextInt(N);
+                int j = (i + 1 + rnd.nextInt(N - 1)) % N;
+                long amount = rnd.nextInt((int) MEAN) + 1;
+                int status = bank.transferIfBalanceAtLeast(i, j, amount, FLOOR + amount);
+                assertTrue("Status " + status, status == Bank.OK || status == Bank.UNDERFLOW);
+            }
+        });
+        assertEquals(N * MEAN, bank.getTotalAmount());
+        for (int i = 0; i < N; i++)
+            assertTrue(bank.getAmount(i) >= FLOOR);
+    }
+
+    /**
+     * Threads increment account 0 with compare-and-set loops, while other accounts exchange money with
+     * transfers up to a limit, and no increment or transferred amount gets lost.
+     */
+    private void checkCompareAndSetWithTransfersUpTo(final BankImpl bank) throws InterruptedException {
+        for (int i = 1; i < N; i++)
+            bank.deposit(i, MEAN);
+        run(new Task() {
+            @Override
+            void run(int threadNo, ThreadLocalRandom rnd) {
+                if (threadNo % 2 == 0) {
+                    long amount;
+                    do {
+                        amount = bank.getAmount(0);
+                    } while (!bank.compareAndSetAmount(0, amount, amount + 1));
+                    return;
+                }
+                int i = 1 + rnd.nextInt(N - 1);
+                int j = 1 + (i + rnd.nextInt(N - 2)) % (N - 1);
+                long moved = bank.transferUpTo(i, j, rnd.nextInt((int) (2 * MEAN)) + 1);
+                assertTrue("Moved " + moved, moved >= 0);
+            }
+        });
+        int incrementers = (THREADS + 1) / 2;
+        assertEquals(incrementers * OPS_PER_THREAD, bank.getAmount(0));
+        assertEquals((N - 1) * MEAN + incrementers * OPS_PER_THREAD, bank.getTotalAmount());
+    }
+
+    private static void run(final Task task) throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final int thread = threadNo;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < OPS_PER_THREAD; k++)
+                            task.run(thread, rnd);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+    }
+
+    private abstract static class Task {
+        abstract void run(int threadNo, ThreadLocalRandom rnd);
+    }
+}
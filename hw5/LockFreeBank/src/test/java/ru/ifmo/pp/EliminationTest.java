@@ -0,0 +1,116 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded benchmark of transfers in both directions between a few pairs of accounts
+ * with and without elimination of opposite transfers.
+ * Throughput is printed for every bank and the final state is verified.
+ */
+public class EliminationTest extends TestCase {
+    private static final int PAIRS = 2;
+    private static final long MEAN = 1_000_000;
+    private static final int AMT = 1_000;
+    private static final int THREADS = 8;
+    private static final long WARM_UP_MILLIS = 500;
+    private static final long MEASURE_MILLIS = 1000;
+
+    public void testOppositeTransfers() throws InterruptedException {
+        for (BankImpl bank : new BankImpl[] {new BankImpl(2 * PAIRS), new EliminationBankImpl(2 * PAIRS)}) {
+            for (int i = 0; i < 2 * PAIRS; i++)
+                bank.deposit(i, MEAN);
+            run(bank, WARM_UP_MILLIS);
+            long ops = run(bank, MEASURE_MILLIS);
+            System.out.printf(Locale.US, "%-20s %,12d ops/s%n",
+                    bank.getClass().getSimpleName(), ops * 1000 / MEASURE_MILLIS);
+        }
+    }
+
+    public void testNettedTransfers() {
+        EliminationBankImpl bank = new EliminationBankImpl(2);
+        bank.deposit(0, 5);
+        bank.deposit(1, 10);
+        // the first transfer underflows unless the opposite one goes first
+        BankImpl.OppositeTransfersOp op = bank.new OppositeTransfersOp(0, 1, 10, 8);
+        bank.invoke(op);
+        assertEquals(Bank.OK, op.status);
+        assertEquals(Bank.OK, op.oppositeStatus);
+        assertEquals(3, bank.getAmount(0));
+        assertEquals(12, bank.getAmount(1));
+        op = bank.new OppositeTransfersOp(0, 1, 10, 20);
+        bank.invoke(op);
+        assertEquals(Bank.UNDERFLOW, op.status);
+        assertEquals(Bank.UNDERFLOW, op.oppositeStatus);
+        op = bank.new OppositeTransfersOp(1, 0, 12, 1);
+        bank.invoke(op);
+        assertEquals(Bank.OK, op.status);
+        assertEquals(Bank.OK, op.oppositeStatus);
+        assertEquals(14, bank.getAmount(0));
+        assertEquals(1, bank.getAmount(1));
+        assertEquals(15, bank.getTotalAmount());
+    }
+
+    /**
+     * Runs transfers in all threads and verifies state of the bank.
+     *
+     * @return the number of operations.
+     */
+    private long run(final Bank bank, final long millis) throws InterruptedException {
+        final int n = bank.getNumberOfAccounts();
+        final long[] expected = new long[n];
+        for (int i = 0; i < n; i++)
+            expected[i] = bank.getAmount(i);
+        final AtomicLong[] changes = new AtomicLong[n];
+        for (int i = 0; i < n; i++)
+            changes[i] = new AtomicLong();
+        final AtomicLong totalOps = new AtomicLong();
+        final Throwable[] failure = new Throwable[1];
+        final long tillTimeMillis = System.currentTimeMillis() + millis;
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        long ops = 0;
+                        do {
+                            int pair = rnd.nextInt(PAIRS);
+                            int i = 2 * pair + rnd.nextInt(2);
+                            int j = i ^ 1;
+                            // large amounts sometimes underflow to check statuses of netted transfers
+                            long amount = rnd.nextInt(10) == 0 ? rnd.nextInt((int) MEAN) + 1 : rnd.nextInt(AMT) + 1;
+                            if (bank.tryTransfer(i, j, amount) == Bank.OK) {
+                                changes[i].addAndGet(-amount);
+                                changes[j].addAndGet(amount);
+                            }
+                            ops++;
+                        } while (System.currentTimeMillis() < tillTimeMillis);
+                        totalOps.addAndGet(ops);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            ts[threadNo].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        for (int i = 0; i < n; i++) {
+            expected[i] += changes[i].get();
+            assertEquals(expected[i], bank.getAmount(i));
+        }
+        assertEquals(2 * PAIRS * MEAN, bank.getTotalAmount());
+        return totalOps.get();
+    }
+}
@@ -0,0 +1,70 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link EpochReclaimer} with threads that terminate.
+ */
+public class EpochReclaimerTest extends TestCase {
+    private static final int KIND = 0;
+    private static final int OPERATIONS = 10_000;
+
+    private final EpochReclaimer reclaimer = new EpochReclaimer(1);
+
+    /**
+     * A thread that terminates in the middle of operation must not prevent reuse forever.
+     */
+    public void testTerminatedInOperation() throws InterruptedException {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                reclaimer.enter();
+            }
+        };
+        thread.start();
+        thread.join();
+        for (int k = 0; k < OPERATIONS; k++) {
+            reclaimer.enter();
+            reclaimer.retire(new Object(), KIND);
+            reclaimer.exit();
+        }
+        reclaimer.enter();
+        assertNotNull(reclaimer.reuse(KIND));
+        reclaimer.exit();
+    }
+
+    /**
+     * A new thread takes the state of a terminated thread together with objects that it has retired.
+     */
+    public void testTerminatedStateIsReused() throws InterruptedException {
+        final Object retired = new Object();
+        runInThread(new Runnable() {
+            @Override
+            public void run() {
+                reclaimer.enter();
+                reclaimer.retire(retired, KIND);
+                reclaimer.exit();
+            }
+        });
+        final Object[] reused = new Object[1];
+        runInThread(new Runnable() {
+            @Override
+            public void run() {
+                for (int k = 0; k < OPERATIONS && reused[0] != retired; k++) {
+                    reclaimer.enter();
+                    reused[0] = reclaimer.reuse(KIND);
+                    if (reused[0] != retired)
+                        reclaimer.retire(new Object(), KIND);
+                    reclaimer.exit();
+                }
+            }
+        });
+        assertSame(retired, reused[0]);
+    }
+
+    private static void runInThread(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+}
@@ -0,0 +1,96 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests for credits and debits of bank implementation in escrow mode with accounts split into slices.
+ */
+public class EscrowBankTest extends TestCase {
+    /**
+     * Creates bank in escrow mode and promotes all its accounts.
+     */
+    static BankImpl createEscrowBank(int n) {
+        BankImpl bank = new BankImpl(n, BankImpl.Mode.ESCROW);
+        for (int i = 0; i < n; i++)
+            bank.promoteToEscrow(i);
+        return bank;
+    }
+
+    public void testCreditAndDebit() {
+        BankImpl bank = createEscrowBank(3);
+        for (int k = 0; k < 1000; k++)
+            assertEquals(Bank.OK, bank.tryCredit(1, 7));
+        assertEquals(7000, bank.getAmount(1));
+        // the whole amount is never in the slice of the current thread, so slices are aggregated
+        assertEquals(Bank.UNDERFLOW, bank.tryDebit(1, 7001));
+        assertEquals(Bank.OK, bank.tryDebit(1, 7000));
+        assertEquals(0, bank.getAmount(1));
+        assertEquals(Bank.OK, bank.tryCredit(1, Bank.MAX_AMOUNT));
+        assertEquals(Bank.OVERFLOW, bank.tryCredit(1, 1));
+        assertEquals(Bank.OVERFLOW, bank.tryDeposit(1, 1));
+        assertEquals(Bank.MAX_AMOUNT, bank.getTotalAmount());
+        bank.transfer(1, 2, 100);
+        assertTrue(bank.isEscrow(1));
+        assertEquals(Bank.MAX_AMOUNT - 100, bank.getAmount(1));
+        assertEquals(Bank.UNDERFLOW, bank.tryDebit(0, 1));
+    }
+
+    /**
+     * Deposits that update different slices concurrently must return distinct amounts, as if they were applied
+     * one by one, while withdrawals of the whole amount fail.
+     */
+    public void testConcurrentDeposits() throws InterruptedException {
+        final int threads = 4;
+        final int deposits = 10_000;
+        final BankImpl bank = createEscrowBank(1);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(threads * deposits + 1);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[threads];
+        for (int threadNo = 0; threadNo < threads; threadNo++) {
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < deposits; k++) {
+                            long amount = bank.deposit(0, 1);
+                            assertEquals(0, seen.getAndIncrement((int) amount));
+                            assertTrue(bank.getAmount(0) >= amount);
+                            assertEquals(Bank.UNDERFLOW, bank.tryWithdraw(0, threads * deposits + 1));
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        assertTrue(bank.isEscrow(0));
+        assertEquals(threads * deposits, bank.getAmount(0));
+        assertEquals(threads * deposits, bank.withdraw(0, 1) + 1);
+    }
+
+    public void testCreditAndDebitWithoutEscrow() {
+        BankImpl bank = new BankImpl(2);
+        assertEquals(Bank.OK, bank.tryCredit(0, 10));
+        assertEquals(Bank.UNDERFLOW, bank.tryDebit(0, 11));
+        assertEquals(Bank.OK, bank.tryDebit(0, 10));
+        assertEquals(0, bank.getTotalAmount());
+        try {
+            bank.promoteToEscrow(0);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
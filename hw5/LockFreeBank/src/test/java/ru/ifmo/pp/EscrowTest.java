@@ -0,0 +1,124 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded benchmark of credits to a hot account with and without escrow mode.
+ *
+ * <p>Most of the operations credit the same hot account, the rest are transfers and debits of other accounts,
+ * while one thread checks that amount of the hot account and the total amount never decrease.
+ * Throughput is printed for every mode and the final state is verified.
+ */
+public class EscrowTest extends TestCase {
+    private static final int N = 16;
+    private static final int HOT = 0;
+    private static final long MEAN = 1_000_000_000;
+    private static final int AMT = 1_000;
+    private static final int THREADS = 8;
+    private static final long WARM_UP_MILLIS = 500;
+    private static final long MEASURE_MILLIS = 1000;
+
+    public void testHotAccount() throws InterruptedException {
+        for (BankImpl.Mode mode : new BankImpl.Mode[] {BankImpl.Mode.DEFAULT, BankImpl.Mode.ESCROW}) {
+            BankImpl bank = new BankImpl(N, mode);
+            for (int i = 0; i < N; i++)
+                bank.deposit(i, MEAN);
+            run(bank, WARM_UP_MILLIS);
+            long ops = run(bank, MEASURE_MILLIS);
+            System.out.printf(Locale.US, "%-8s %,12d ops/s, hot account is split: %s%n",
+                    mode, ops * 1000 / MEASURE_MILLIS, bank.isEscrow(HOT));
+        }
+    }
+
+    /**
+     * Runs operations in all threads and verifies state of the bank.
+     *
+     * @return the number of operations.
+     */
+    private long run(final BankImpl bank, final long millis) throws InterruptedException {
+        final long[] expected = new long[N];
+        for (int i = 0; i < N; i++)
+            expected[i] = bank.getAmount(i);
+        final AtomicLong[] changes = new AtomicLong[N];
+        for (int i = 0; i < N; i++)
+            changes[i] = new AtomicLong();
+        final AtomicLong totalOps = new AtomicLong();
+        final Throwable[] failure = new Throwable[1];
+        final long tillTimeMillis = System.currentTimeMillis() + millis;
+        Thread[] ts = new Thread[THREADS + 1];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        long ops = 0;
+                        do {
+                            long amount = rnd.nextInt(AMT) + 1;
+                            int op = rnd.nextInt(10);
+                            if (op < 8) {
+                                assertEquals(Bank.OK, bank.tryCredit(HOT, amount));
+                                changes[HOT].addAndGet(amount);
+                            } else {
+                                int i = rnd.nextInt(N - 1) + 1;
+                                int j = rnd.nextInt(N - 2) + 1;
+                                if (j >= i)
+                                    j++;
+                                if (op == 8) {
+                                    if (bank.tryDebit(i, amount) == Bank.OK)
+                                        changes[i].addAndGet(-amount);
+                                } else if (bank.tryTransfer(i, j, amount) == Bank.OK) {
+                                    changes[i].addAndGet(-amount);
+                                    changes[j].addAndGet(amount);
+                                }
+                            }
+                            ops++;
+                        } while (System.currentTimeMillis() < tillTimeMillis);
+                        totalOps.addAndGet(ops);
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        ts[THREADS] = new Thread("CheckThread") {
+            @Override
+            public void run() {
+                try {
+                    long lastHot = 0;
+                    do {
+                        long hot = bank.getAmount(HOT);
+                        assertTrue(hot >= lastHot);
+                        lastHot = hot;
+                    } while (System.currentTimeMillis() < tillTimeMillis);
+                } catch (Throwable t) {
+                    synchronized (failure) {
+                        failure[0] = t;
+                    }
+                }
+            }
+        };
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        long expectedTotal = 0;
+        for (int i = 0; i < N; i++) {
+            expected[i] += changes[i].get();
+            assertEquals(expected[i], bank.getAmount(i));
+            expectedTotal += expected[i];
+        }
+        assertEquals(expectedTotal, bank.getTotalAmount());
+        return totalOps.get();
+    }
+}
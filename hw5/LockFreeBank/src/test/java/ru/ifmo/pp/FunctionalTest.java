@@ -1,18 +1,29 @@
 package ru.ifmo.pp;
 
-import junit.framework.TestCase;
-import ru.ifmo.pp.Bank;
-import ru.ifmo.pp.BankImpl;
+import junit.framework.Test;
 
 /**
  * Functional single-threaded test-suite for bank implementation.
  *
  * @author Roman Elizarov
  */
-public class FunctionalTest extends TestCase {
+public class FunctionalTest extends BankTestCase {
     private static final int N = 10;
 
-    private final Bank bank = new BankImpl(N);
+    private Bank bank;
+
+    public FunctionalTest(String name, Variant variant) {
+        super(name, variant);
+    }
+
+    public static Test suite() {
+        return suite(FunctionalTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        bank = createBank(N);
+    }
 
     public void testEmptyBank() {
         assertEquals(N, bank.getNumberOfAccounts());
@@ -54,6 +65,39 @@ public class FunctionalTest extends TestCase {
         assertEquals(deposit1 + deposit2, bank.getTotalAmount());
     }
 
+    public void testRangeAmount() {
+        bank.deposit(0, 1);
+        bank.deposit(3, 10);
+        bank.deposit(N - 1, 100);
+        bank.transfer(3, 4, 5);
+        assertEquals(111, bank.getTotalAmount(0, N));
+        assertEquals(0, bank.getTotalAmount(1, 1));
+        assertEquals(1, bank.getTotalAmount(0, 3));
+        assertEquals(10, bank.getTotalAmount(3, 5));
+        assertEquals(5, bank.getTotalAmount(4, N - 1));
+        assertEquals(105, bank.getTotalAmount(4, N));
+        for (int from = 0; from <= N; from++) {
+            for (int to = from; to <= N; to++) {
+                long sum = 0;
+                for (int i = from; i < to; i++)
+                    sum += bank.getAmount(i);
+                assertEquals(sum, bank.getTotalAmount(from, to));
+            }
+        }
+        try {
+            bank.getTotalAmount(2, 1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            bank.getTotalAmount(0, N + 1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
     public void testTransfer() {
         int depositAmount = 9876;
         long depositResult = bank.deposit(1, depositAmount);
@@ -66,4 +110,141 @@ public class FunctionalTest extends TestCase {
         assertEquals(transferAmount, bank.getAmount(2));
         assertEquals(depositAmount, bank.getTotalAmount());
     }
+
+    public void testTransferMulti() {
+        if (!(this.bank instanceof BankImpl))
+            return; // not supported by other implementations
+        BankImpl bank = (BankImpl) this.bank;
+        bank.deposit(0, 1000);
+        // chain 0 -> 1 -> 2 and fan-out 2 -> 3, 2 -> 4, account 1 passes all funds it receives
+        bank.transferMulti(new int[] {0, 1, 2, 2}, new int[] {1, 2, 3, 4}, new long[] {600, 600, 100, 200});
+        assertEquals(400, bank.getAmount(0));
+        assertEquals(0, bank.getAmount(1));
+        assertEquals(300, bank.getAmount(2));
+        assertEquals(100, bank.getAmount(3));
+        assertEquals(200, bank.getAmount(4));
+        assertEquals(1000, bank.getTotalAmount());
+        // no leg is committed when any account underflows after all legs
+        try {
+            bank.transferMulti(new int[] {0, 3}, new int[] {5, 6}, new long[] {400, 101});
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(400, bank.getAmount(0));
+        assertEquals(0, bank.getAmount(5));
+        assertEquals(1000, bank.getTotalAmount());
+        // opposite legs cancel each other
+        bank.transferMulti(new int[] {5, 6}, new int[] {6, 5}, new long[] {7, 7});
+        assertEquals(1000, bank.getTotalAmount());
+        try {
+            bank.transferMulti(new int[] {0}, new int[] {0}, new long[] {1});
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.transferMulti(new int[] {0}, new int[] {N}, new long[] {1});
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(1000, bank.getTotalAmount());
+    }
+
+    public void testApplyBatch() {
+        if (!(this.bank instanceof BankImpl))
+            return; // not supported by other implementations
+        BankImpl bank = (BankImpl) this.bank;
+        bank.deposit(0, 1000);
+        bank.deposit(1, Bank.MAX_AMOUNT - 10);
+        TransferBatch batch = new TransferBatch(2);
+        batch.add(0, 2, 600); // OK
+        batch.add(0, 3, 600); // UNDERFLOW, only 400 left
+        batch.add(2, 3, 600); // OK, uses funds of the first transfer
+        batch.add(3, 1, 11); // OVERFLOW
+        batch.add(3, 1, 10); // OK
+        batch.add(4, 4, 1); // SAME_ACCOUNT
+        batch.add(4, 5, 0); // INVALID_AMOUNT
+        batch.add(4, N, 1); // INVALID_INDEX
+        batch.add(3, 0, 590); // OK
+        int[] statuses = bank.applyBatch(batch);
+        assertEquals(9, statuses.length);
+        int[] expected = {TransferBatch.OK, TransferBatch.UNDERFLOW, TransferBatch.OK, TransferBatch.OVERFLOW,
+                TransferBatch.OK, TransferBatch.SAME_ACCOUNT, TransferBatch.INVALID_AMOUNT,
+                TransferBatch.INVALID_INDEX, TransferBatch.OK};
+        for (int k = 0; k < expected.length; k++)
+            assertEquals("Transfer #" + k, expected[k], statuses[k]);
+        assertEquals(990, bank.getAmount(0));
+        assertEquals(Bank.MAX_AMOUNT, bank.getAmount(1));
+        assertEquals(0, bank.getAmount(2));
+        assertEquals(0, bank.getAmount(3));
+        assertEquals(Bank.MAX_AMOUNT + 990, bank.getTotalAmount());
+        assertEquals(0, bank.applyBatch(new TransferBatch()).length);
+    }
+
+    public void testConditionalOperations() {
+        if (!(this.bank instanceof BankImpl))
+            return; // not supported by other implementations
+        BankImpl bank = (BankImpl) this.bank;
+        bank.deposit(5, 1000);
+        assertEquals(Bank.UNDERFLOW, bank.transferIfBalanceAtLeast(5, 2, 100, 1001));
+        assertEquals(Bank.OK, bank.transferIfBalanceAtLeast(5, 2, 100, 1000));
+        assertEquals(Bank.UNDERFLOW, bank.transferIfBalanceAtLeast(2, 5, 101, 0));
+        assertEquals(900, bank.getAmount(5));
+        assertEquals(100, bank.getAmount(2));
+        assertFalse(bank.compareAndSetAmount(5, 1000, 0));
+        assertTrue(bank.compareAndSetAmount(5, 900, 1500));
+        assertTrue(bank.compareAndSetAmount(0, 0, Bank.MAX_AMOUNT));
+        assertEquals(1500, bank.getAmount(5));
+        assertEquals(Bank.OVERFLOW, bank.transferIfBalanceAtLeast(5, 0, 1, 0));
+        assertEquals(100, bank.transferUpTo(2, 7, 300));
+        assertEquals(0, bank.transferUpTo(2, 7, 300));
+        assertEquals(250, bank.transferUpTo(5, 7, 250));
+        assertEquals(0, bank.transferUpTo(5, 0, 1));
+        bank.withdraw(0, 20);
+        assertEquals(20, bank.transferUpTo(7, 0, 300));
+        assertEquals(Bank.MAX_AMOUNT, bank.getAmount(0));
+        assertEquals(1250, bank.getAmount(5));
+        assertEquals(330, bank.getAmount(7));
+        assertEquals(Bank.MAX_AMOUNT + 1580, bank.getTotalAmount());
+        try {
+            bank.compareAndSetAmount(1, 0, -1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.transferUpTo(1, 1, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testTryOperations() {
+        assertEquals(100, bank.tryDeposit(1, 100));
+        assertEquals(Bank.OVERFLOW, bank.tryDeposit(1, Bank.MAX_AMOUNT));
+        assertEquals(Bank.UNDERFLOW, bank.tryWithdraw(1, 101));
+        assertEquals(40, bank.tryWithdraw(1, 60));
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(1, 2, 41));
+        assertEquals(Bank.OK, bank.tryTransfer(1, 2, 40));
+        assertEquals(0, bank.getAmount(1));
+        assertEquals(40, bank.getAmount(2));
+        assertEquals(Bank.MAX_AMOUNT, bank.tryDeposit(3, Bank.MAX_AMOUNT));
+        assertEquals(Bank.OVERFLOW, bank.tryTransfer(2, 3, 1));
+        assertEquals(Bank.MAX_AMOUNT + 40, bank.getTotalAmount());
+        try {
+            bank.tryWithdraw(1, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            bank.tryTransfer(1, 1, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
 }
@@ -0,0 +1,93 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests for {@link LongIntHashMap}.
+ */
+public class LongIntHashMapTest extends TestCase {
+    private static final int THREADS = 4;
+    private static final int KEYS = 100_000;
+
+    private final LongIntHashMap map = new LongIntHashMap();
+
+    public void testSimple() {
+        assertEquals(LongIntHashMap.ABSENT, map.get(1));
+        assertEquals(LongIntHashMap.ABSENT, map.putIfAbsent(1, 42));
+        assertEquals(42, map.get(1));
+        assertEquals(42, map.putIfAbsent(1, 43));
+        assertEquals(42, map.get(1));
+        assertEquals(LongIntHashMap.ABSENT, map.putIfAbsent(Long.MAX_VALUE, 0));
+        assertEquals(0, map.get(Long.MAX_VALUE));
+        try {
+            map.get(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRehash() {
+        int n = 10_000;
+        for (int i = 1; i <= n; i++) {
+            assertEquals(LongIntHashMap.ABSENT, map.get(keyOf(i)));
+            assertEquals(LongIntHashMap.ABSENT, map.putIfAbsent(keyOf(i), i));
+            assertEquals(i, map.get(keyOf(i)));
+        }
+        for (int i = 1; i <= n; i++)
+            assertEquals(i, map.get(keyOf(i)));
+        for (int i = n + 1; i <= 2 * n; i++)
+            assertEquals(LongIntHashMap.ABSENT, map.get(keyOf(i)));
+    }
+
+    /**
+     * All threads put all keys with their own values, and exactly one value wins for every key.
+     */
+    public void testConcurrentPutIfAbsent() throws InterruptedException {
+        final AtomicIntegerArray winners = new AtomicIntegerArray(KEYS + 1);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final int value = threadNo;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 1; i <= KEYS; i++) {
+                            int old = map.putIfAbsent(keyOf(i), value);
+                            if (old == LongIntHashMap.ABSENT)
+                                winners.incrementAndGet(i);
+                            else
+                                assertEquals(old, map.get(keyOf(i)));
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+            ts[threadNo].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        for (int i = 1; i <= KEYS; i++) {
+            assertEquals(1, winners.get(i));
+            int value = map.get(keyOf(i));
+            assertTrue(value >= 0 && value < THREADS);
+        }
+    }
+
+    /**
+     * Returns sparse positive key.
+     */
+    private static long keyOf(int i) {
+        return (i * 0x5DEECE66DL) & Long.MAX_VALUE;
+    }
+}
@@ -1,6 +1,6 @@
 package ru.ifmo.pp;
 
-import junit.framework.TestCase;
+import junit.framework.Test;
 
 import java.util.Locale;
 import java.util.concurrent.Phaser;
@@ -11,11 +11,12 @@ import java.util.concurrent.atomic.AtomicLong;
  * Multi-threaded stress test for bank implementation -- many threads and operations of various accounts.
  *
  * <p>This test test correctness of concurrent deposit, withdraw, transfer, and getTotalAmount operations.
+ * See {@link MultiLegMTStressTest} for operations with many accounts.
  * It does not check getAmount operations concurrently with the above.
  *
  * @author Roman Elizarov
  */
-public class MTStressTest extends TestCase {
+public class MTStressTest extends BankTestCase {
     private static final int N = 100;
     private static final long MEAN = 1_000_000_000;
     private static final int AMT = 1_000; // AMT << MEAN, so that probability of over/under flow is negligible
@@ -26,12 +27,25 @@ public class MTStressTest extends TestCase {
     private static final long PHASE_DURATION_MILLIS = 1000;
 
     private final Phaser phaser = new Phaser(1 + THREADS);
-    private final Bank bank = new BankImpl(N);
+    private Bank bank;
     private final AtomicLong[] expected = new AtomicLong[N];
     private final AtomicLong totalOps = new AtomicLong(); // only non-init phases are counted
     private volatile boolean failed;
     private long dummy; // will prevent code elimination
 
+    public MTStressTest(String name, Variant variant) {
+        super(name, variant);
+    }
+
+    public static Test suite() {
+        return suite(MTStressTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        bank = createBank(N);
+    }
+
     public void testStress() throws InterruptedException {
         assertEquals(N, bank.getNumberOfAccounts());
         for (int i = 0; i < N; i++)
@@ -0,0 +1,127 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded stress test for operations of {@link BankImpl} and its subclasses that change many accounts
+ * at once -- {@link BankImpl#transferMulti(int[], int[], long[]) transferMulti(...)} and
+ * {@link BankImpl#applyBatch(TransferBatch) applyBatch(...)} along chains of accounts and from one payer
+ * to many payees, while another thread checks that the total amount never changes.
+ */
+public class MultiLegMTStressTest extends TestCase {
+    private static final int N = 100;
+    private static final long MEAN = 1_000_000_000;
+    private static final int AMT = 1_000; // AMT << MEAN, so that probability of over/under flow is negligible
+    private static final int MAX_PAYEES = 50;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 5_000;
+
+    public void testModes() throws InterruptedException {
+        for (BankImpl.Mode mode : BankImpl.Mode.values())
+            checkMultiLeg(new BankImpl(N, mode));
+    }
+
+    public void testSumTree() throws InterruptedException {
+        checkMultiLeg(new SumTreeBankImpl(N));
+    }
+
+    public void testElimination() throws InterruptedException {
+        checkMultiLeg(new EliminationBankImpl(N));
+    }
+
+    private void checkMultiLeg(final BankImpl bank) throws InterruptedException {
+        final AtomicLong[] expected = new AtomicLong[N];
+        for (int i = 0; i < N; i++) {
+            bank.deposit(i, MEAN);
+            expected[i] = new AtomicLong(MEAN);
+        }
+        final Throwable[] failure = new Throwable[1];
+        final boolean[] done = new boolean[1];
+        Thread checker = new Thread("TestThread-checker") {
+            @Override
+            public void run() {
+                try {
+                    while (!isDone(done))
+                        assertEquals(N * MEAN, bank.getTotalAmount());
+                } catch (Throwable t) {
+                    record(failure, t);
+                }
+            }
+        };
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < OPS_PER_THREAD; k++) {
+                            int op = rnd.nextInt(4);
+                            // a chain of three accounts or a payer with many payees
+                            int legs = op < 2 ? 2 : 1 + rnd.nextInt(MAX_PAYEES);
+                            int[] from = new int[legs];
+                            int[] to = new int[legs];
+                            long[] amounts = new long[legs];
+                            from[0] = rnd.nextInt(N);
+                            for (int m = 0; m < legs; m++) {
+                                if (m > 0)
+                                    from[m] = op < 2 ? to[m - 1] : from[0];
+                                to[m] = rnd.nextInt(N - 1);
+                                if (to[m] >= from[m])
+                                    to[m]++;
+                                amounts[m] = rnd.nextInt(AMT) + 1;
+                            }
+                            if ((op & 1) == 0) {
+                                bank.transferMulti(from, to, amounts);
+                            } else {
+                                TransferBatch batch = new TransferBatch(legs);
+                                for (int m = 0; m < legs; m++)
+                                    batch.add(from[m], to[m], amounts[m]);
+                                int[] statuses = bank.applyBatch(batch);
+                                for (int status : statuses)
+                                    assertEquals(TransferBatch.OK, status);
+                            }
+                            for (int m = 0; m < legs; m++) {
+                                expected[from[m]].addAndGet(-amounts[m]);
+                                expected[to[m]].addAndGet(amounts[m]);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        record(failure, t);
+                    }
+                }
+            };
+        }
+        checker.start();
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (done) {
+            done[0] = true;
+        }
+        checker.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        for (int i = 0; i < N; i++)
+            assertEquals(expected[i].get(), bank.getAmount(i));
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    private static void record(Throwable[] failure, Throwable t) {
+        synchronized (failure) {
+            failure[0] = t;
+        }
+    }
+
+    private static boolean isDone(boolean[] done) {
+        synchronized (done) {
+            return done[0];
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests for {@link BankImpl#openAccount()} in all modes and in {@link SumTreeBankImpl}, including accounts
+ * that are opened concurrently with transfers and total amount reads.
+ */
+public class OpenAccountTest extends TestCase {
+    private static final int N = 4;
+    private static final long MEAN = 1_000_000_000;
+    private static final int AMT = 1_000;
+    private static final int OPENERS = 2;
+    private static final int TRANSFERRERS = 3;
+    private static final int READERS = 2;
+    private static final int OPENS_PER_THREAD = 5_000;
+
+    public void testOpenAccount() {
+        for (BankImpl.Mode mode : BankImpl.Mode.values()) {
+            BankImpl bank = new BankImpl(N, mode);
+            bank.deposit(N - 1, 100);
+            for (int i = N; i < 1000; i++) {
+                assertEquals(mode.toString(), i, bank.openAccount());
+                assertEquals(i + 1, bank.getNumberOfAccounts());
+                assertEquals(0, bank.getAmount(i));
+                bank.transfer(i - 1, i, 100);
+                assertEquals(100, bank.getAmount(i));
+                assertEquals(100, bank.getTotalAmount());
+            }
+            bank.deposit(1, 10);
+            long[] amounts = bank.getAmounts(new int[] {998, 999, 1});
+            assertEquals(mode.toString(), "[0, 100, 10]", Arrays.toString(amounts));
+            assertEquals(110, bank.getTotalAmount());
+            try {
+                bank.getAmount(1000);
+                fail();
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Opens accounts in a sum tree one by one and checks sums of ranges that end at every new account,
+     * as prefixes of the tree grow beyond its previous root.
+     */
+    public void testSumTreeOpenAccount() {
+        SumTreeBankImpl bank = new SumTreeBankImpl(1);
+        bank.deposit(0, 1);
+        for (int i = 1; i < 100; i++) {
+            assertEquals(i, bank.openAccount());
+            bank.deposit(i, i + 1);
+            assertEquals((i + 1) * (i + 2) / 2, bank.getTotalAmount());
+            assertEquals((i + 1) * (i + 2) / 2, bank.getTotalAmount(0, i + 1));
+            assertEquals(i + 1, bank.getTotalAmount(i, i + 1));
+            assertEquals((i + 1) * (i + 2) / 2 - 1, bank.getTotalAmount(1, i + 1));
+        }
+        bank.transfer(99, 0, 50);
+        assertEquals(51, bank.getTotalAmount(0, 1));
+        assertEquals(64 * 65 / 2 + 50, bank.getTotalAmount(0, 64));
+        assertEquals(100 * 101 / 2, bank.getTotalAmount());
+    }
+
+    public void testConcurrentOpenAccount() throws InterruptedException {
+        for (BankImpl.Mode mode : BankImpl.Mode.values())
+            checkConcurrentOpenAccount(new BankImpl(N, mode));
+        checkConcurrentOpenAccount(new SumTreeBankImpl(N));
+    }
+
+    /**
+     * Opens accounts while money is moved between all opened accounts and checks that the total amount
+     * does not change and that every index is opened exactly once.
+     */
+    private void checkConcurrentOpenAccount(final BankImpl bank) throws InterruptedException {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final long total = N * MEAN;
+        final int[][] opened = new int[OPENERS][OPENS_PER_THREAD];
+        final Throwable[] failure = new Throwable[1];
+        final boolean[] done = new boolean[1];
+        Thread[] openers = new Thread[OPENERS];
+        Thread[] others = new Thread[TRANSFERRERS + READERS];
+        for (int threadNo = 0; threadNo < OPENERS; threadNo++) {
+            final int[] indices = opened[threadNo];
+            openers[threadNo] = new Thread(new Guarded(failure) {
+                @Override
+                void doRun() {
+                    for (int k = 0; k < OPENS_PER_THREAD; k++)
+                        indices[k] = bank.openAccount();
+                }
+            });
+        }
+        for (int threadNo = 0; threadNo < TRANSFERRERS; threadNo++) {
+            others[threadNo] = new Thread(new Guarded(failure) {
+                @Override
+                void doRun() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    while (!isDone(done)) {
+                        int n = bank.getNumberOfAccounts();
+                        int i = rnd.nextInt(n);
+                        int j = rnd.nextInt(n - 1);
+                        if (j >= i)
+                            j++;
+                        bank.tryTransfer(i, j, rnd.nextInt(AMT) + 1);
+                    }
+                }
+            });
+        }
+        for (int threadNo = TRANSFERRERS; threadNo < others.length; threadNo++) {
+            others[threadNo] = new Thread(new Guarded(failure) {
+                @Override
+                void doRun() {
+                    while (!isDone(done))
+                        assertEquals(total, bank.getTotalAmount());
+                }
+            });
+        }
+        for (Thread t : others)
+            t.start();
+        for (Thread t : openers)
+            t.start();
+        for (Thread t : openers)
+            t.join();
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (Thread t : others)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        int[] all = new int[OPENERS * OPENS_PER_THREAD];
+        for (int threadNo = 0; threadNo < OPENERS; threadNo++)
+            System.arraycopy(opened[threadNo], 0, all, threadNo * OPENS_PER_THREAD, OPENS_PER_THREAD);
+        Arrays.sort(all);
+        for (int k = 0; k < all.length; k++)
+            assertEquals(N + k, all[k]);
+        assertEquals(N + all.length, bank.getNumberOfAccounts());
+        long sum = 0;
+        for (int i = 0; i < bank.getNumberOfAccounts(); i++)
+            sum += bank.getAmount(i);
+        assertEquals(total, sum);
+        assertEquals(total, bank.getTotalAmount());
+    }
+
+    private static boolean isDone(boolean[] done) {
+        synchronized (done) {
+            return done[0];
+        }
+    }
+
+    /**
+     * Task that keeps the first failure of all threads.
+     */
+    private abstract static class Guarded implements Runnable {
+        private final Throwable[] failure;
+
+        Guarded(Throwable[] failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                doRun();
+            } catch (Throwable t) {
+                synchronized (failure) {
+                    failure[0] = t;
+                }
+            }
+        }
+
+        abstract void doRun();
+    }
+}
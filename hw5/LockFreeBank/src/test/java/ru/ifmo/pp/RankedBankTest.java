@@ -0,0 +1,147 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests for {@link RankedBank}.
+ */
+public class RankedBankTest extends TestCase {
+    private static final int N = 100;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 50_000;
+    private static final long MEAN = 1_000;
+    private static final int K = 10;
+
+    public void testQueries() {
+        RankedBank bank = new RankedBank(new BankImpl(5));
+        bank.deposit(0, 50);
+        bank.deposit(1, 10);
+        bank.deposit(2, 30);
+        bank.deposit(3, 30);
+        assertEquals("[0, 3, 2]", Arrays.toString(bank.topK(3)));
+        assertEquals("[4, 1, 2, 3]", Arrays.toString(bank.bottomK(4)));
+        assertEquals("[4, 1]", Arrays.toString(bank.accountsBelow(30)));
+        assertEquals("[4, 1, 2, 3]", Arrays.toString(bank.accountsBelow(31)));
+        assertEquals("[]", Arrays.toString(bank.accountsBelow(0)));
+        assertEquals(5, bank.topK(100).length);
+        assertEquals(0, bank.bottomK(0).length);
+        bank.transfer(0, 4, 45);
+        assertEquals(Bank.UNDERFLOW, bank.tryWithdraw(0, 6));
+        assertEquals(10, bank.withdraw(2, 20));
+        assertEquals("[4, 3]", Arrays.toString(bank.topK(2)));
+        assertEquals("[0, 1, 2]", Arrays.toString(bank.bottomK(3)));
+        bank.deposit(0, 5);
+        // equal amounts are ordered by index
+        assertEquals("[0, 1, 2, 3]", Arrays.toString(bank.accountsBelow(45)));
+        assertEquals(105, bank.getTotalAmount());
+        try {
+            bank.topK(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRandomOperations() {
+        Random rnd = new Random(1);
+        RankedBank bank = new RankedBank(new FlatCombiningBankImpl(N));
+        for (int op = 0; op < 10_000; op++) {
+            int i = rnd.nextInt(N);
+            int j = rnd.nextInt(N);
+            if (i == j)
+                bank.tryDeposit(i, rnd.nextInt((int) MEAN) + 1);
+            else
+                bank.tryTransfer(i, j, rnd.nextInt((int) MEAN) + 1);
+            if (op % 100 == 0)
+                checkExact(bank);
+        }
+        checkExact(bank);
+    }
+
+    /**
+     * Transfers money between accounts while other threads query the index and checks that the index is exact
+     * when all transfers are over.
+     */
+    public void testConcurrentTransfers() throws InterruptedException {
+        final RankedBank bank = new RankedBank(new BankImpl(N));
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final boolean reader = threadNo == 0;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < OPS_PER_THREAD; k++) {
+                            if (reader) {
+                                checkDistinct(bank.bottomK(K));
+                                checkDistinct(bank.topK(K));
+                                continue;
+                            }
+                            // a few hot accounts move in the index all the time
+                            int i = rnd.nextInt(K);
+                            int j = rnd.nextInt(N);
+                            if (i != j)
+                                bank.tryTransfer(i, j, rnd.nextInt((int) MEAN) + 1);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        assertEquals(N * MEAN, bank.getTotalAmount());
+        checkExact(bank);
+    }
+
+    private static void checkDistinct(int[] indices) {
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        for (int k = 1; k < sorted.length; k++)
+            assertTrue(Arrays.toString(indices), sorted[k] != sorted[k - 1]);
+    }
+
+    /**
+     * Checks results of all queries against sorted amounts of all accounts.
+     */
+    private static void checkExact(RankedBank bank) {
+        int n = bank.getNumberOfAccounts();
+        long[] keys = new long[n]; // amount and index of every account, indices fit in 12 bits
+        for (int i = 0; i < n; i++)
+            keys[i] = bank.getAmount(i) << 12 | i;
+        Arrays.sort(keys);
+        int[] bottom = bank.bottomK(K);
+        int[] top = bank.topK(K);
+        assertEquals(K, bottom.length);
+        assertEquals(K, top.length);
+        for (int k = 0; k < K; k++) {
+            assertEquals(keys[k] & 0xfff, bottom[k]);
+            assertEquals(keys[n - 1 - k] & 0xfff, top[k]);
+        }
+        long threshold = keys[n / 2] >>> 12;
+        int below = 0;
+        while ((keys[below] >>> 12) < threshold)
+            below++;
+        int[] accounts = bank.accountsBelow(threshold);
+        assertEquals(below, accounts.length);
+        for (int k = 0; k < below; k++)
+            assertEquals(keys[k] & 0xfff, accounts[k]);
+    }
+}
@@ -0,0 +1,183 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests for {@link ReplicatedBank} and {@link Backup} over loopback connections.
+ */
+public class ReplicationTest extends TestCase {
+    private static final int N = 8;
+    private static final int THREADS = 4;
+    private static final int OPERATIONS_PER_THREAD = 2_000;
+    private static final long MEAN = 1_000;
+
+    private final ChangeFeed feed = new ChangeFeed(1 << 14);
+    private final BankImpl primary = new BankImpl(N, BankImpl.Mode.DEFAULT, BankImpl.ContentionPolicy.NONE, feed);
+
+    public void testSynchronousReplication() throws Exception {
+        Backup[] backups = {newBackup(), newBackup()};
+        ReplicatedBank bank = new ReplicatedBank(primary, feed, addresses(backups), 2);
+        bank.deposit(1, 100);
+        assertAmounts(backups);
+        bank.transfer(1, 2, 30);
+        assertAmounts(backups);
+        bank.withdraw(2, 10);
+        assertAmounts(backups);
+        assertEquals(Bank.UNDERFLOW, bank.tryTransfer(1, 2, 1000));
+        for (int k = 0; k < backups.length; k++) {
+            assertEquals(0, bank.getLag(k));
+            assertEquals(feed.getLastSequence(), bank.getAckedSequence(k));
+            assertEquals(feed.getLastSequence(), backups[k].getAppliedSequence());
+        }
+        assertEquals(feed.getLastSequence(), bank.getReplicatedSequence());
+        bank.close();
+        for (Backup backup : backups)
+            backup.awaitClose();
+        assertAmounts(backups);
+    }
+
+    public void testAsynchronousReplication() throws Exception {
+        Backup backup = newBackup();
+        ReplicatedBank bank = new ReplicatedBank(primary, feed, addresses(backup), 0);
+        for (int k = 0; k < 100; k++)
+            bank.deposit(k % N, k + 1);
+        bank.close();
+        backup.awaitClose();
+        assertAmounts(backup);
+        assertEquals(0, bank.getLag(0));
+        assertEquals(feed.getLastSequence(), bank.getSentSequence(0));
+        assertEquals(feed.getLastSequence(), backup.getAppliedSequence());
+    }
+
+    /**
+     * Deposits without waiting for acknowledgements through a feed that is much smaller than the number
+     * of deposits, and checks that the bank waits for the sender instead of losing changes.
+     */
+    public void testAsynchronousBurst() throws Exception {
+        ChangeFeed feed = new ChangeFeed(4);
+        BankImpl primary = new BankImpl(N, BankImpl.Mode.DEFAULT, BankImpl.ContentionPolicy.NONE, feed);
+        Backup backup = newBackup();
+        ReplicatedBank bank = new ReplicatedBank(primary, feed, addresses(backup), 0);
+        for (int k = 0; k < OPERATIONS_PER_THREAD; k++)
+            bank.deposit(k % N, 1);
+        bank.close();
+        backup.awaitClose();
+        for (int i = 0; i < N; i++)
+            assertEquals(OPERATIONS_PER_THREAD / N, backup.getBank().getAmount(i));
+        assertEquals(feed.getLastSequence(), backup.getAppliedSequence());
+    }
+
+    /**
+     * Checks that batches of transfers, which commit as a single change of several accounts, are replicated.
+     */
+    public void testBatches() throws Exception {
+        Backup backup = newBackup();
+        ReplicatedBank bank = new ReplicatedBank(primary, feed, addresses(backup), 1);
+        bank.deposit(0, 100);
+        bank.deposit(1, 50);
+        TransferBatch batch = new TransferBatch();
+        batch.add(0, 2, 70);
+        batch.add(1, 3, 20);
+        batch.add(2, 1, 5);
+        batch.add(3, 4, 1000); // fails
+        primary.applyBatch(batch);
+        bank.getTotalAmount(); // waits for the batch to be replicated
+        assertAmounts(backup);
+        bank.close();
+        backup.awaitClose();
+    }
+
+    public void testConcurrentTransfers() throws Exception {
+        final Backup[] backups = {newBackup(), newBackup()};
+        final ReplicatedBank bank = new ReplicatedBank(primary, feed, addresses(backups), 1);
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        TransferBatch batch = new TransferBatch();
+                        for (int k = 0; k < OPERATIONS_PER_THREAD; k++) {
+                            int i = rnd.nextInt(N);
+                            int j = (i + 1 + rnd.nextInt(N - 1)) % N;
+                            if (k % 10 == 0) {
+                                batch.clear();
+                                batch.add(i, j, rnd.nextInt((int) MEAN) + 1);
+                                batch.add(j, rnd.nextInt(N), rnd.nextInt((int) MEAN) + 1);
+                                primary.applyBatch(batch);
+                            } else {
+                                bank.tryTransfer(i, j, rnd.nextInt((int) MEAN) + 1);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        bank.close();
+        for (Backup backup : backups) {
+            backup.awaitClose();
+            assertTrue(backup.getAckCount() <= backup.getFrameCount());
+        }
+        assertAmounts(backups);
+        assertEquals(N * MEAN, backups[0].getBank().getTotalAmount());
+    }
+
+    public void testBackupFailure() throws Exception {
+        Backup backup = newBackup();
+        ReplicatedBank bank = new ReplicatedBank(primary, feed, addresses(backup), 1);
+        bank.deposit(0, 1);
+        backup.close();
+        try {
+            bank.deposit(0, 1);
+            bank.deposit(0, 1);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            bank.close();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static Backup newBackup() throws IOException {
+        return new Backup(new BankImpl(N), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    private static InetSocketAddress[] addresses(Backup... backups) throws IOException {
+        InetSocketAddress[] addresses = new InetSocketAddress[backups.length];
+        for (int k = 0; k < backups.length; k++)
+            addresses[k] = backups[k].getAddress();
+        return addresses;
+    }
+
+    private void assertAmounts(Backup... backups) {
+        for (Backup backup : backups) {
+            for (int i = 0; i < N; i++)
+                assertEquals(primary.getAmount(i), backup.getBank().getAmount(i));
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for asynchronous operations, backpressure, and cross-shard transfers of {@link ShardedBankImpl}.
+ */
+public class ShardedBankTest extends TestCase {
+    private static final int N = 10;
+    private static final int SHARDS = 3;
+    private static final int CAPACITY = 8;
+    private static final long MEAN = 1_000_000;
+    private static final int THREADS = 4;
+    private static final int TRANSFERS_PER_THREAD = 20_000;
+
+    private final ShardedBankImpl bank = new ShardedBankImpl(N, SHARDS, CAPACITY);
+
+    @Override
+    protected void tearDown() throws Exception {
+        bank.close();
+    }
+
+    public void testAsyncOperations() {
+        CompletableFuture<Long> deposit = bank.depositAsync(1, 1000);
+        CompletableFuture<Integer> transfer = bank.transferAsync(1, 2, 300); // shards 1 and 2
+        CompletableFuture<Integer> sameShard = bank.transferAsync(1, 4, 100); // both in shard 1
+        CompletableFuture<Integer> underflow = bank.transferAsync(1, 3, 601);
+        assertEquals(1000, (long) deposit.join());
+        assertEquals(Bank.OK, (int) transfer.join());
+        assertEquals(Bank.OK, (int) sameShard.join());
+        assertEquals(Bank.UNDERFLOW, (int) underflow.join());
+        assertEquals(600, (long) bank.getAmountAsync(1).join());
+        assertEquals(300, (long) bank.getAmountAsync(2).join());
+        assertEquals(400, (long) bank.getTotalAmountAsync(2, 5).join());
+        assertEquals(0, (long) bank.getTotalAmountAsync(5, 5).join());
+        assertEquals(Bank.UNDERFLOW, (long) bank.withdrawAsync(2, 301).join());
+        assertEquals(Bank.MAX_AMOUNT, (long) bank.depositAsync(0, Bank.MAX_AMOUNT).join());
+        // account 0 is locked in shard 0, and the transfer is decided in shard 1
+        assertEquals(Bank.OVERFLOW, (int) bank.transferAsync(1, 0, 1).join());
+        assertEquals(600, bank.getAmount(1));
+        assertEquals(Bank.MAX_AMOUNT + 1000, bank.getTotalAmount());
+    }
+
+    /**
+     * Stalls the worker of a shard with a dependent action, fills its queue, and checks that the next caller
+     * waits until the worker catches up.
+     */
+    public void testBackpressure() throws InterruptedException {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        do {
+            bank.getAmountAsync(0).thenRun(new Runnable() {
+                @Override
+                public void run() {
+                    // the action runs in the caller when the future is already completed
+                    if (Thread.currentThread().getName().startsWith("ShardedBank-")) {
+                        stalled.countDown();
+                        awaitUninterruptibly(resume);
+                    }
+                }
+            });
+        } while (!stalled.await(10, TimeUnit.MILLISECONDS));
+        List<CompletableFuture<Long>> deposits = new ArrayList<>();
+        for (int k = 0; k < CAPACITY; k++)
+            deposits.add(bank.depositAsync(3, 1));
+        assertEquals(CAPACITY, bank.getQueueDepth());
+        assertEquals(CAPACITY, bank.getQueueCapacity());
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                bank.deposit(6, 1);
+            }
+        };
+        caller.start();
+        caller.join(100);
+        assertTrue(caller.isAlive());
+        resume.countDown();
+        caller.join();
+        for (int k = 0; k < CAPACITY; k++)
+            assertEquals(k + 1, (long) deposits.get(k).join());
+        assertEquals(1, bank.getAmount(6));
+        assertEquals(0, bank.getQueueDepth());
+    }
+
+    public void testClose() throws InterruptedException {
+        bank.deposit(0, 1);
+        CompletableFuture<Long> total = bank.getTotalAmountAsync();
+        bank.close();
+        assertTrue(total.isDone());
+        try {
+            bank.getAmount(0);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Transfers money asynchronously between accounts of all shards and checks that the total amount
+     * that counts money in flight never changes.
+     */
+    public void testConcurrentTransfers() throws InterruptedException {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final boolean reader = threadNo == 0;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        List<CompletableFuture<Integer>> transfers = new ArrayList<>();
+                        for (int k = 0; k < TRANSFERS_PER_THREAD; k++) {
+                            if (reader) {
+                                if (k % 100 == 0)
+                                    assertEquals(N * MEAN, bank.getTotalAmount());
+                                continue;
+                            }
+                            int i = rnd.nextInt(N);
+                            int j = (i + 1 + rnd.nextInt(N - 1)) % N;
+                            transfers.add(bank.transferAsync(i, j, rnd.nextInt(1000) + 1));
+                        }
+                        for (CompletableFuture<Integer> transfer : transfers)
+                            assertEquals(Bank.OK, (int) transfer.join());
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        long sum = 0;
+        for (int i = 0; i < N; i++)
+            sum += bank.getAmount(i);
+        assertEquals(N * MEAN, sum);
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    /**
+     * Stalls the worker of shard 0 and checks that a sum of accounts of the other shards does not wait for it.
+     */
+    public void testRangeSumInvolvesOnlyItsShards() throws InterruptedException {
+        bank.deposit(1, 10);
+        bank.deposit(2, 20);
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        do {
+            bank.getAmountAsync(0).thenRun(new Runnable() {
+                @Override
+                public void run() {
+                    if (Thread.currentThread().getName().startsWith("ShardedBank-")) {
+                        stalled.countDown();
+                        awaitUninterruptibly(resume);
+                    }
+                }
+            });
+        } while (!stalled.await(10, TimeUnit.MILLISECONDS));
+        try {
+            assertEquals(30, bank.getTotalAmount(1, 3));
+            assertEquals(Bank.OK, bank.tryTransfer(1, 2, 5));
+            assertEquals(30, bank.getTotalAmount(1, 3));
+            assertEquals(25, bank.getTotalAmount(2, 3));
+        } finally {
+            resume.countDown();
+        }
+        assertEquals(30, bank.getTotalAmount());
+    }
+
+    /**
+     * Transfers money between accounts inside and outside of ranges that cover some of the shards,
+     * and checks that sums of the ranges never change.
+     */
+    public void testConcurrentRangeSums() throws InterruptedException {
+        for (int i = 0; i < N; i++)
+            bank.deposit(i, MEAN);
+        // pairs of accounts that keep the sums of [1, 3) and [4, 6) in shards 1 and 2, the others are outside
+        final int[][] pairs = {{1, 2}, {4, 5}, {7, 8}, {0, 3}};
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final boolean reader = threadNo == 0;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        List<CompletableFuture<Integer>> transfers = new ArrayList<>();
+                        for (int k = 0; k < TRANSFERS_PER_THREAD; k++) {
+                            if (reader) {
+                                if (k % 100 == 0) {
+                                    assertEquals(2 * MEAN, bank.getTotalAmount(1, 3));
+                                    assertEquals(2 * MEAN, bank.getTotalAmount(4, 6));
+                                }
+                                continue;
+                            }
+                            int[] pair = pairs[rnd.nextInt(pairs.length)];
+                            int i = rnd.nextInt(2);
+                            transfers.add(bank.transferAsync(pair[i], pair[1 - i], rnd.nextInt(1000) + 1));
+                        }
+                        for (CompletableFuture<Integer> transfer : transfers)
+                            assertEquals(Bank.OK, (int) transfer.join());
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        assertEquals(N * MEAN, bank.getTotalAmount());
+    }
+
+    /**
+     * Transfers to an account that would overflow while another thread reads the source account,
+     * which must never be seen changed.
+     */
+    public void testOverflowKeepsSource() throws InterruptedException {
+        bank.deposit(0, Bank.MAX_AMOUNT);
+        bank.deposit(1, 100);
+        final Throwable[] failure = new Throwable[1];
+        Thread reader = new Thread("TestThread-reader") {
+            @Override
+            public void run() {
+                try {
+                    for (int k = 0; k < TRANSFERS_PER_THREAD; k++)
+                        assertEquals(100, bank.getAmount(1));
+                } catch (Throwable t) {
+                    synchronized (failure) {
+                        failure[0] = t;
+                    }
+                }
+            }
+        };
+        reader.start();
+        while (reader.isAlive())
+            assertEquals(Bank.OVERFLOW, bank.tryTransfer(1, 0, 1));
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+        assertEquals(Bank.MAX_AMOUNT + 100, bank.getTotalAmount());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // keep waiting
+            }
+        }
+    }
+}
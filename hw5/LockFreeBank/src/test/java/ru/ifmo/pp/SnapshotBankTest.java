@@ -0,0 +1,39 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests for reads of many accounts and for bank implementation that reads total amount from snapshots.
+ */
+public class SnapshotBankTest extends TestCase {
+    public void testGetAmounts() {
+        for (BankImpl.Mode mode : BankImpl.Mode.values()) {
+            BankImpl bank = new BankImpl(5, mode);
+            bank.deposit(1, 100);
+            bank.deposit(3, 300);
+            bank.transfer(3, 4, 50);
+            long[] amounts = bank.getAmounts(new int[] {4, 1, 3, 1, 0});
+            assertEquals(mode.toString(), "[50, 100, 250, 100, 0]", Arrays.toString(amounts));
+            assertEquals(0, bank.getAmounts(new int[0]).length);
+            try {
+                bank.getAmounts(new int[] {0, 5});
+                fail();
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testTotalAmountAfterManyUpdates() {
+        BankImpl bank = new BankImpl(3, BankImpl.Mode.SNAPSHOTS);
+        for (int i = 0; i < 1000; i++) {
+            bank.deposit(i % 3, 10);
+            bank.transfer(i % 3, (i + 1) % 3, 5);
+            if (i % 2 == 0)
+                bank.withdraw((i + 1) % 3, 5);
+            assertEquals(10 * (i + 1) - 5 * ((i + 2) / 2), bank.getTotalAmount());
+        }
+    }
+}
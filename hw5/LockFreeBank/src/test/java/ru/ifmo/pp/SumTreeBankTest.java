@@ -0,0 +1,187 @@
+package ru.ifmo.pp;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests for {@link SumTreeBankImpl} with trees that are not complete, and for sums under concurrent transfers.
+ */
+public class SumTreeBankTest extends TestCase {
+    private static final int THREADS = 4;
+    private static final int TRANSFERS_PER_THREAD = 20_000;
+    private static final long MEAN = 1_000;
+    public void testTotalAmountWithIncompleteTree() {
+        int n = 13;
+        Bank bank = new SumTreeBankImpl(n);
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            bank.deposit(i, 1000 + i);
+            total += 1000 + i;
+            assertEquals(total, bank.getTotalAmount());
+        }
+        for (int i = 0; i < n; i++) {
+            bank.transfer(i, n - 1 - i == i ? 0 : n - 1 - i, 500);
+            assertEquals(total, bank.getTotalAmount());
+        }
+        bank.withdraw(7, 100);
+        assertEquals(total - 100, bank.getTotalAmount());
+    }
+
+    public void testSingleAccount() {
+        Bank bank = new SumTreeBankImpl(1);
+        bank.deposit(0, 123);
+        assertEquals(123, bank.getTotalAmount());
+    }
+
+    public void testInvalidIndex() {
+        Bank bank = new SumTreeBankImpl(13);
+        try {
+            bank.deposit(13, 1);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEquals(0, bank.getTotalAmount());
+    }
+
+    public void testTransferMultiWithIncompleteTree() {
+        int n = 13;
+        SumTreeBankImpl bank = new SumTreeBankImpl(n);
+        for (int i = 0; i < n; i++)
+            bank.deposit(i, 1000);
+        int[] from = new int[n];
+        int[] to = new int[n];
+        long[] amounts = new long[n];
+        for (int i = 0; i < n; i++) {
+            from[i] = i;
+            to[i] = (i * 5 + 3) % n == i ? (i + 1) % n : (i * 5 + 3) % n;
+            amounts[i] = 10 * i + 1;
+        }
+        bank.transferMulti(from, to, amounts);
+        long total = 0;
+        for (int i = 0; i < n; i++)
+            total += bank.getAmount(i);
+        assertEquals(1000 * n, total);
+        assertEquals(total, bank.getTotalAmount());
+        for (int i = 0; i < n; i++)
+            bank.withdraw(i, bank.getAmount(i));
+        assertEquals(0, bank.getTotalAmount());
+    }
+
+    /**
+     * Checks sums of all ranges after every kind of operation, as each of them adds its own deltas to the tree.
+     */
+    public void testRangesAfterAllOperations() {
+        int n = 13;
+        SumTreeBankImpl bank = new SumTreeBankImpl(n);
+        for (int i = 0; i < n; i++)
+            bank.deposit(i, 100 * (i + 1));
+        bank.withdraw(4, 50);
+        assertTrue(bank.compareAndSetAmount(2, 300, 1));
+        assertEquals(200, bank.transferUpTo(1, 11, 1000));
+        assertEquals(Bank.OK, bank.transferIfBalanceAtLeast(12, 0, 10, 1000));
+        assertEquals(Bank.UNDERFLOW, bank.transferIfBalanceAtLeast(0, 12, 10, 1000));
+        bank.transferMulti(new int[] {3, 5}, new int[] {9, 3}, new long[] {40, 70});
+        TransferBatch batch = new TransferBatch();
+        batch.add(7, 8, 30);
+        batch.add(6, 0, 1000); // fails
+        bank.applyBatch(batch);
+        for (int from = 0; from <= n; from++) {
+            long sum = 0;
+            for (int to = from; to <= n; to++) {
+                assertEquals(from + ".." + to, sum, bank.getTotalAmount(from, to));
+                if (to < n)
+                    sum += bank.getAmount(to);
+            }
+        }
+    }
+
+    /**
+     * Transfers money concurrently while another thread checks that the total never changes and is read
+     * from the tree, because transfers do not change it.
+     */
+    public void testTotalWithConcurrentTransfers() throws InterruptedException {
+        final int n = 16;
+        final SumTreeBankImpl bank = new SumTreeBankImpl(n);
+        for (int i = 0; i < n; i++)
+            bank.deposit(i, MEAN);
+        run(new Runnable() {
+            @Override
+            public void run() {
+                long fallbacks = bank.getFallbackCount();
+                assertEquals(n * MEAN, bank.getTotalAmount());
+                assertEquals(fallbacks, bank.getFallbackCount());
+            }
+        }, bank, new int[] {0, n});
+        assertEquals(n * MEAN, bank.getTotalAmount());
+    }
+
+    /**
+     * Transfers money concurrently within two halves of accounts while another thread checks their sums.
+     * Transfers within the right half never change the node that covers it, so its sum is always read
+     * from the tree, and the left half is a prefix that is covered by several nodes that transfers change.
+     */
+    public void testRangeSumsWithConcurrentTransfers() throws InterruptedException {
+        final int n = 16;
+        final SumTreeBankImpl bank = new SumTreeBankImpl(n);
+        for (int i = 0; i < n; i++)
+            bank.deposit(i, MEAN);
+        run(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(n / 2 * MEAN, bank.getTotalAmount(0, n / 2));
+                long fallbacks = bank.getFallbackCount();
+                assertEquals(n / 2 * MEAN, bank.getTotalAmount(n / 2, n));
+                assertEquals(fallbacks, bank.getFallbackCount());
+            }
+        }, bank, new int[] {0, n / 2, n / 2, n});
+        assertEquals(n * MEAN, bank.getTotalAmount());
+    }
+
+    /**
+     * Runs checks in one thread while the others transfer money between random accounts of the same range.
+     *
+     * @param ranges bounds of ranges, every transfer is within one of them.
+     */
+    private static void run(final Runnable check, final Bank bank, final int[] ranges) throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        Thread[] ts = new Thread[THREADS];
+        for (int threadNo = 0; threadNo < THREADS; threadNo++) {
+            final boolean checker = threadNo == 0;
+            ts[threadNo] = new Thread("TestThread-" + threadNo) {
+                @Override
+                public void run() {
+                    try {
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int k = 0; k < TRANSFERS_PER_THREAD; k++) {
+                            if (checker) {
+                                if (k % 100 == 0)
+                                    check.run();
+                                continue;
+                            }
+                            int r = rnd.nextInt(ranges.length / 2);
+                            int from = ranges[2 * r];
+                            int size = ranges[2 * r + 1] - from;
+                            int i = rnd.nextInt(size);
+                            int j = (i + 1 + rnd.nextInt(size - 1)) % size;
+                            bank.tryTransfer(from + i, from + j, rnd.nextInt((int) MEAN) + 1);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread t : ts)
+            t.start();
+        for (Thread t : ts)
+            t.join();
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new AssertionError(failure[0]);
+        }
+    }
+}